@@ -2,6 +2,7 @@ package me.cortex.voxy.client;
 
 import me.cortex.voxy.client.core.VoxelCore;
 import me.cortex.voxy.client.saver.ContextSelectionSystem;
+import me.cortex.voxy.client.saver.StorageMigrationCommand;
 import me.cortex.voxy.client.terrain.WorldImportCommand;
 import me.cortex.voxy.common.config.Serialization;
 import me.cortex.voxy.common.storage.compressors.ZSTDCompressor;
@@ -26,6 +27,7 @@ public class Voxy implements ClientModInitializer {
 
         ClientCommandRegistrationCallback.EVENT.register((dispatcher, registryAccess) -> {
             dispatcher.register(WorldImportCommand.register());
+            dispatcher.register(StorageMigrationCommand.register());
         });
     }
 
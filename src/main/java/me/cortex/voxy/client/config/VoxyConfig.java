@@ -30,8 +30,12 @@ public class VoxyConfig {
     public int geometryBufferSize = (1<<30)/8;
     public int ingestThreads = 2;
     public int savingThreads = 4;
+    public int ioThreads = 2;
     public int renderThreads = 5;
     public boolean useMeshShaderIfPossible = true;
+    //Disk quotas in MB, 0 for none. The global quota is shared by all the multiplayer caches under .voxy/saves
+    public int worldDiskQuotaMB = 0;
+    public int globalDiskQuotaMB = 16384;
     public String defaultSaveConfig;
 
 
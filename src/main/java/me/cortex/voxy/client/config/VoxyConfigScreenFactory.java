@@ -129,6 +129,12 @@ public class VoxyConfigScreenFactory implements ModMenuApi {
                 .setDefaultValue(DEFAULT.savingThreads)
                 .build());
 
+        category.addEntry(entryBuilder.startIntSlider(Text.translatable("voxy.config.threads.io"), config.ioThreads, 1, Runtime.getRuntime().availableProcessors())
+                .setTooltip(Text.translatable("voxy.config.threads.io.tooltip"))
+                .setSaveConsumer(val -> config.ioThreads = val)
+                .setDefaultValue(DEFAULT.ioThreads)
+                .build());
+
         category.addEntry(entryBuilder.startIntSlider(Text.translatable("voxy.config.threads.render"), config.renderThreads, 1, Runtime.getRuntime().availableProcessors())
                 .setTooltip(Text.translatable("voxy.config.threads.render.tooltip"))
                 .setSaveConsumer(val -> config.renderThreads = val)
@@ -8,7 +8,15 @@ import me.cortex.voxy.client.core.rendering.building.RenderGenerationService;
 import me.cortex.voxy.client.core.rendering.post.PostProcessing;
 import me.cortex.voxy.client.core.util.IrisUtil;
 import me.cortex.voxy.client.saver.ContextSelectionSystem;
+import me.cortex.voxy.common.config.Serialization;
+import me.cortex.voxy.common.storage.StorageBackend;
+import me.cortex.voxy.common.storage.StorageMigrator;
+import me.cortex.voxy.common.storage.archive.PackedArchiveWriter;
+import me.cortex.voxy.common.storage.other.CompressionStorageAdaptor;
+import me.cortex.voxy.common.storage.other.InstrumentedStorageAdaptor;
+import me.cortex.voxy.common.storage.other.MirroringStorageAdaptor;
 import me.cortex.voxy.common.world.WorldEngine;
+import me.cortex.voxy.common.world.service.SectionEvictionService;
 import me.cortex.voxy.client.importers.WorldImporter;
 import net.minecraft.client.MinecraftClient;
 import net.minecraft.client.gui.hud.ClientBossBar;
@@ -25,7 +33,9 @@ import org.joml.Matrix4f;
 import org.lwjgl.opengl.GL11;
 
 import java.io.File;
+import java.nio.file.Files;
 import java.util.*;
+import java.util.concurrent.CancellationException;
 
 import static org.lwjgl.opengl.GL30C.GL_DRAW_FRAMEBUFFER_BINDING;
 
@@ -56,8 +66,18 @@ public class VoxelCore {
     //private final Thread shutdownThread = new Thread(this::shutdown);
 
     private WorldImporter importer;
+    private final ContextSelectionSystem.Selection worldSelection;
+    private Thread storageMigration;
+    //Set on shutdown so a running migration or export stops instead of holding up leaving the world
+    private volatile boolean cancelStorageMigration;
+    private static final int MAX_MIGRATION_CATCH_UP_PASSES = 8;
+    private static final int MIGRATION_CATCH_UP_THRESHOLD = 4096;
+    private final SectionEvictionService evictionService;
     public VoxelCore(ContextSelectionSystem.Selection worldSelection) {
+        this.worldSelection = worldSelection;
         this.world = worldSelection.createEngine();
+        //Only the level 0 and 1 sections are evicted so the coarse levels keep distant terrain rendering
+        this.evictionService = this.world.startEvictionService(worldSelection::getDiskQuota, 1, 60);
         var cfg = worldSelection.getConfig();
         System.out.println("Initializing voxy core");
 
@@ -143,6 +163,7 @@ public class VoxelCore {
             //this.renderTracker.addLvl0(0,6,0);
         }
         this.distanceTracker.setCenter(camera.getBlockPos().getX(), camera.getBlockPos().getY(), camera.getBlockPos().getZ());
+        this.evictionService.recordPosition(camera.getBlockPos().getX(), camera.getBlockPos().getZ());
         this.renderer.setupRender(frustum, camera);
     }
 
@@ -216,9 +237,16 @@ public class VoxelCore {
         debug.add("Saving service tasks: " + this.world.savingService.getTaskCount());
         debug.add("Render service tasks: " + this.renderGen.getTaskCount());
          */
-        debug.add("I/S/R tasks: " + this.world.ingestService.getTaskCount() + "/"+this.world.savingService.getTaskCount()+"/"+this.renderGen.getTaskCount());
+        debug.add("I/S/R/IO tasks: " + this.world.ingestService.getTaskCount() + "/"+this.world.savingService.getTaskCount()+"/"+this.renderGen.getTaskCount()+"/"+this.world.storageIO.getTaskCount());
         debug.add("Loaded cache sizes: " + Arrays.toString(this.world.getLoadedSectionCacheSizes()));
         debug.add("Mesh cache count: " + this.renderGen.getMeshCacheCount());
+        for (var backend : this.world.storage.collectAllBackends()) {
+            if (backend instanceof InstrumentedStorageAdaptor instrumented) {
+                instrumented.addDebugInfo(debug);
+            } else if (backend instanceof CompressionStorageAdaptor compression) {
+                compression.addDebugInfo(debug);
+            }
+        }
         this.renderer.addDebugData(debug);
     }
 
@@ -236,6 +264,11 @@ public class VoxelCore {
             System.out.println("Shutting down importer");
             try {this.importer.shutdown();this.importer = null;} catch (Exception e) {System.err.println(e);}
         }
+        if (this.storageMigration != null) {
+            System.out.println("Cancelling storage migration");
+            this.cancelStorageMigration = true;
+            try {this.storageMigration.join();} catch (Exception e) {System.err.println(e);}
+        }
         System.out.println("Shutting down voxel core");
         try {this.renderGen.shutdown();} catch (Exception e) {System.err.println(e);}
         System.out.println("Render gen shut down");
@@ -272,6 +305,86 @@ public class VoxelCore {
         return true;
     }
 
+    //Copies the worlds storage into the storage config of the given world config file, on success the world is
+    // switched over to the new storage the next time it is loaded. Saving continues while copying, the sections saved
+    // meanwhile are recorded and copied again afterwards, then the new storage mirrors every write until shutdown
+    public boolean startStorageMigration(String configFile) {
+        if (this.storageMigration != null && this.storageMigration.isAlive()) {
+            return false;
+        }
+        if (!(this.world.storage instanceof MirroringStorageAdaptor mirroring)) {
+            return false;
+        }
+        var file = this.worldSelection.getSelectionFolder().resolve(configFile);
+        this.storageMigration = new Thread(() -> {
+            StorageBackend destination = null;
+            try {
+                var config = Serialization.GSON.fromJson(Files.readString(file), ContextSelectionSystem.WorldConfig.class);
+                destination = this.worldSelection.createStorageBackend(config.storageConfig);
+                mirroring.startRecording();
+                this.world.storage.flush();
+                int writers = Math.max(1, Runtime.getRuntime().availableProcessors()/2);
+                new StorageMigrator(this.world.storage, destination, writers).run(VoxelCore::sendChatMessage, () -> this.cancelStorageMigration);
+
+                //Catch up without stopping saving until little is left, the last pass stops writes while it runs
+                int copied = Integer.MAX_VALUE;
+                for (int pass = 0; pass < MAX_MIGRATION_CATCH_UP_PASSES && copied > MIGRATION_CATCH_UP_THRESHOLD; pass++) {
+                    copied = mirroring.catchUp(destination, false, () -> this.cancelStorageMigration);
+                }
+                mirroring.catchUp(destination, true, () -> this.cancelStorageMigration);
+                //Now owned by the mirroring adaptor and closed with the world storage
+                destination = null;
+
+                this.worldSelection.getConfig().storageConfig = config.storageConfig;
+                this.worldSelection.save();
+                sendChatMessage("Voxy storage migration finished, the new storage will be used after rejoining");
+            } catch (Exception e) {
+                if (e instanceof CancellationException) {
+                    System.out.println("Voxy storage migration cancelled");
+                } else {
+                    e.printStackTrace();
+                    sendChatMessage("Voxy storage migration failed: " + e.getMessage());
+                }
+                mirroring.stopRecording();
+                if (destination != null) {
+                    try {destination.close();} catch (Exception ex) {System.err.println(ex);}
+                }
+            }
+        });
+        this.storageMigration.setName("Voxy storage migration");
+        this.storageMigration.start();
+        return true;
+    }
+
+    //Writes the worlds storage into a packed archive that can be distributed and used as the onMiss storage of a
+    // ReadonlyCachingLayer, runs on the same thread slot as migrations so only one of them runs at a time
+    public boolean startArchiveExport(String archiveFile) {
+        if (this.storageMigration != null && this.storageMigration.isAlive()) {
+            return false;
+        }
+        var file = this.worldSelection.getSelectionFolder().resolve(archiveFile);
+        this.storageMigration = new Thread(() -> {
+            try {
+                this.world.storage.flush();
+                PackedArchiveWriter.export(this.world.storage, file, PackedArchiveWriter.DEFAULT_COMPRESSION_LEVEL, VoxelCore::sendChatMessage, () -> this.cancelStorageMigration);
+            } catch (CancellationException e) {
+                System.out.println("Voxy archive export cancelled");
+            } catch (Exception e) {
+                e.printStackTrace();
+                sendChatMessage("Voxy archive export failed: " + e.getMessage());
+            }
+        });
+        this.storageMigration.setName("Voxy archive export");
+        this.storageMigration.start();
+        return true;
+    }
+
+    //Doesnt wait for the client thread, which may itself be waiting for the migration thread on shutdown
+    private static void sendChatMessage(String msg) {
+        System.out.println(msg);
+        MinecraftClient.getInstance().execute(() -> MinecraftClient.getInstance().inGameHud.getChatHud().addMessage(Text.literal(msg)));
+    }
+
     public WorldEngine getWorldEngine() {
         return this.world;
     }
@@ -8,7 +8,10 @@ import me.cortex.voxy.common.world.WorldSection;
 import net.minecraft.client.MinecraftClient;
 import net.minecraft.text.Text;
 
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.Executor;
 import java.util.concurrent.Semaphore;
 import java.util.function.Consumer;
 import java.util.function.Supplier;
@@ -18,12 +21,22 @@ import java.util.function.ToIntFunction;
 public class RenderGenerationService {
 
     public interface TaskChecker {boolean check(int lvl, int x, int y, int z);}
-    private record BuildTask(Supplier<WorldSection> sectionSupplier) {}
+    private record BuildTask(Supplier<CompletableFuture<WorldSection>> sectionSupplier) {}
+    private record LoadedTask(BuildTask task, WorldSection section) {}
 
     private volatile boolean running = true;
     private final Thread[] workers;
 
     private final Long2ObjectLinkedOpenHashMap<BuildTask> taskQueue = new Long2ObjectLinkedOpenHashMap<>();
+    //Tasks whose section finished loading asynchronously, each one holds a permit in the task counter
+    private final ConcurrentLinkedDeque<LoadedTask> loadedQueue = new ConcurrentLinkedDeque<>();
+    //Work handed to the workers through the executor, e.g. deserializing a section read by the storage io threads,
+    // each one holds a permit in the task counter
+    private final ConcurrentLinkedDeque<Runnable> executorQueue = new ConcurrentLinkedDeque<>();
+    private final Executor executor = command -> {
+        this.executorQueue.add(command);
+        this.taskCounter.release();
+    };
 
     private final Semaphore taskCounter = new Semaphore(0);
     private final WorldEngine world;
@@ -54,11 +67,44 @@ public class RenderGenerationService {
             this.taskCounter.acquireUninterruptibly();
             if (!this.running) break;
             try {
+                var command = this.executorQueue.poll();
+                if (command != null) {
+                    command.run();
+                    continue;
+                }
                 BuildTask task;
-                synchronized (this.taskQueue) {
-                    task = this.taskQueue.removeFirst();
+                WorldSection section;
+                var loaded = this.loadedQueue.poll();
+                if (loaded != null) {
+                    task = loaded.task;
+                    section = loaded.section;
+                } else {
+                    synchronized (this.taskQueue) {
+                        task = this.taskQueue.removeFirst();
+                    }
+                    var future = task.sectionSupplier.get();
+                    if (!future.isDone()) {
+                        //Dont block the worker on storage io, the task is requeued for meshing once the section is loaded
+                        var pendingTask = task;
+                        future.whenComplete((loadedSection, error) -> {
+                            if (error != null) {
+                                System.err.println(error);
+                                return;
+                            }
+                            if (loadedSection == null) {
+                                return;
+                            }
+                            if (!this.running) {
+                                loadedSection.release();
+                                return;
+                            }
+                            this.loadedQueue.add(new LoadedTask(pendingTask, loadedSection));
+                            this.taskCounter.release();
+                        });
+                        continue;
+                    }
+                    section = future.join();
                 }
-                var section = task.sectionSupplier.get();
                 if (section == null) {
                     continue;
                 }
@@ -132,9 +178,9 @@ public class RenderGenerationService {
                 this.taskCounter.release();
                 return new BuildTask(()->{
                     if (checker.check(lvl, x, y, z)) {
-                        return this.world.acquireIfExists(lvl, x, y, z);
+                        return this.world.acquireIfExistsAsync(lvl, x, y, z, this.executor);
                     } else {
-                        return null;
+                        return CompletableFuture.completedFuture(null);
                     }
                 });
             });
@@ -190,10 +236,23 @@ public class RenderGenerationService {
             }
         } catch (InterruptedException e) {throw new RuntimeException(e);}
 
-        //Cleanup any remaining data
+        //Cleanup any remaining data, queued executor work still runs so the data it holds is freed and the sections it
+        // loads are released
         while (!this.taskQueue.isEmpty()) {
             this.taskQueue.removeFirst();
         }
+        Runnable command;
+        while ((command = this.executorQueue.poll()) != null) {
+            try {
+                command.run();
+            } catch (Exception e) {
+                System.err.println(e);
+            }
+        }
+        LoadedTask loaded;
+        while ((loaded = this.loadedQueue.poll()) != null) {
+            loaded.section.release();
+        }
         this.meshCache.free();
     }
 }
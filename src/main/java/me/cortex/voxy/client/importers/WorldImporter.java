@@ -36,6 +36,9 @@ import java.util.function.Function;
 import java.util.function.Predicate;
 
 public class WorldImporter {
+    //Saved sections buffered in memory between the sorted batches written while bulk loading
+    private static final long BULK_LOAD_BUFFER_SIZE = 256L<<20;
+
     public interface UpdateCallback {
         void update(int finished, int outof);
     }
@@ -109,6 +112,9 @@ public class WorldImporter {
     public void importWorldAsyncStart(File directory, int threads, UpdateCallback updateCallback, Runnable onCompletion) {
         this.worker = new Thread(() -> {
             this.isRunning = true;
+            //Nothing in storage can be overwritten out of order when importing into a fresh world, so the saves can
+            // skip the normal write path and be loaded into the storage in large sorted batches
+            boolean bulkLoad = this.world.storage.iterateSections(0, -1, (key, data) -> false) && this.world.beginBulkLoad(BULK_LOAD_BUFFER_SIZE);
             var workers = new ForkJoinPool(threads);
             var files = directory.listFiles();
             for (var file : files) {
@@ -142,6 +148,13 @@ public class WorldImporter {
             try {
                 workers.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
             } catch (InterruptedException e) {}
+            if (bulkLoad) {
+                //Let the last queued saves go through the bulk path too
+                try {
+                    this.world.savingService.awaitDrained();
+                } catch (InterruptedException e) {}
+                this.world.endBulkLoad();
+            }
             onCompletion.run();
         });
         this.worker.setName("World importer");
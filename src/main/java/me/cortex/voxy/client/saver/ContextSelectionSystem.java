@@ -7,6 +7,7 @@ import me.cortex.voxy.common.storage.config.ConfigBuildCtx;
 import me.cortex.voxy.common.config.Serialization;
 import me.cortex.voxy.common.storage.config.StorageConfig;
 import me.cortex.voxy.common.storage.other.CompressionStorageAdaptor;
+import me.cortex.voxy.common.storage.other.MirroringStorageAdaptor;
 import me.cortex.voxy.common.storage.rocksdb.RocksDBStorageBackend;
 import me.cortex.voxy.common.world.WorldEngine;
 import net.minecraft.client.MinecraftClient;
@@ -14,10 +15,14 @@ import net.minecraft.client.world.ClientWorld;
 import net.minecraft.util.WorldSavePath;
 
 import java.io.IOException;
+import java.nio.file.FileVisitResult;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
+import java.util.concurrent.TimeUnit;
 
 //Sets up a world engine with respect to the world the client is currently loaded into
 // this is a bit tricky as each world has its own config, e.g. storage configuration
@@ -37,9 +42,15 @@ public class ContextSelectionSystem {
         var compressor = new ZSTDCompressor.Config();
         compressor.compressionLevel = 7;
 
+        //Saves are compressed fast while the saver is backed up and recompressed with the main compressor when idle,
+        // an archive compressor can be configured to recompress them harder instead
+        var fastCompressor = new ZSTDCompressor.Config();
+        fastCompressor.compressionLevel = 1;
+
         var compression = new CompressionStorageAdaptor.Config();
         compression.delegate = baseDB;
         compression.compressor = compressor;
+        compression.fastCompressor = fastCompressor;
 
         config.storageConfig = compression;
         DEFAULT_STORAGE_CONFIG = Serialization.GSON.toJson(config);
@@ -50,10 +61,15 @@ public class ContextSelectionSystem {
     }
 
     public static class Selection {
+        //The other caches only change while they are open, so what they take up on disk is only measured rarely
+        private static final long OTHER_CACHES_REFRESH_INTERVAL = TimeUnit.MINUTES.toNanos(30);
+
         private final Path selectionFolder;
         private final String worldId;
 
         private WorldConfig config;
+        private long otherCachesSize = -1;
+        private long otherCachesMeasured;
 
         public Selection(Path selectionFolder, String worldId) {
             this.selectionFolder = selectionFolder;
@@ -89,15 +105,21 @@ public class ContextSelectionSystem {
         }
 
         public StorageBackend createStorageBackend() {
+            return this.createStorageBackend(this.config.storageConfig);
+        }
+
+        //Builds a storage config in the context of this selection, e.g. the destination of a storage migration
+        public StorageBackend createStorageBackend(StorageConfig storageConfig) {
             var ctx = new ConfigBuildCtx();
             ctx.setProperty(ConfigBuildCtx.BASE_SAVE_PATH, this.selectionFolder.toString());
             ctx.setProperty(ConfigBuildCtx.WORLD_IDENTIFIER, this.worldId);
             ctx.pushPath(ConfigBuildCtx.DEFAULT_STORAGE_PATH);
-            return this.config.storageConfig.build(ctx);
+            return storageConfig.build(ctx);
         }
 
+        //The storage is wrapped so a live migration can catch up on the sections saved while it copies
         public WorldEngine createEngine() {
-            return new WorldEngine(this.createStorageBackend(), VoxyConfig.CONFIG.ingestThreads, VoxyConfig.CONFIG.savingThreads, 5);
+            return new WorldEngine(new MirroringStorageAdaptor(this.createStorageBackend()), VoxyConfig.CONFIG.ingestThreads, VoxyConfig.CONFIG.savingThreads, VoxyConfig.CONFIG.ioThreads, 5);
         }
 
         //Saves the config for the world selection or something, need to figure out how to make it work with dimensional configs maybe?
@@ -116,12 +138,69 @@ public class ContextSelectionSystem {
         public WorldConfig getConfig() {
             return this.config;
         }
+
+        public Path getSelectionFolder() {
+            return this.selectionFolder;
+        }
+
+        //The disk quota of the worlds storage in bytes, compared against the size the storage reports. Multiplayer
+        // caches share the global quota so what the other caches take up on disk is taken off it. The worlds own
+        // folder is left out of that, its size comes from its storage and its files dont shrink when sections are
+        // evicted (e.g. lmdb keeps its high water mark) so counting them would keep the world over the quota no
+        // matter how much is evicted
+        public synchronized long getDiskQuota() {
+            long quota = VoxyConfig.CONFIG.worldDiskQuotaMB > 0 ? (long) VoxyConfig.CONFIG.worldDiskQuotaMB<<20 : Long.MAX_VALUE;
+            var cacheFolder = getCacheFolder();
+            if (VoxyConfig.CONFIG.globalDiskQuotaMB > 0 && this.selectionFolder.startsWith(cacheFolder)) {
+                long now = System.nanoTime();
+                if (this.otherCachesSize < 0 || now - this.otherCachesMeasured > OTHER_CACHES_REFRESH_INTERVAL) {
+                    this.otherCachesSize = getFolderSize(cacheFolder, this.selectionFolder.resolve(this.worldId));
+                    this.otherCachesMeasured = now;
+                }
+                quota = Math.min(quota, Math.max(0, ((long) VoxyConfig.CONFIG.globalDiskQuotaMB<<20) - this.otherCachesSize));
+            }
+            return quota;
+        }
+    }
+
+    private static Path getCacheFolder() {
+        return MinecraftClient.getInstance().runDirectory.toPath().resolve(".voxy").resolve("saves");
+    }
+
+    //Size of the files in the folder, without going into the excluded folder
+    private static long getFolderSize(Path folder, Path excluded) {
+        long[] size = new long[1];
+        try {
+            Files.walkFileTree(folder, new SimpleFileVisitor<>() {
+                @Override
+                public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) {
+                    return dir.equals(excluded) ? FileVisitResult.SKIP_SUBTREE : FileVisitResult.CONTINUE;
+                }
+
+                @Override
+                public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+                    if (attrs.isRegularFile()) {
+                        size[0] += attrs.size();
+                    }
+                    return FileVisitResult.CONTINUE;
+                }
+
+                @Override
+                public FileVisitResult visitFileFailed(Path file, IOException exc) {
+                    //Files of other caches can be deleted while they are walked
+                    return FileVisitResult.CONTINUE;
+                }
+            });
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+        return size[0];
     }
 
     //Gets dimension independent base world, if singleplayer, its the world name, if multiplayer, its the server ip
     private static Path getBasePath(ClientWorld world) {
         //TODO: improve this
-        Path basePath = MinecraftClient.getInstance().runDirectory.toPath().resolve(".voxy").resolve("saves");
+        Path basePath = getCacheFolder();
         var iserver = MinecraftClient.getInstance().getServer();
         if (iserver != null) {
             basePath = iserver.getSavePath(WorldSavePath.ROOT).resolve("voxy");
@@ -0,0 +1,54 @@
+package me.cortex.voxy.client.saver;
+
+import com.mojang.brigadier.arguments.StringArgumentType;
+import com.mojang.brigadier.builder.LiteralArgumentBuilder;
+import com.mojang.brigadier.context.CommandContext;
+import me.cortex.voxy.client.core.IGetVoxelCore;
+import net.fabricmc.fabric.api.client.command.v2.ClientCommandManager;
+import net.fabricmc.fabric.api.client.command.v2.FabricClientCommandSource;
+import net.minecraft.client.MinecraftClient;
+import net.minecraft.text.Text;
+
+public class StorageMigrationCommand {
+    //The config file is a world config, relative to the folder of the current worlds config.json, its storage config
+    // must resolve to a different location than the current one. Exports write a packed archive to the given file, also
+    // relative to that folder
+    public static LiteralArgumentBuilder<FabricClientCommandSource> register() {
+        return ClientCommandManager.literal("voxy").then(
+                ClientCommandManager.literal("storage")
+                        .then(ClientCommandManager.literal("migrate")
+                                .then(ClientCommandManager.argument("config_file", StringArgumentType.string())
+                                        .executes(StorageMigrationCommand::migrate)))
+                        .then(ClientCommandManager.literal("export")
+                                .then(ClientCommandManager.argument("archive_file", StringArgumentType.string())
+                                        .executes(StorageMigrationCommand::export))));
+    }
+
+    private static int migrate(CommandContext<FabricClientCommandSource> ctx) {
+        var core = ((IGetVoxelCore) MinecraftClient.getInstance().worldRenderer).getVoxelCore();
+        if (core == null) {
+            ctx.getSource().sendError(Text.literal("Voxy is not running"));
+            return 1;
+        }
+        if (!core.startStorageMigration(ctx.getArgument("config_file", String.class))) {
+            ctx.getSource().sendError(Text.literal("A storage migration is already running"));
+            return 1;
+        }
+        ctx.getSource().sendFeedback(Text.literal("Voxy storage migration started"));
+        return 0;
+    }
+
+    private static int export(CommandContext<FabricClientCommandSource> ctx) {
+        var core = ((IGetVoxelCore) MinecraftClient.getInstance().worldRenderer).getVoxelCore();
+        if (core == null) {
+            ctx.getSource().sendError(Text.literal("Voxy is not running"));
+            return 1;
+        }
+        if (!core.startArchiveExport(ctx.getArgument("archive_file", String.class))) {
+            ctx.getSource().sendError(Text.literal("A storage migration or export is already running"));
+            return 1;
+        }
+        ctx.getSource().sendFeedback(Text.literal("Voxy archive export started"));
+        return 0;
+    }
+}
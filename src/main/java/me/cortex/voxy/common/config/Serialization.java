@@ -14,6 +14,7 @@ import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.lang.reflect.Method;
 import java.lang.reflect.Modifier;
+import java.nio.file.FileSystems;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.util.*;
@@ -96,8 +97,7 @@ public class Serialization {
         Map<Class<?>, GsonConfigSerialization<?>> serializers = new HashMap<>();
 
         Set<String> clazzs = new LinkedHashSet<>();
-        var path = FabricLoader.getInstance().getModContainer("voxy").get().getRootPaths().get(0);
-        clazzs.addAll(collectAllClasses(path, BASE_SEARCH_PACKAGE));
+        clazzs.addAll(collectAllClasses(getRootPath(), BASE_SEARCH_PACKAGE));
         clazzs.addAll(collectAllClasses(BASE_SEARCH_PACKAGE));
         int count = 0;
         outer:
@@ -160,6 +160,24 @@ public class Serialization {
         System.out.println("Registered " + count + " config types");
     }
 
+    //Outside of fabric, e.g. when running one of the standalone storage tools, the classes are found from where
+    // this class was loaded
+    private static Path getRootPath() {
+        try {
+            return FabricLoader.getInstance().getModContainer("voxy").get().getRootPaths().get(0);
+        } catch (Throwable e) {
+            try {
+                var location = Path.of(Serialization.class.getProtectionDomain().getCodeSource().getLocation().toURI());
+                if (Files.isDirectory(location)) {
+                    return location;
+                }
+                return FileSystems.newFileSystem(location).getPath("/");
+            } catch (Exception ex) {
+                throw new RuntimeException("Failed to locate the voxy classes", ex);
+            }
+        }
+    }
+
     private static List<String> collectAllClasses(String pack) {
         try {
             InputStream stream = Serialization.class.getClassLoader()
@@ -0,0 +1,9 @@
+package me.cortex.voxy.common.storage;
+
+import java.nio.ByteBuffer;
+
+//Receives a borrowed view of some data, the buffer is only valid for the duration of the call
+// and must not be freed, modified or retained by the consumer
+public interface ByteBufferConsumer {
+    void accept(ByteBuffer data);
+}
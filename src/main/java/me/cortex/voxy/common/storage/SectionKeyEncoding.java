@@ -0,0 +1,87 @@
+package me.cortex.voxy.common.storage;
+
+import me.cortex.voxy.common.world.WorldEngine;
+
+//Encodings of the section keys stored in a backend. The 4 spare low bits of a stored key tag the encoding it was
+// written with, so any layer can get back the section position of a stored key without knowing how it was written
+public final class SectionKeyEncoding {
+    public static final int LEGACY_TAG = 0;
+    public static final int MORTON_TAG = 1;
+
+    private SectionKeyEncoding() {}
+
+    //Converts a stored key of any encoding back into a WorldEngine section key
+    public static long toWorldKey(long storedKey) {
+        return (storedKey & 0xF) == MORTON_TAG ? decodeMorton(storedKey) : storedKey;
+    }
+
+    //Layout: lvl(4) | high(32) | low(24) | tag(4), the low 8 bits of x, z and y are interleaved as xzy triples
+    // into low and the remaining 16 bits of x and z as xz pairs into high. Sign bits are flipped so that
+    // negative coordinates sort next to positive ones
+    public static long encodeMorton(long key) {
+        long x = (WorldEngine.getX(key)^0x800000)&0xFFFFFF;
+        long y = (WorldEngine.getY(key)^0x80)&0xFF;
+        long z = (WorldEngine.getZ(key)^0x800000)&0xFFFFFF;
+        long low = spread3(x&0xFF)|(spread3(z&0xFF)<<1)|(spread3(y)<<2);
+        long high = spread2(x>>>8)|(spread2(z>>>8)<<1);
+        return (((long) WorldEngine.getLevel(key))<<60)|(high<<28)|(low<<4)|MORTON_TAG;
+    }
+
+    public static long decodeMorton(long key) {
+        long low = (key>>>4)&0xFFFFFF;
+        long high = (key>>>28)&0xFFFFFFFFL;
+        int x = (int) (compact3(low)|(compact2(high)<<8));
+        int z = (int) (compact3(low>>>1)|(compact2(high>>>1)<<8));
+        int y = (int) compact3(low>>>2);
+        return WorldEngine.getWorldSectionId((int) (key>>>60), x^0x800000, y^0x80, z^0x800000);
+    }
+
+    //Spreads the low 16 bits so there is 1 empty bit between each
+    private static long spread2(long v) {
+        v &= 0xFFFF;
+        v = (v|(v<<8))&0x00FF00FFL;
+        v = (v|(v<<4))&0x0F0F0F0FL;
+        v = (v|(v<<2))&0x33333333L;
+        v = (v|(v<<1))&0x55555555L;
+        return v;
+    }
+
+    private static long compact2(long v) {
+        v &= 0x55555555L;
+        v = (v|(v>>>1))&0x33333333L;
+        v = (v|(v>>>2))&0x0F0F0F0FL;
+        v = (v|(v>>>4))&0x00FF00FFL;
+        v = (v|(v>>>8))&0x0000FFFFL;
+        return v;
+    }
+
+    //Spreads the low 8 bits so there are 2 empty bits between each
+    private static long spread3(long v) {
+        v &= 0xFF;
+        v = (v|(v<<8))&0x0000F00FL;
+        v = (v|(v<<4))&0x000C30C3L;
+        v = (v|(v<<2))&0x00249249L;
+        return v;
+    }
+
+    private static long compact3(long v) {
+        v &= 0x00249249L;
+        v = (v|(v>>>2))&0x000C30C3L;
+        v = (v|(v>>>4))&0x0000F00FL;
+        v = (v|(v>>>8))&0x000000FFL;
+        return v;
+    }
+
+    //Sign flipped coordinates of a morton code without the level and tag bits
+    public static long mortonX(long code) {
+        return compact3(code&0xFFFFFF)|(compact2(code>>>24)<<8);
+    }
+
+    public static long mortonZ(long code) {
+        return compact3((code&0xFFFFFF)>>>1)|(compact2(code>>>25)<<8);
+    }
+
+    public static long mortonY(long code) {
+        return compact3((code&0xFFFFFF)>>>2);
+    }
+}
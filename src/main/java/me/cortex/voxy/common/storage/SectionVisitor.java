@@ -0,0 +1,9 @@
+package me.cortex.voxy.common.storage;
+
+import java.nio.ByteBuffer;
+
+//Visits the sections of a backend, the data buffer is a borrowed view that is only valid for the duration of the call
+public interface SectionVisitor {
+    //Return false to stop the iteration
+    boolean visit(long key, ByteBuffer data);
+}
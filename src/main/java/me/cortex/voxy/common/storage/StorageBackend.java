@@ -1,19 +1,186 @@
 package me.cortex.voxy.common.storage;
 
 import it.unimi.dsi.fastutil.ints.Int2ObjectOpenHashMap;
+import it.unimi.dsi.fastutil.longs.LongArrayList;
+import org.lwjgl.system.MemoryUtil;
 
 import java.nio.ByteBuffer;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
+import java.util.function.IntSupplier;
 
 public abstract class StorageBackend {
+    //Id mappings with this type in the top 2 bits of the id are reserved for metadata of the storage layers themselves
+    public static final int METADATA_MAPPING_TYPE = 3;
+    private static final int BULK_LOAD_BATCH_SIZE = 1024;
+    private static final int DELETE_BATCH_SIZE = 1024;
+
+    public static int getMetadataMappingId(int id) {
+        return id | (METADATA_MAPPING_TYPE<<30);
+    }
+
+    public static boolean isMetadataMappingId(int id) {
+        return (id>>>30) == METADATA_MAPPING_TYPE;
+    }
 
     public abstract ByteBuffer getSectionData(long key);
 
     public abstract void setSectionData(long key, ByteBuffer data);
 
+    /**
+     * Reads the section data without transferring ownership to the caller, backends that can hand out a view of
+     * their own memory (e.g. a memory mapped value) should override this to avoid allocating and copying
+     * @param key the section key
+     * @param consumer receives a view of the data that is only valid during the call, it must not read from this
+     *                 backend again from within the callback
+     * @return true if the section existed and the consumer was invoked
+     */
+    public boolean readSectionData(long key, ByteBufferConsumer consumer) {
+        var data = this.getSectionData(key);
+        if (data == null) {
+            return false;
+        }
+        try {
+            consumer.accept(data);
+        } finally {
+            MemoryUtil.memFree(data);
+        }
+        return true;
+    }
+
+    /**
+     * Fetches the data of multiple sections in a single request, backends should override this with a native batch
+     * operation where possible
+     * @param keys the section keys to fetch
+     * @return an array lining up with keys, containing null for sections that dont exist, the caller owns and must free
+     * every returned buffer
+     */
+    public ByteBuffer[] getSectionsData(long[] keys) {
+        var out = new ByteBuffer[keys.length];
+        for (int i = 0; i < keys.length; i++) {
+            out[i] = this.getSectionData(keys[i]);
+        }
+        return out;
+    }
+
+    /**
+     * Stores the data of multiple sections in a single request, backends should override this with a native batch
+     * operation where possible
+     * @param keys the section keys to store
+     * @param data the data for each key, the buffers are not consumed and remain owned by the caller
+     */
+    public void setSectionsData(long[] keys, ByteBuffer[] data) {
+        if (keys.length != data.length) {
+            throw new IllegalArgumentException("Key count does not match data count");
+        }
+        for (int i = 0; i < keys.length; i++) {
+            this.setSectionData(keys[i], data[i]);
+        }
+    }
+
+    /**
+     * Stores a large batch of new or replaced sections, used when bulk loading e.g. importing a world. Backends that
+     * can write sorted data straight into their on disk structures (rocksdb sst ingestion, lmdb append) override this
+     * to skip their normal write path, everything else writes it in batches
+     * @param keys the section keys, unique and sorted ascending as unsigned
+     * @param data the data for each key, the buffers are not consumed and remain owned by the caller
+     */
+    public void bulkLoadSections(long[] keys, ByteBuffer[] data) {
+        if (keys.length != data.length) {
+            throw new IllegalArgumentException("Key count does not match data count");
+        }
+        for (int start = 0; start < keys.length; start += BULK_LOAD_BATCH_SIZE) {
+            int end = Math.min(start + BULK_LOAD_BATCH_SIZE, keys.length);
+            this.setSectionsData(Arrays.copyOfRange(keys, start, end), Arrays.copyOfRange(data, start, end));
+        }
+    }
+
+    /**
+     * Streams all the sections with keys in the inclusive range [fromKey, toKey], keys are compared unsigned so
+     * iterateSections(0, -1, visitor) visits everything. Keys are visited in ascending order where the backend
+     * supports it, adaptors that spread data over multiple backends and hash based backends (e.g. redis) dont
+     * guarantee any order. The visitor must not access this backend from within the callback
+     * @param fromKey the first key of the range, inclusive
+     * @param toKey the last key of the range, inclusive
+     * @param visitor receives each section, returning false stops the iteration
+     * @return false if the iteration was stopped by the visitor
+     */
+    public abstract boolean iterateSections(long fromKey, long toKey, SectionVisitor visitor);
+
+    /**
+     * Like iterateSections but the data can be in the form a lower layer stores it in, e.g. still compressed, so it is
+     * only good for looking at the keys and sizes of the sections. Layers that change the data but not the keys pass
+     * this through to skip decoding every section
+     */
+    public boolean iterateStoredSections(long fromKey, long toKey, SectionVisitor visitor) {
+        return this.iterateSections(fromKey, toKey, visitor);
+    }
+
+    protected static boolean inRange(long key, long fromKey, long toKey) {
+        return Long.compareUnsigned(fromKey, key) <= 0 && Long.compareUnsigned(key, toKey) <= 0;
+    }
+
     public abstract void deleteSectionData(long key);
 
+    /**
+     * Deletes all the sections with keys in the inclusive range [fromKey, toKey], compared unsigned like
+     * iterateSections. Backends that keep their keys ordered override this with a native range delete, everything
+     * else finds the keys by iterating and deletes them one by one
+     */
+    public void deleteSections(long fromKey, long toKey) {
+        var keys = new LongArrayList();
+        long next = fromKey;
+        boolean deleted = false;
+        while (true) {
+            keys.clear();
+            boolean completed = this.iterateSections(next, toKey, (key, data) -> {
+                keys.add(key);
+                return keys.size() < DELETE_BATCH_SIZE;
+            });
+            for (int i = 0; i < keys.size(); i++) {
+                this.deleteSectionData(keys.getLong(i));
+            }
+            deleted |= !keys.isEmpty();
+            long last = keys.isEmpty() ? toKey : keys.getLong(keys.size() - 1);
+            if (!completed && last != toKey) {
+                next = last + 1;
+                continue;
+            }
+            //Backends that dont iterate in order can have skipped keys below the last one, so go over the range
+            // again until a pass finds nothing left
+            if (!deleted) {
+                return;
+            }
+            deleted = false;
+            next = fromKey;
+        }
+    }
+
+    //Approximate amount of disk space used by the sections in bytes, adaptors report the sum of the backends they wrap
+    public long getStorageSize() {
+        long size = 0;
+        for (var child : this.getChildBackends()) {
+            size += child.getStorageSize();
+        }
+        return size;
+    }
+
+    //Gives back the space of deleted sections in backends that dont do that by themselves, this can take a while
+    public void compactSections() {
+        for (var child : this.getChildBackends()) {
+            child.compactSections();
+        }
+    }
+
+    //Where the save backlog of the world using the storage is read from, backends that trade write speed for size
+    // use it to write faster while saving is behind
+    public void setWriteBacklogSource(IntSupplier backlog) {
+        for (var child : this.getChildBackends()) {
+            child.setWriteBacklogSource(backlog);
+        }
+    }
+
     public abstract void putIdMapping(int id, ByteBuffer data);
 
     public abstract Int2ObjectOpenHashMap<byte[]> getIdMappingsData();
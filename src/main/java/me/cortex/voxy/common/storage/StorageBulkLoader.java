@@ -0,0 +1,185 @@
+package me.cortex.voxy.common.storage;
+
+import it.unimi.dsi.fastutil.longs.Long2ObjectOpenHashMap;
+import org.lwjgl.system.MemoryUtil;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.locks.ReentrantLock;
+
+//Buffers the sections written during a bulk load, e.g. a world import, off heap and hands them to the storage in large
+// sorted batches through bulkLoadSections. Sections still buffered are served to reads so the loader can read back what
+// it wrote, and a section rewritten many times during the load (as the mip levels of an import are) only reaches the
+// storage once per batch
+public class StorageBulkLoader {
+    private final StorageBackend storage;
+    private final long maxBufferedBytes;
+
+    private final Object lock = new Object();
+    private Long2ObjectOpenHashMap<ByteBuffer> pending = new Long2ObjectOpenHashMap<>();
+    //The batch being written, still served to reads until it has reached the storage
+    private Long2ObjectOpenHashMap<ByteBuffer> draining = new Long2ObjectOpenHashMap<>();
+    private long bufferedBytes;
+    private boolean finished;
+    //Only one batch is written at a time so that an older payload can never land after a newer one
+    private final ReentrantLock drainLock = new ReentrantLock();
+
+    private long loadedSections;
+
+    public StorageBulkLoader(StorageBackend storage, long maxBufferedBytes) {
+        this.storage = storage;
+        this.maxBufferedBytes = maxBufferedBytes;
+    }
+
+    /**
+     * Buffers copies of the sections, writing out a batch if the buffer is full
+     * @return false if the load has finished, the caller must then write the sections to the storage itself
+     */
+    public boolean add(long[] keys, ByteBuffer[] data) {
+        boolean finished;
+        boolean full = false;
+        synchronized (this.lock) {
+            finished = this.finished;
+            if (!finished) {
+                for (int i = 0; i < keys.length; i++) {
+                    var copy = MemoryUtil.memAlloc(data[i].remaining());
+                    MemoryUtil.memCopy(data[i], copy);
+                    var old = this.pending.put(keys[i], copy);
+                    if (old != null) {
+                        this.bufferedBytes -= old.capacity();
+                        MemoryUtil.memFree(old);
+                    }
+                    this.bufferedBytes += copy.capacity();
+                }
+                full = this.bufferedBytes >= this.maxBufferedBytes;
+            }
+        }
+        if (finished) {
+            //Wait for the final batch so a direct write cant be overwritten by an older payload still in it
+            this.drainLock.lock();
+            this.drainLock.unlock();
+            return false;
+        }
+        if (full) {
+            this.drain();
+        }
+        return true;
+    }
+
+    //Returns a copy of the buffered section owned by the caller, or null if it isnt buffered
+    public ByteBuffer getSectionData(long key) {
+        synchronized (this.lock) {
+            var data = this.pending.get(key);
+            if (data == null) {
+                data = this.draining.get(key);
+            }
+            if (data == null) {
+                return null;
+            }
+            var copy = MemoryUtil.memAlloc(data.remaining());
+            MemoryUtil.memCopy(data, copy);
+            return copy;
+        }
+    }
+
+    public boolean readSectionData(long key, ByteBufferConsumer consumer) {
+        var data = this.getSectionData(key);
+        if (data == null) {
+            return false;
+        }
+        try {
+            consumer.accept(data);
+        } finally {
+            MemoryUtil.memFree(data);
+        }
+        return true;
+    }
+
+    //Drops the buffered copy of the section, the caller deletes it from the storage
+    public void delete(long key) {
+        synchronized (this.lock) {
+            var old = this.pending.remove(key);
+            if (old != null) {
+                this.bufferedBytes -= old.capacity();
+                MemoryUtil.memFree(old);
+            }
+        }
+    }
+
+    private void drain() {
+        this.drainLock.lock();
+        try {
+            Long2ObjectOpenHashMap<ByteBuffer> batch;
+            synchronized (this.lock) {
+                if (this.pending.isEmpty()) {
+                    return;
+                }
+                batch = this.pending;
+                this.draining = batch;
+                this.pending = new Long2ObjectOpenHashMap<>();
+                this.bufferedBytes = 0;
+            }
+
+            long[] keys = batch.keySet().toLongArray();
+            //Unsigned order, sorting signed and rotating the negative keys to the end
+            Arrays.sort(keys);
+            int firstNegative = 0;
+            while (firstNegative < keys.length && keys[firstNegative] < 0) {
+                firstNegative++;
+            }
+            long[] sorted = new long[keys.length];
+            System.arraycopy(keys, firstNegative, sorted, 0, keys.length - firstNegative);
+            System.arraycopy(keys, 0, sorted, keys.length - firstNegative, firstNegative);
+            var data = new ByteBuffer[sorted.length];
+            for (int i = 0; i < sorted.length; i++) {
+                data[i] = batch.get(sorted[i]);
+            }
+
+            try {
+                this.storage.bulkLoadSections(sorted, data);
+                this.loadedSections += sorted.length;
+            } catch (RuntimeException e) {
+                //Keep the batch buffered so it is retried, unless the sections were written again meanwhile
+                synchronized (this.lock) {
+                    for (int i = 0; i < sorted.length; i++) {
+                        if (!this.pending.containsKey(sorted[i])) {
+                            this.pending.put(sorted[i], data[i]);
+                            this.bufferedBytes += data[i].capacity();
+                            data[i] = null;
+                        }
+                    }
+                }
+                throw e;
+            } finally {
+                synchronized (this.lock) {
+                    this.draining = new Long2ObjectOpenHashMap<>();
+                }
+                for (var buffer : data) {
+                    if (buffer != null) {
+                        MemoryUtil.memFree(buffer);
+                    }
+                }
+            }
+        } finally {
+            this.drainLock.unlock();
+        }
+    }
+
+    /**
+     * Writes out everything still buffered, once this returns all further writes must go to the storage directly
+     * @return the number of sections that went through the bulk load path
+     */
+    public long finish() {
+        this.drainLock.lock();
+        try {
+            synchronized (this.lock) {
+                this.finished = true;
+            }
+            this.drain();
+        } finally {
+            this.drainLock.unlock();
+        }
+        this.storage.flush();
+        return this.loadedSections;
+    }
+}
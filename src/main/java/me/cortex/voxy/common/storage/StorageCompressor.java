@@ -1,5 +1,7 @@
 package me.cortex.voxy.common.storage;
 
+import org.lwjgl.system.MemoryUtil;
+
 import java.nio.ByteBuffer;
 
 public interface StorageCompressor {
@@ -7,5 +9,33 @@ public interface StorageCompressor {
 
     ByteBuffer decompress(ByteBuffer saveData);
 
+    /**
+     * Decompresses into a caller provided buffer starting at its position
+     * @param saveData the compressed data
+     * @param destination the buffer to decompress into
+     * @return the decompressed size, or -1 if the destination did not have enough space remaining
+     */
+    default int decompress(ByteBuffer saveData, ByteBuffer destination) {
+        var decompressed = this.decompress(saveData);
+        try {
+            int size = decompressed.remaining();
+            if (size > destination.remaining()) {
+                return -1;
+            }
+            MemoryUtil.memCopy(decompressed, destination);
+            return size;
+        } finally {
+            MemoryUtil.memFree(decompressed);
+        }
+    }
+
+    /**
+     * Called by the adaptor using the compressor with the backend its compressed data is stored in, so that the
+     * compressor can keep state of its own alongside the data in the backends id mappings
+     */
+    default void attach(StorageBackend storage) {
+
+    }
+
     void close();
 }
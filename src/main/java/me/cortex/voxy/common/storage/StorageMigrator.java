@@ -0,0 +1,260 @@
+package me.cortex.voxy.common.storage;
+
+import com.google.gson.JsonParser;
+import me.cortex.voxy.common.config.Serialization;
+import me.cortex.voxy.common.storage.config.ConfigBuildCtx;
+import me.cortex.voxy.common.storage.config.StorageConfig;
+import org.lwjgl.system.MemoryUtil;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.BooleanSupplier;
+import java.util.function.Consumer;
+
+//Copies every section and id mapping from one backend to another. The source is streamed by a single reader into
+// batches that a pool of writers stores in parallel, the queue between them is bounded so memory use is bounded
+// no matter the size of the world. Sections pass through the full adaptor stack of both sides, so a different
+// compressor or key encoding in the destination config is applied on the way
+public class StorageMigrator {
+    private static final int BATCH_SIZE = 256;
+    private static final int BATCH_BYTES = 16<<20;
+    private static final long PROGRESS_INTERVAL = TimeUnit.SECONDS.toNanos(5);
+
+    private static final class Batch {
+        private final long[] keys = new long[BATCH_SIZE];
+        private final ByteBuffer[] data = new ByteBuffer[BATCH_SIZE];
+        private int count;
+        private int bytes;
+
+        private void add(long key, ByteBuffer data) {
+            var copy = MemoryUtil.memAlloc(data.remaining());
+            MemoryUtil.memCopy(data, copy);
+            this.keys[this.count] = key;
+            this.data[this.count++] = copy;
+            this.bytes += copy.remaining();
+        }
+
+        private boolean isFull() {
+            return this.count == BATCH_SIZE || this.bytes >= BATCH_BYTES;
+        }
+
+        private void free() {
+            for (int i = 0; i < this.count; i++) {
+                MemoryUtil.memFree(this.data[i]);
+            }
+        }
+    }
+    private static final Batch END = new Batch();
+
+    public record Result(long sections, long bytes, int idMappings, long nanos) {
+        public double sectionsPerSecond() {
+            return this.sections/(this.nanos/1e9);
+        }
+
+        public double megabytesPerSecond() {
+            return this.bytes/(this.nanos/1e9)/1e6;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("Migrated %d sections (%.1f MB) and %d id mappings in %.1fs, %.0f sections/s %.1f MB/s",
+                    this.sections, this.bytes/1e6, this.idMappings, this.nanos/1e9, this.sectionsPerSecond(), this.megabytesPerSecond());
+        }
+    }
+
+    private final StorageBackend source;
+    private final StorageBackend destination;
+    private final int writerCount;
+
+    private final ArrayBlockingQueue<Batch> queue;
+    private final AtomicLong written = new AtomicLong();
+    private final AtomicReference<Throwable> failure = new AtomicReference<>();
+
+    public StorageMigrator(StorageBackend source, StorageBackend destination, int writerCount) {
+        this.source = source;
+        this.destination = destination;
+        this.writerCount = writerCount;
+        this.queue = new ArrayBlockingQueue<>(writerCount*2);
+    }
+
+    /**
+     * Runs the migration on the calling thread plus the writer threads, the destination must not contain any sections
+     * @param progress receives progress and the final report
+     * @return the totals of the migration once all sections have been written and the counts verified
+     */
+    public Result run(Consumer<String> progress) {
+        return this.run(progress, () -> false);
+    }
+
+    /**
+     * Runs the migration like {@link #run(Consumer)} but stops reading once cancelled returns true, the sections
+     * already queued are still written and a CancellationException is thrown afterwards
+     */
+    public Result run(Consumer<String> progress, BooleanSupplier cancelled) {
+        if (!this.destination.iterateStoredSections(0, -1, (key, data) -> false)) {
+            throw new IllegalStateException("Destination storage already contains sections");
+        }
+        long start = System.nanoTime();
+
+        //Metadata mappings belong to the storage layers of the source and are rebuilt by the destinations own layers
+        int idMappings = 0;
+        for (var entry : this.source.getIdMappingsData().int2ObjectEntrySet()) {
+            if (StorageBackend.isMetadataMappingId(entry.getIntKey())) {
+                continue;
+            }
+            var data = MemoryUtil.memAlloc(entry.getValue().length);
+            data.put(0, entry.getValue());
+            this.destination.putIdMapping(entry.getIntKey(), data);
+            MemoryUtil.memFree(data);
+            idMappings++;
+        }
+
+        var writers = new Thread[this.writerCount];
+        for (int i = 0; i < writers.length; i++) {
+            writers[i] = new Thread(this::writeWorker);
+            writers[i].setName("Storage migration writer #" + i);
+            writers[i].start();
+        }
+
+        long[] read = new long[2];
+        long[] lastReport = {start};
+        Batch[] current = {new Batch()};
+        try {
+            this.source.iterateSections(0, -1, (key, data) -> {
+                read[0]++;
+                read[1] += data.remaining();
+                current[0].add(key, data);
+                if (current[0].isFull()) {
+                    this.submit(current[0]);
+                    current[0] = new Batch();
+                }
+                long now = System.nanoTime();
+                if (now - lastReport[0] > PROGRESS_INTERVAL) {
+                    lastReport[0] = now;
+                    progress.accept(String.format("Migrating storage: read %d sections, written %d, %.0f sections/s",
+                            read[0], this.written.get(), this.written.get()/((now - start)/1e9)));
+                }
+                return this.failure.get() == null && !cancelled.getAsBoolean();
+            });
+            if (current[0].count != 0) {
+                this.submit(current[0]);
+                current[0] = null;
+            }
+        } finally {
+            if (current[0] != null) {
+                current[0].free();
+            }
+            for (int i = 0; i < writers.length; i++) {
+                this.submit(END);
+            }
+            for (var writer : writers) {
+                try {
+                    writer.join();
+                } catch (InterruptedException e) {
+                    throw new RuntimeException(e);
+                }
+            }
+        }
+
+        if (this.failure.get() != null) {
+            throw new RuntimeException("Storage migration failed", this.failure.get());
+        }
+        if (cancelled.getAsBoolean()) {
+            throw new CancellationException("Storage migration was cancelled");
+        }
+        this.destination.flush();
+
+        long[] stored = new long[1];
+        //Only the keys are counted, so the stored form is walked without decoding every section
+        this.destination.iterateStoredSections(0, -1, (key, data) -> {
+            stored[0]++;
+            return true;
+        });
+        if (stored[0] != read[0] || this.written.get() != read[0]) {
+            throw new IllegalStateException("Section count mismatch after migration, read " + read[0] + " wrote " + this.written.get() + " destination has " + stored[0]);
+        }
+
+        var result = new Result(read[0], read[1], idMappings, System.nanoTime() - start);
+        progress.accept(result.toString());
+        return result;
+    }
+
+    private void submit(Batch batch) {
+        try {
+            this.queue.put(batch);
+        } catch (InterruptedException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private void writeWorker() {
+        while (true) {
+            Batch batch;
+            try {
+                batch = this.queue.take();
+            } catch (InterruptedException e) {
+                throw new RuntimeException(e);
+            }
+            if (batch == END) {
+                return;
+            }
+            try {
+                if (this.failure.get() == null) {
+                    long[] keys = batch.keys;
+                    ByteBuffer[] data = batch.data;
+                    if (batch.count != BATCH_SIZE) {
+                        keys = Arrays.copyOf(keys, batch.count);
+                        data = Arrays.copyOf(data, batch.count);
+                    }
+                    this.destination.setSectionsData(keys, data);
+                    this.written.addAndGet(batch.count);
+                }
+            } catch (Throwable e) {
+                this.failure.compareAndSet(null, e);
+            } finally {
+                batch.free();
+            }
+        }
+    }
+
+    //Builds the storage config of a world config file, which either holds the storage config directly or in its
+    // storageConfig field, paths are resolved relative to the folder of the file like a world selection does
+    public static StorageBackend buildFromFile(Path file, String worldId) throws IOException {
+        var json = JsonParser.parseString(Files.readString(file)).getAsJsonObject();
+        if (json.has("storageConfig")) {
+            json = json.getAsJsonObject("storageConfig");
+        }
+        var config = Serialization.GSON.fromJson(json, StorageConfig.class);
+        var ctx = new ConfigBuildCtx();
+        ctx.setProperty(ConfigBuildCtx.BASE_SAVE_PATH, file.toAbsolutePath().getParent().toString());
+        ctx.setProperty(ConfigBuildCtx.WORLD_IDENTIFIER, worldId);
+        ctx.pushPath(ConfigBuildCtx.DEFAULT_STORAGE_PATH);
+        return config.build(ctx);
+    }
+
+    // usage: StorageMigrator <source config> <destination config> <world id> [writer threads]
+    public static void main(String[] args) throws IOException {
+        if (args.length < 3) {
+            System.err.println("Usage: StorageMigrator <source config> <destination config> <world id> [writer threads]");
+            return;
+        }
+        Serialization.init();
+        int writers = args.length > 3 ? Integer.parseInt(args[3]) : Math.max(1, Runtime.getRuntime().availableProcessors()/2);
+        var source = buildFromFile(Path.of(args[0]), args[2]);
+        var destination = buildFromFile(Path.of(args[1]), args[2]);
+        try {
+            new StorageMigrator(source, destination, writers).run(System.out::println);
+        } finally {
+            source.close();
+            destination.close();
+        }
+    }
+}
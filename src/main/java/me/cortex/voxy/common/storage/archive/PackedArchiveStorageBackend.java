@@ -0,0 +1,344 @@
+package me.cortex.voxy.common.storage.archive;
+
+import it.unimi.dsi.fastutil.ints.Int2ObjectOpenHashMap;
+import it.unimi.dsi.fastutil.ints.IntArrays;
+import me.cortex.voxy.common.storage.ByteBufferConsumer;
+import me.cortex.voxy.common.storage.SectionVisitor;
+import me.cortex.voxy.common.storage.StorageBackend;
+import me.cortex.voxy.common.storage.compressors.ZSTDCompressor;
+import me.cortex.voxy.common.storage.config.ConfigBuildCtx;
+import me.cortex.voxy.common.storage.config.StorageConfig;
+import org.lwjgl.system.MemoryUtil;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+
+//Read only storage served from a packed archive written by PackedArchiveWriter, meant to be shipped pre generated and
+// used as the onMiss backend of a ReadonlyCachingLayer. The archive is memory mapped and its sparse index, the first
+// key of every block, is kept in memory so a read is one binary search over the index plus decompressing the whole
+// block the section is in, up to the block size the archive was written with (1MB by default)
+//
+// Archive layout, all little endian:
+//  header: magic, version
+//  blocks: zstd frames, each holding int count, long keys[count], int offsets[count+1], then the payloads
+//  index: per block long firstKey, long offset, int compressedSize, int size
+//  id mappings: per mapping int id, int length, bytes
+//  footer: long indexOffset, int blockCount, long mappingsOffset, int mappingCount, long sectionCount, int maxBlockSize, magic
+public class PackedArchiveStorageBackend extends StorageBackend {
+    static final int MAGIC = 0x41505856;//VXPA
+    static final int VERSION = 1;
+    static final int HEADER_SIZE = 8;
+    static final int FOOTER_SIZE = 40;
+    //Blocks are mapped in segments as a single mapping cant be larger than 2GB, a block never spans two segments
+    private static final long MAX_SEGMENT_SIZE = Integer.MAX_VALUE;
+
+    private final long fileSize;
+    private final long sectionCount;
+    private final int maxBlockSize;
+
+    private final long[] blockFirstKeys;
+    private final int[] blockSegments;
+    private final int[] blockOffsets;
+    private final int[] blockCompressedSizes;
+    private final int[] blockSizes;
+    private final MappedByteBuffer[] segments;
+    private final Int2ObjectOpenHashMap<byte[]> idMappings = new Int2ObjectOpenHashMap<>();
+
+    private final ZSTDCompressor decompressor = new ZSTDCompressor(0);
+    //Per thread buffer a block is decompressed into for point reads
+    private final List<ByteBuffer> scratchBuffers = new ArrayList<>();
+    private final ThreadLocal<ByteBuffer> scratch = ThreadLocal.withInitial(this::createScratch);
+
+    public PackedArchiveStorageBackend(Path path) {
+        try (var channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            this.fileSize = channel.size();
+            if (this.fileSize < HEADER_SIZE + FOOTER_SIZE) {
+                throw new IllegalStateException("Packed archive " + path + " is truncated");
+            }
+            var header = readFully(channel, 0, HEADER_SIZE);
+            var footer = readFully(channel, this.fileSize - FOOTER_SIZE, FOOTER_SIZE);
+            if (header.getInt(0) != MAGIC || footer.getInt(FOOTER_SIZE - 4) != MAGIC) {
+                throw new IllegalStateException(path + " is not a packed archive");
+            }
+            if (header.getInt(4) != VERSION) {
+                throw new IllegalStateException("Packed archive " + path + " has unsupported version " + header.getInt(4));
+            }
+            long indexOffset = footer.getLong(0);
+            int blockCount = footer.getInt(8);
+            long mappingsOffset = footer.getLong(12);
+            int mappingCount = footer.getInt(20);
+            this.sectionCount = footer.getLong(24);
+            this.maxBlockSize = footer.getInt(32);
+
+            var index = readFully(channel, indexOffset, blockCount*24);
+            this.blockFirstKeys = new long[blockCount];
+            this.blockSegments = new int[blockCount];
+            this.blockOffsets = new int[blockCount];
+            this.blockCompressedSizes = new int[blockCount];
+            this.blockSizes = new int[blockCount];
+            var segments = new ArrayList<MappedByteBuffer>();
+            long segmentStart = HEADER_SIZE;
+            for (int i = 0; i < blockCount; i++) {
+                long offset = index.getLong(i*24+8);
+                this.blockFirstKeys[i] = index.getLong(i*24);
+                this.blockCompressedSizes[i] = index.getInt(i*24+16);
+                this.blockSizes[i] = index.getInt(i*24+20);
+                if (offset + this.blockCompressedSizes[i] - segmentStart > MAX_SEGMENT_SIZE) {
+                    segments.add(channel.map(FileChannel.MapMode.READ_ONLY, segmentStart, offset - segmentStart));
+                    segmentStart = offset;
+                }
+                this.blockSegments[i] = segments.size();
+                this.blockOffsets[i] = (int) (offset - segmentStart);
+            }
+            segments.add(channel.map(FileChannel.MapMode.READ_ONLY, segmentStart, indexOffset - segmentStart));
+            this.segments = segments.toArray(new MappedByteBuffer[0]);
+
+            var mappings = readFully(channel, mappingsOffset, (int) (this.fileSize - FOOTER_SIZE - mappingsOffset));
+            for (int i = 0; i < mappingCount; i++) {
+                int id = mappings.getInt();
+                var data = new byte[mappings.getInt()];
+                mappings.get(data);
+                this.idMappings.put(id, data);
+            }
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private static ByteBuffer readFully(FileChannel channel, long position, int size) throws IOException {
+        var buffer = ByteBuffer.allocate(size).order(ByteOrder.LITTLE_ENDIAN);
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) < 0) {
+                throw new IllegalStateException("Packed archive is truncated");
+            }
+        }
+        return buffer.flip();
+    }
+
+    private ByteBuffer createScratch() {
+        var buffer = MemoryUtil.memAlloc(this.maxBlockSize).order(ByteOrder.LITTLE_ENDIAN);
+        synchronized (this.scratchBuffers) {
+            this.scratchBuffers.add(buffer);
+        }
+        return buffer;
+    }
+
+    //The last block whose first key is at or before the key, -1 if the key is before all of them
+    private int findBlock(long key) {
+        int low = 0;
+        int high = this.blockFirstKeys.length - 1;
+        while (low <= high) {
+            int mid = (low + high)>>>1;
+            if (Long.compareUnsigned(this.blockFirstKeys[mid], key) <= 0) {
+                low = mid + 1;
+            } else {
+                high = mid - 1;
+            }
+        }
+        return low - 1;
+    }
+
+    private void decompressBlock(int block, ByteBuffer destination) {
+        var compressed = this.segments[this.blockSegments[block]].slice(this.blockOffsets[block], this.blockCompressedSizes[block]);
+        destination.clear();
+        if (this.decompressor.decompress(compressed, destination) != this.blockSizes[block]) {
+            throw new IllegalStateException("Packed archive block " + block + " is corrupt");
+        }
+    }
+
+    //Index of the key within a decompressed block, -1 if it isnt in it
+    private static int findEntry(ByteBuffer block, long key) {
+        int low = 0;
+        int high = block.getInt(0) - 1;
+        while (low <= high) {
+            int mid = (low + high)>>>1;
+            int cmp = Long.compareUnsigned(block.getLong(4 + mid*8), key);
+            if (cmp == 0) {
+                return mid;
+            } else if (cmp < 0) {
+                low = mid + 1;
+            } else {
+                high = mid - 1;
+            }
+        }
+        return -1;
+    }
+
+    private static ByteBuffer getEntry(ByteBuffer block, int entry) {
+        int count = block.getInt(0);
+        int offsets = 4 + count*8;
+        int payloads = offsets + (count+1)*4;
+        int start = block.getInt(offsets + entry*4);
+        int end = block.getInt(offsets + (entry+1)*4);
+        //slice always comes out big endian, sections are read in native order like memAlloc buffers
+        return block.slice(payloads + start, end - start).order(ByteOrder.nativeOrder());
+    }
+
+    private static ByteBuffer copy(ByteBuffer data) {
+        var copy = MemoryUtil.memAlloc(data.remaining());
+        MemoryUtil.memCopy(data, copy);
+        return copy;
+    }
+
+    @Override
+    public ByteBuffer getSectionData(long key) {
+        int block = this.findBlock(key);
+        if (block == -1) {
+            return null;
+        }
+        var buffer = this.scratch.get();
+        this.decompressBlock(block, buffer);
+        int entry = findEntry(buffer, key);
+        return entry == -1 ? null : copy(getEntry(buffer, entry));
+    }
+
+    @Override
+    public boolean readSectionData(long key, ByteBufferConsumer consumer) {
+        int block = this.findBlock(key);
+        if (block == -1) {
+            return false;
+        }
+        var buffer = this.scratch.get();
+        this.decompressBlock(block, buffer);
+        int entry = findEntry(buffer, key);
+        if (entry == -1) {
+            return false;
+        }
+        consumer.accept(getEntry(buffer, entry));
+        return true;
+    }
+
+    //Keys are read grouped by block so each block is decompressed once no matter how many of its sections are asked for
+    @Override
+    public ByteBuffer[] getSectionsData(long[] keys) {
+        var result = new ByteBuffer[keys.length];
+        int[] blocks = new int[keys.length];
+        int[] order = new int[keys.length];
+        for (int i = 0; i < keys.length; i++) {
+            blocks[i] = this.findBlock(keys[i]);
+            order[i] = i;
+        }
+        IntArrays.quickSort(order, (a, b) -> Integer.compare(blocks[a], blocks[b]));
+        var buffer = this.scratch.get();
+        int current = -1;
+        for (int i : order) {
+            if (blocks[i] == -1) {
+                continue;
+            }
+            if (blocks[i] != current) {
+                current = blocks[i];
+                this.decompressBlock(current, buffer);
+            }
+            int entry = findEntry(buffer, keys[i]);
+            if (entry != -1) {
+                result[i] = copy(getEntry(buffer, entry));
+            }
+        }
+        return result;
+    }
+
+    @Override
+    public boolean iterateSections(long fromKey, long toKey, SectionVisitor visitor) {
+        if (this.blockFirstKeys.length == 0 || Long.compareUnsigned(fromKey, toKey) > 0) {
+            return true;
+        }
+        //Uses its own buffer so the visitor can still do point reads on other backends sharing the thread
+        var buffer = MemoryUtil.memAlloc(this.maxBlockSize).order(ByteOrder.LITTLE_ENDIAN);
+        try {
+            for (int block = Math.max(0, this.findBlock(fromKey)); block < this.blockFirstKeys.length; block++) {
+                if (Long.compareUnsigned(this.blockFirstKeys[block], toKey) > 0) {
+                    break;
+                }
+                this.decompressBlock(block, buffer);
+                int count = buffer.getInt(0);
+                for (int entry = 0; entry < count; entry++) {
+                    long key = buffer.getLong(4 + entry*8);
+                    if (Long.compareUnsigned(key, fromKey) < 0) {
+                        continue;
+                    }
+                    if (Long.compareUnsigned(key, toKey) > 0) {
+                        return true;
+                    }
+                    if (!visitor.visit(key, getEntry(buffer, entry))) {
+                        return false;
+                    }
+                }
+            }
+            return true;
+        } finally {
+            MemoryUtil.memFree(buffer);
+        }
+    }
+
+    @Override
+    public void setSectionData(long key, ByteBuffer data) {
+        throw new UnsupportedOperationException("Packed archives are read only");
+    }
+
+    @Override
+    public void deleteSectionData(long key) {
+        throw new UnsupportedOperationException("Packed archives are read only");
+    }
+
+    @Override
+    public void putIdMapping(int id, ByteBuffer data) {
+        throw new UnsupportedOperationException("Packed archives are read only");
+    }
+
+    @Override
+    public Int2ObjectOpenHashMap<byte[]> getIdMappingsData() {
+        var out = new Int2ObjectOpenHashMap<byte[]>();
+        for (var entry : this.idMappings.int2ObjectEntrySet()) {
+            out.put(entry.getIntKey(), entry.getValue().clone());
+        }
+        return out;
+    }
+
+    @Override
+    public long getStorageSize() {
+        return this.fileSize;
+    }
+
+    public long getSectionCount() {
+        return this.sectionCount;
+    }
+
+    @Override
+    public void flush() {
+
+    }
+
+    //The mappings are released when they are garbage collected, java has no way to unmap them explicitly
+    @Override
+    public void close() {
+        this.decompressor.close();
+        synchronized (this.scratchBuffers) {
+            this.scratchBuffers.forEach(MemoryUtil::memFree);
+            this.scratchBuffers.clear();
+        }
+    }
+
+    public static class Config extends StorageConfig {
+        //The archive file, relative to the storage path
+        public String file = "world.vxa";
+
+        @Override
+        public StorageBackend build(ConfigBuildCtx ctx) {
+            ctx.pushPath(this.file);
+            var path = ctx.substituteString(ctx.resolvePath());
+            ctx.popPath();
+            return new PackedArchiveStorageBackend(Path.of(path));
+        }
+
+        public static String getConfigTypeName() {
+            return "PackedArchive";
+        }
+    }
+}
@@ -0,0 +1,287 @@
+package me.cortex.voxy.common.storage.archive;
+
+import it.unimi.dsi.fastutil.ints.Int2ObjectLinkedOpenHashMap;
+import it.unimi.dsi.fastutil.ints.IntArrayList;
+import it.unimi.dsi.fastutil.longs.LongArrayList;
+import me.cortex.voxy.common.config.Serialization;
+import me.cortex.voxy.common.storage.StorageBackend;
+import me.cortex.voxy.common.storage.StorageMigrator;
+import me.cortex.voxy.common.storage.compressors.ZSTDCompressor;
+import org.lwjgl.system.MemoryUtil;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
+import java.util.function.Consumer;
+
+//Writes a packed archive read by PackedArchiveStorageBackend, see it for the layout. Sections must be added in
+// ascending unsigned key order, they are grouped into blocks of about blockSize bytes that are compressed together,
+// which compresses much better than compressing every section on its own. The archive is written to a temporary file
+// that is only moved into place once it is complete
+public class PackedArchiveWriter implements AutoCloseable {
+    //A serialized section is always over 64KB, so blocks have to be much larger than that to hold more than one. At 1MB
+    // a block holds about 15 sections, keeping the index small at the cost of decompressing up to 1MB per point read
+    public static final int DEFAULT_BLOCK_SIZE = 1<<20;
+    public static final int DEFAULT_COMPRESSION_LEVEL = 12;
+    private static final int EXPORT_BATCH_SIZE = 256;
+    private static final long PROGRESS_INTERVAL = TimeUnit.SECONDS.toNanos(5);
+
+    private final Path path;
+    private final Path tempPath;
+    private final FileChannel channel;
+    private final ZSTDCompressor compressor;
+    private final int blockSize;
+
+    private final LongArrayList blockKeys = new LongArrayList();
+    private final IntArrayList blockOffsets = new IntArrayList();
+    private ByteBuffer blockPayload;
+
+    //Index entries of the written blocks
+    private final LongArrayList indexKeys = new LongArrayList();
+    private final LongArrayList indexOffsets = new LongArrayList();
+    private final IntArrayList indexCompressedSizes = new IntArrayList();
+    private final IntArrayList indexSizes = new IntArrayList();
+
+    private final Int2ObjectLinkedOpenHashMap<byte[]> mappings = new Int2ObjectLinkedOpenHashMap<>();
+
+    private long position;
+    private long lastKey;
+    private long sectionCount;
+    private int maxBlockSize;
+    private boolean finished;
+
+    public PackedArchiveWriter(Path path, int blockSize, int compressionLevel) {
+        this.path = path;
+        this.tempPath = path.resolveSibling(path.getFileName() + ".tmp");
+        this.blockSize = blockSize;
+        this.compressor = new ZSTDCompressor(compressionLevel);
+        this.blockPayload = MemoryUtil.memAlloc(blockSize);
+        try {
+            this.channel = FileChannel.open(this.tempPath, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+            var header = ByteBuffer.allocate(PackedArchiveStorageBackend.HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+            header.putInt(PackedArchiveStorageBackend.MAGIC).putInt(PackedArchiveStorageBackend.VERSION);
+            this.write(header.flip());
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private void write(ByteBuffer data) throws IOException {
+        while (data.hasRemaining()) {
+            this.position += this.channel.write(data);
+        }
+    }
+
+    public void addIdMapping(int id, byte[] data) {
+        this.mappings.put(id, data.clone());
+    }
+
+    public void addSection(long key, ByteBuffer data) {
+        if (this.sectionCount != 0 && Long.compareUnsigned(key, this.lastKey) <= 0) {
+            throw new IllegalArgumentException("Sections must be added in ascending key order");
+        }
+        int size = data.remaining();
+        if (!this.blockKeys.isEmpty() && this.blockPayload.position() + size > this.blockSize) {
+            this.writeBlock();
+        }
+        if (this.blockPayload.remaining() < size) {
+            //A section larger than the block size gets a block to itself
+            this.blockPayload = MemoryUtil.memRealloc(this.blockPayload, this.blockPayload.position() + size);
+        }
+        this.blockKeys.add(key);
+        this.blockOffsets.add(this.blockPayload.position());
+        MemoryUtil.memCopy(MemoryUtil.memAddress(data), MemoryUtil.memAddress(this.blockPayload), size);
+        this.blockPayload.position(this.blockPayload.position() + size);
+        this.lastKey = key;
+        this.sectionCount++;
+    }
+
+    private void writeBlock() {
+        int count = this.blockKeys.size();
+        int payloads = 4 + count*8 + (count+1)*4;
+        int size = payloads + this.blockPayload.position();
+        var block = MemoryUtil.memAlloc(size).order(ByteOrder.LITTLE_ENDIAN);
+        ByteBuffer compressed = null;
+        try {
+            block.putInt(0, count);
+            for (int i = 0; i < count; i++) {
+                block.putLong(4 + i*8, this.blockKeys.getLong(i));
+                block.putInt(4 + count*8 + i*4, this.blockOffsets.getInt(i));
+            }
+            block.putInt(4 + count*8 + count*4, this.blockPayload.position());
+            MemoryUtil.memCopy(MemoryUtil.memAddress(this.blockPayload, 0), MemoryUtil.memAddress(block, payloads), this.blockPayload.position());
+
+            compressed = this.compressor.compress(block);
+            this.indexKeys.add(this.blockKeys.getLong(0));
+            this.indexOffsets.add(this.position);
+            this.indexCompressedSizes.add(compressed.remaining());
+            this.indexSizes.add(size);
+            this.maxBlockSize = Math.max(this.maxBlockSize, size);
+            this.write(compressed);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        } finally {
+            MemoryUtil.memFree(block);
+            if (compressed != null) {
+                MemoryUtil.memFree(compressed);
+            }
+        }
+        this.blockKeys.clear();
+        this.blockOffsets.clear();
+        this.blockPayload.clear();
+        if (this.blockPayload.capacity() > this.blockSize) {
+            this.blockPayload = MemoryUtil.memRealloc(this.blockPayload, this.blockSize);
+        }
+    }
+
+    //Writes the remaining block, the index, the id mappings and the footer then moves the archive into place
+    public void finish() {
+        if (!this.blockKeys.isEmpty()) {
+            this.writeBlock();
+        }
+        try {
+            long indexOffset = this.position;
+            var index = ByteBuffer.allocate(this.indexKeys.size()*24).order(ByteOrder.LITTLE_ENDIAN);
+            for (int i = 0; i < this.indexKeys.size(); i++) {
+                index.putLong(this.indexKeys.getLong(i))
+                        .putLong(this.indexOffsets.getLong(i))
+                        .putInt(this.indexCompressedSizes.getInt(i))
+                        .putInt(this.indexSizes.getInt(i));
+            }
+            this.write(index.flip());
+
+            long mappingsOffset = this.position;
+            for (var entry : this.mappings.int2ObjectEntrySet()) {
+                var mapping = ByteBuffer.allocate(8 + entry.getValue().length).order(ByteOrder.LITTLE_ENDIAN);
+                mapping.putInt(entry.getIntKey()).putInt(entry.getValue().length).put(entry.getValue());
+                this.write(mapping.flip());
+            }
+
+            var footer = ByteBuffer.allocate(PackedArchiveStorageBackend.FOOTER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+            footer.putLong(indexOffset)
+                    .putInt(this.indexKeys.size())
+                    .putLong(mappingsOffset)
+                    .putInt(this.mappings.size())
+                    .putLong(this.sectionCount)
+                    .putInt(this.maxBlockSize)
+                    .putInt(PackedArchiveStorageBackend.MAGIC);
+            this.write(footer.flip());
+            this.channel.force(true);
+            this.channel.close();
+            Files.move(this.tempPath, this.path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+        this.finished = true;
+    }
+
+    public long getSectionCount() {
+        return this.sectionCount;
+    }
+
+    public long getSize() {
+        return this.position;
+    }
+
+    //Frees the writer, if it wasnt finished the partial archive is deleted
+    @Override
+    public void close() {
+        MemoryUtil.memFree(this.blockPayload);
+        this.compressor.close();
+        if (!this.finished) {
+            try {
+                this.channel.close();
+                Files.deleteIfExists(this.tempPath);
+            } catch (IOException e) {
+                System.err.println("Failed to delete partial archive " + this.tempPath + ": " + e);
+            }
+        }
+    }
+
+    /**
+     * Exports every section and id mapping of the storage into a packed archive. The keys are gathered and sorted
+     * first, so this works for backends that dont iterate in order, then the sections are fetched in sorted batches
+     * @param progress receives progress and the final report
+     * @param cancelled checked between batches, once it returns true the partial archive is deleted and a
+     *                  CancellationException is thrown
+     * @return the number of sections exported
+     */
+    public static long export(StorageBackend storage, Path path, int compressionLevel, Consumer<String> progress, BooleanSupplier cancelled) {
+        long start = System.nanoTime();
+        var keys = new LongArrayList();
+        //Only the keys are needed, so nothing is decoded
+        storage.iterateStoredSections(0, -1, (key, data) -> {
+            keys.add(key);
+            return !cancelled.getAsBoolean();
+        });
+        keys.unstableSort(Long::compareUnsigned);
+
+        try (var writer = new PackedArchiveWriter(path, DEFAULT_BLOCK_SIZE, compressionLevel)) {
+            //Metadata mappings belong to the storage layers of the source, the archive stores sections as they come
+            // out of the top of the storage stack
+            for (var entry : storage.getIdMappingsData().int2ObjectEntrySet()) {
+                if (!StorageBackend.isMetadataMappingId(entry.getIntKey())) {
+                    writer.addIdMapping(entry.getIntKey(), entry.getValue());
+                }
+            }
+
+            long bytes = 0;
+            long lastReport = start;
+            for (int i = 0; i < keys.size(); i += EXPORT_BATCH_SIZE) {
+                if (cancelled.getAsBoolean()) {
+                    throw new CancellationException("Archive export was cancelled");
+                }
+                long[] batch = Arrays.copyOfRange(keys.elements(), i, Math.min(i + EXPORT_BATCH_SIZE, keys.size()));
+                var data = storage.getSectionsData(batch);
+                try {
+                    for (int j = 0; j < batch.length; j++) {
+                        //Deleted since the keys were gathered
+                        if (data[j] != null) {
+                            bytes += data[j].remaining();
+                            writer.addSection(batch[j], data[j]);
+                        }
+                    }
+                } finally {
+                    for (var buffer : data) {
+                        if (buffer != null) {
+                            MemoryUtil.memFree(buffer);
+                        }
+                    }
+                }
+                long now = System.nanoTime();
+                if (now - lastReport > PROGRESS_INTERVAL) {
+                    lastReport = now;
+                    progress.accept(String.format("Exporting archive: %d/%d sections", i + batch.length, keys.size()));
+                }
+            }
+            writer.finish();
+            progress.accept(String.format("Exported %d sections (%.1f MB) to a %.1f MB archive in %.1fs",
+                    writer.getSectionCount(), bytes/1e6, writer.getSize()/1e6, (System.nanoTime() - start)/1e9));
+            return writer.getSectionCount();
+        }
+    }
+
+    // usage: PackedArchiveWriter <source config> <world id> <archive file> [compression level]
+    public static void main(String[] args) throws IOException {
+        if (args.length < 3) {
+            System.err.println("Usage: PackedArchiveWriter <source config> <world id> <archive file> [compression level]");
+            return;
+        }
+        Serialization.init();
+        var source = StorageMigrator.buildFromFile(Path.of(args[0]), args[1]);
+        try {
+            export(source, Path.of(args[2]), args.length > 3 ? Integer.parseInt(args[3]) : DEFAULT_COMPRESSION_LEVEL, System.out::println, () -> false);
+        } finally {
+            source.close();
+        }
+    }
+}
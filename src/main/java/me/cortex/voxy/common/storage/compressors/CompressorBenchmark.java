@@ -0,0 +1,112 @@
+package me.cortex.voxy.common.storage.compressors;
+
+import me.cortex.voxy.common.config.Serialization;
+import me.cortex.voxy.common.storage.StorageBackend;
+import me.cortex.voxy.common.storage.StorageCompressor;
+import me.cortex.voxy.common.storage.StorageMigrator;
+import org.lwjgl.system.MemoryUtil;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+//Compares the ratio and speed of the compressors on real section data
+// usage: CompressorBenchmark <world config> <world id> [section count]
+// the storage is built from the world config file like StorageMigrator does, so sections are read back with whatever
+// compression the world was saved with
+public class CompressorBenchmark {
+    private static final int ROUNDS = 3;
+
+    public static void main(String[] args) throws IOException {
+        if (args.length < 2) {
+            System.err.println("Usage: CompressorBenchmark <world config> <world id> [section count]");
+            return;
+        }
+        Serialization.init();
+        var storage = StorageMigrator.buildFromFile(Path.of(args[0]), args[1]);
+        try {
+            run(storage, args.length > 2 ? Integer.parseInt(args[2]) : 4096, System.out);
+        } finally {
+            storage.close();
+        }
+    }
+
+    //Samples up to maxSections sections from the storage and reports each compressor on them
+    public static void run(StorageBackend storage, int maxSections, PrintStream out) {
+        List<ByteBuffer> sections = new ArrayList<>();
+        long[] totalSize = new long[1];
+        storage.iterateSections(0, -1, (key, data) -> {
+            var copy = MemoryUtil.memAlloc(data.remaining());
+            MemoryUtil.memCopy(data, copy);
+            sections.add(copy);
+            totalSize[0] += copy.remaining();
+            return sections.size() < maxSections;
+        });
+        if (sections.isEmpty()) {
+            out.println("No sections to benchmark");
+            return;
+        }
+        out.printf("Benchmarking %d sections, %.2f MB uncompressed%n", sections.size(), totalSize[0]/1e6);
+        out.printf("%-10s %8s %14s %16s%n", "Compressor", "Ratio", "Compress MB/s", "Decompress MB/s");
+
+        try {
+            bench("LZ4", new LZ4Compressor(0), sections, totalSize[0], out);
+            for (int level : new int[]{3, 6, 9, 12}) {
+                bench("LZ4-HC " + level, new LZ4Compressor(level), sections, totalSize[0], out);
+            }
+            for (int level = 1; level <= 19; level++) {
+                bench("ZSTD " + level, new ZSTDCompressor(level), sections, totalSize[0], out);
+            }
+        } finally {
+            sections.forEach(MemoryUtil::memFree);
+        }
+    }
+
+    private static void bench(String name, StorageCompressor compressor, List<ByteBuffer> sections, long totalSize, PrintStream out) {
+        var compressed = new ByteBuffer[sections.size()];
+        int maxSize = 0;
+        for (var section : sections) {
+            maxSize = Math.max(maxSize, section.remaining());
+        }
+        var scratch = MemoryUtil.memAlloc(maxSize);
+        try {
+            long compressTime = Long.MAX_VALUE;
+            long decompressTime = Long.MAX_VALUE;
+            long compressedSize = 0;
+            //Best of a few rounds so a single slow round doesnt skew the result
+            for (int round = 0; round < ROUNDS; round++) {
+                compressedSize = 0;
+                long start = System.nanoTime();
+                for (int i = 0; i < compressed.length; i++) {
+                    if (compressed[i] != null) {
+                        MemoryUtil.memFree(compressed[i]);
+                    }
+                    compressed[i] = compressor.compress(sections.get(i));
+                    compressedSize += compressed[i].remaining();
+                }
+                compressTime = Math.min(compressTime, System.nanoTime() - start);
+
+                start = System.nanoTime();
+                for (var data : compressed) {
+                    if (compressor.decompress(data, scratch.clear()) == -1) {
+                        throw new IllegalStateException(name + " produced data larger than the source section");
+                    }
+                }
+                decompressTime = Math.min(decompressTime, System.nanoTime() - start);
+            }
+            out.printf("%-10s %8.3f %14.1f %16.1f%n", name, (double) totalSize/compressedSize,
+                    totalSize/(compressTime/1e9)/1e6, totalSize/(decompressTime/1e9)/1e6);
+        } finally {
+            for (var data : compressed) {
+                if (data != null) {
+                    MemoryUtil.memFree(data);
+                }
+            }
+            MemoryUtil.memFree(scratch);
+            compressor.close();
+        }
+    }
+}
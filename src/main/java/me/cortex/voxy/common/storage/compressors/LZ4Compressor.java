@@ -0,0 +1,99 @@
+package me.cortex.voxy.common.storage.compressors;
+
+import me.cortex.voxy.common.storage.StorageCompressor;
+import me.cortex.voxy.common.storage.config.CompressorConfig;
+import me.cortex.voxy.common.storage.config.ConfigBuildCtx;
+import org.lwjgl.system.MemoryUtil;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.lwjgl.util.lz4.LZ4.*;
+import static org.lwjgl.util.lz4.LZ4HC.*;
+
+//LZ4 block compression, trades ratio for much faster decompression than zstd. Level 0 uses plain LZ4, higher
+// levels use LZ4-HC which compresses slower but decompresses just as fast. LZ4 blocks dont record their
+// decompressed size so it is stored in a 4 byte header
+public class LZ4Compressor implements StorageCompressor {
+    private static final int HEADER_SIZE = 4;
+
+    private final int level;
+    //Per thread compression state, all allocations are tracked so they can be freed on close
+    private final List<ByteBuffer> states = new ArrayList<>();
+    private final ThreadLocal<ByteBuffer> state = ThreadLocal.withInitial(this::createState);
+
+    public LZ4Compressor(int level) {
+        this.level = level;
+    }
+
+    private ByteBuffer createState() {
+        var state = MemoryUtil.memAlloc(this.level == 0 ? LZ4_sizeofState() : LZ4_sizeofStateHC());
+        synchronized (this.states) {
+            this.states.add(state);
+        }
+        return state;
+    }
+
+    @Override
+    public ByteBuffer compress(ByteBuffer saveData) {
+        int size = saveData.remaining();
+        var compressedData = MemoryUtil.memAlloc(HEADER_SIZE + LZ4_COMPRESSBOUND(size));
+        var body = MemoryUtil.memSlice(compressedData, HEADER_SIZE, compressedData.capacity() - HEADER_SIZE);
+        int compressedSize;
+        if (this.level == 0) {
+            compressedSize = LZ4_compress_fast_extState(this.state.get(), saveData, body, 1);
+        } else {
+            compressedSize = LZ4_compress_HC_extStateHC(this.state.get(), saveData, body, this.level);
+        }
+        if (compressedSize <= 0) {
+            MemoryUtil.memFree(compressedData);
+            throw new IllegalStateException("Failed to compress section data");
+        }
+        compressedData.putInt(0, size);
+        compressedData.limit(HEADER_SIZE + compressedSize);
+        return compressedData;
+    }
+
+    @Override
+    public ByteBuffer decompress(ByteBuffer saveData) {
+        var decompressed = MemoryUtil.memAlloc(saveData.getInt(saveData.position()));
+        this.decompress(saveData, decompressed);
+        return decompressed;
+    }
+
+    @Override
+    public int decompress(ByteBuffer saveData, ByteBuffer destination) {
+        int size = saveData.getInt(saveData.position());
+        if (size > destination.remaining()) {
+            return -1;
+        }
+        var body = MemoryUtil.memSlice(saveData, HEADER_SIZE, saveData.remaining() - HEADER_SIZE);
+        int decompressedSize = LZ4_decompress_safe(body, MemoryUtil.memSlice(destination, 0, size));
+        if (decompressedSize != size) {
+            throw new IllegalStateException("Failed to decompress section data");
+        }
+        return size;
+    }
+
+    @Override
+    public void close() {
+        synchronized (this.states) {
+            this.states.forEach(MemoryUtil::memFree);
+            this.states.clear();
+        }
+    }
+
+    public static class Config extends CompressorConfig {
+        public int compressionLevel;
+
+        @Override
+        public StorageCompressor build(ConfigBuildCtx ctx) {
+            return new LZ4Compressor(this.compressionLevel);
+        }
+
+        public static String getConfigTypeName() {
+            return "LZ4";
+        }
+    }
+}
@@ -8,9 +8,11 @@ import org.lwjgl.system.MemoryUtil;
 import java.nio.ByteBuffer;
 
 import static org.lwjgl.util.zstd.Zstd.*;
+import static org.lwjgl.util.zstd.ZstdErrors.*;
 
 public class ZSTDCompressor implements StorageCompressor {
     private final int level;
+    private final ZSTDContexts contexts = new ZSTDContexts();
 
     public ZSTDCompressor(int level) {
         this.level = level;
@@ -19,7 +21,11 @@ public class ZSTDCompressor implements StorageCompressor {
     @Override
     public ByteBuffer compress(ByteBuffer saveData) {
         ByteBuffer compressedData  = MemoryUtil.memAlloc((int)ZSTD_COMPRESSBOUND(saveData.remaining()));
-        long compressedSize = ZSTD_compress(compressedData, saveData, this.level);
+        long compressedSize = ZSTD_compressCCtx(this.contexts.compressionContext(), compressedData, saveData, this.level);
+        if (ZSTD_isError(compressedSize)) {
+            MemoryUtil.memFree(compressedData);
+            throw new IllegalStateException("Failed to compress section data: " + ZSTD_getErrorName(compressedSize));
+        }
         compressedData.limit((int) compressedSize);
         compressedData.rewind();
         return compressedData;
@@ -27,15 +33,34 @@ public class ZSTDCompressor implements StorageCompressor {
 
     @Override
     public ByteBuffer decompress(ByteBuffer saveData) {
-        var decompressed = MemoryUtil.memAlloc(32*32*32*8*2);
-        long size = ZSTD_decompress(decompressed, saveData);
-        decompressed.limit((int) size);
+        //Frames record their decompressed size so the output can be allocated exactly
+        long size = ZSTD_getFrameContentSize(saveData);
+        if (size == ZSTD_CONTENTSIZE_UNKNOWN || size == ZSTD_CONTENTSIZE_ERROR) {
+            throw new IllegalStateException("Section data does not record its decompressed size");
+        }
+        var decompressed = MemoryUtil.memAlloc((int) size);
+        if (this.decompress(saveData, decompressed) == -1) {
+            MemoryUtil.memFree(decompressed);
+            throw new IllegalStateException("Section data larger than its recorded size");
+        }
         return decompressed;
     }
 
     @Override
-    public void close() {
+    public int decompress(ByteBuffer saveData, ByteBuffer destination) {
+        long size = ZSTD_decompressDCtx(this.contexts.decompressionContext(), destination, saveData);
+        if (ZSTD_isError(size)) {
+            if (ZSTD_getErrorCode(size) == ZSTD_error_dstSize_tooSmall) {
+                return -1;
+            }
+            throw new IllegalStateException("Failed to decompress section data: " + ZSTD_getErrorName(size));
+        }
+        return (int) size;
+    }
 
+    @Override
+    public void close() {
+        this.contexts.free();
     }
 
     public static class Config extends CompressorConfig {
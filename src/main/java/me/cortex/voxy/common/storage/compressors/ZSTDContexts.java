@@ -0,0 +1,43 @@
+package me.cortex.voxy.common.storage.compressors;
+
+import it.unimi.dsi.fastutil.longs.LongArrayList;
+
+import static org.lwjgl.util.zstd.Zstd.*;
+
+//Per thread zstd compression and decompression contexts, reusing them saves zstd allocating its working memory on
+// every call. All contexts are tracked so they can be freed when the compressor is closed, which means callers must
+// use long lived threads, a pool that replaces its threads would keep allocating contexts that are never freed
+final class ZSTDContexts {
+    private final LongArrayList contexts = new LongArrayList();
+    private final ThreadLocal<long[]> local = ThreadLocal.withInitial(this::create);
+
+    private long[] create() {
+        long[] pair = {ZSTD_createCCtx(), ZSTD_createDCtx()};
+        if (pair[0] == 0 || pair[1] == 0) {
+            throw new IllegalStateException("Failed to create zstd contexts");
+        }
+        synchronized (this.contexts) {
+            this.contexts.add(pair[0]);
+            this.contexts.add(pair[1]);
+        }
+        return pair;
+    }
+
+    long compressionContext() {
+        return this.local.get()[0];
+    }
+
+    long decompressionContext() {
+        return this.local.get()[1];
+    }
+
+    void free() {
+        synchronized (this.contexts) {
+            for (int i = 0; i < this.contexts.size(); i += 2) {
+                ZSTD_freeCCtx(this.contexts.getLong(i));
+                ZSTD_freeDCtx(this.contexts.getLong(i+1));
+            }
+            this.contexts.clear();
+        }
+    }
+}
@@ -0,0 +1,308 @@
+package me.cortex.voxy.common.storage.compressors;
+
+import it.unimi.dsi.fastutil.longs.LongArrayList;
+import me.cortex.voxy.common.storage.StorageBackend;
+import me.cortex.voxy.common.storage.StorageCompressor;
+import me.cortex.voxy.common.storage.config.CompressorConfig;
+import me.cortex.voxy.common.storage.config.ConfigBuildCtx;
+import org.lwjgl.system.MemoryUtil;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import static org.lwjgl.util.zstd.Zdict.*;
+import static org.lwjgl.util.zstd.Zstd.*;
+import static org.lwjgl.util.zstd.ZstdErrors.*;
+
+//Zstd compression using a dictionary trained from the worlds own sections. The dictionary is stored in the id mappings
+// of the backend it is attached to so it stays with the world, until it has been trained sections are compressed
+// without one. Training runs on its own thread so saving isnt held up by it, on existing worlds that thread first
+// samples sections from all over the stored keys. Frames record the id of the dictionary they used so both kinds can
+// be decompressed
+public class ZSTDDictCompressor implements StorageCompressor {
+    private static final int DICTIONARY_METADATA_ID = StorageBackend.getMetadataMappingId(2);
+    private static final int SAMPLE_FETCH_BATCH = 256;
+
+    private record Dictionary(int id, long cdict, long ddict) {}
+
+    private final int level;
+    private final int dictionarySize;
+    private final int trainingSamples;
+    private final long maxTrainingBytes;
+    private final ZSTDContexts contexts = new ZSTDContexts();
+
+    private StorageBackend storage;
+    private volatile Dictionary dictionary;
+    private volatile boolean sampling;
+    private final List<ByteBuffer> samples = new ArrayList<>();
+    private long sampleBytes;
+    private Thread trainer;
+    private volatile boolean closing;
+
+    public ZSTDDictCompressor(int level, int dictionarySize, int trainingSamples, long maxTrainingBytes) {
+        this.level = level;
+        this.dictionarySize = dictionarySize;
+        this.trainingSamples = trainingSamples;
+        this.maxTrainingBytes = maxTrainingBytes;
+    }
+
+    @Override
+    public void attach(StorageBackend storage) {
+        this.storage = storage;
+        var stored = storage.getIdMappingsData().get(DICTIONARY_METADATA_ID);
+        if (stored != null) {
+            var data = MemoryUtil.memAlloc(stored.length);
+            data.put(0, stored);
+            this.dictionary = this.loadDictionary(data);
+            MemoryUtil.memFree(data);
+            return;
+        }
+
+        //Sections that are already stored are sampled on the trainer thread so existing worlds get a dictionary
+        // straight away, the samples are also collected from the sections as they are saved
+        this.sampling = true;
+        synchronized (this.samples) {
+            this.trainer = new Thread(this::sampleStored);
+            this.trainer.setDaemon(true);
+            this.trainer.setName("Section dictionary training");
+            this.trainer.start();
+        }
+    }
+
+    //Picks sections uniformly over all the stored keys, the first keys in key order are all in one strip of the
+    // finest level, and only decompresses the ones picked. Trains straight away if that gave enough samples
+    private void sampleStored() {
+        var picked = new LongArrayList(this.trainingSamples);
+        var random = new Random();
+        long[] seen = new long[1];
+        this.storage.iterateStoredSections(0, -1, (key, data) -> {
+            seen[0]++;
+            if (picked.size() < this.trainingSamples) {
+                picked.add(key);
+            } else {
+                long slot = random.nextLong(seen[0]);
+                if (slot < this.trainingSamples) {
+                    picked.set((int) slot, key);
+                }
+            }
+            return !this.closing;
+        });
+        long[] keys = picked.toLongArray();
+        Arrays.sort(keys);
+        boolean complete = false;
+        for (int start = 0; start < keys.length && !complete && !this.closing; start += SAMPLE_FETCH_BATCH) {
+            var data = this.storage.getSectionsData(Arrays.copyOfRange(keys, start, Math.min(start + SAMPLE_FETCH_BATCH, keys.length)));
+            for (var buffer : data) {
+                if (buffer == null) {
+                    continue;
+                }
+                try {
+                    if (!complete) {
+                        var decompressed = this.decompress(buffer);
+                        complete = this.addSample(decompressed);
+                        MemoryUtil.memFree(decompressed);
+                    }
+                } catch (IllegalStateException e) {
+                    //Corrupt sections are dealt with when they are loaded, they just arent sampled
+                } finally {
+                    MemoryUtil.memFree(buffer);
+                }
+            }
+        }
+
+        synchronized (this.samples) {
+            complete |= this.samples.size() >= this.trainingSamples || this.sampleBytes >= this.maxTrainingBytes;
+            if (!complete || this.closing) {
+                //Saves finish collecting the samples and start the training
+                this.trainer = null;
+                return;
+            }
+        }
+        this.train();
+    }
+
+    private Dictionary loadDictionary(ByteBuffer data) {
+        long cdict = ZSTD_createCDict(data, this.level);
+        long ddict = ZSTD_createDDict(data);
+        if (cdict == 0 || ddict == 0) {
+            throw new IllegalStateException("Failed to load zstd dictionary");
+        }
+        return new Dictionary(ZSTD_getDictID_fromDict(data), cdict, ddict);
+    }
+
+    //Returns true once enough samples have been collected to train the dictionary
+    private boolean addSample(ByteBuffer data) {
+        synchronized (this.samples) {
+            if (!this.sampling) {
+                return false;
+            }
+            var copy = MemoryUtil.memAlloc(data.remaining());
+            MemoryUtil.memCopy(data, copy);
+            this.samples.add(copy);
+            this.sampleBytes += copy.remaining();
+            return this.samples.size() >= this.trainingSamples || this.sampleBytes >= this.maxTrainingBytes;
+        }
+    }
+
+    private void startTraining() {
+        synchronized (this.samples) {
+            if (!this.sampling || this.trainer != null) {
+                return;
+            }
+            this.trainer = new Thread(this::train);
+            this.trainer.setDaemon(true);
+            this.trainer.setName("Section dictionary training");
+            this.trainer.start();
+        }
+    }
+
+    private void train() {
+        List<ByteBuffer> samples;
+        long total;
+        synchronized (this.samples) {
+            if (!this.sampling) {
+                return;
+            }
+            this.sampling = false;
+            samples = new ArrayList<>(this.samples);
+            total = this.sampleBytes;
+            this.samples.clear();
+            this.sampleBytes = 0;
+        }
+
+        var sampleData = MemoryUtil.memAlloc((int) total);
+        var sampleSizes = MemoryUtil.memAllocPointer(samples.size());
+        var dictionaryData = MemoryUtil.memAlloc(this.dictionarySize);
+        try {
+            for (var sample : samples) {
+                sampleSizes.put(sample.remaining());
+                sampleData.put(sample);
+                MemoryUtil.memFree(sample);
+            }
+            sampleData.flip();
+            sampleSizes.flip();
+
+            long size = ZDICT_trainFromBuffer(dictionaryData, sampleData, sampleSizes);
+            if (ZDICT_isError(size)) {
+                System.err.println("Failed to train section dictionary, continuing without one: " + ZDICT_getErrorName(size));
+                return;
+            }
+            dictionaryData.limit((int) size);
+            this.storage.putIdMapping(DICTIONARY_METADATA_ID, dictionaryData);
+            this.dictionary = this.loadDictionary(dictionaryData);
+            System.out.println("Trained " + size + " byte section dictionary from " + samples.size() + " sections");
+        } finally {
+            MemoryUtil.memFree(sampleData);
+            MemoryUtil.memFree(sampleSizes);
+            MemoryUtil.memFree(dictionaryData);
+        }
+    }
+
+    @Override
+    public ByteBuffer compress(ByteBuffer saveData) {
+        var dictionary = this.dictionary;
+        if (dictionary == null && this.sampling && this.addSample(saveData)) {
+            //Compressed without the dictionary until the trainer has made one
+            this.startTraining();
+        }
+        ByteBuffer compressedData = MemoryUtil.memAlloc((int)ZSTD_COMPRESSBOUND(saveData.remaining()));
+        long cctx = this.contexts.compressionContext();
+        long compressedSize;
+        if (dictionary == null) {
+            compressedSize = ZSTD_compressCCtx(cctx, compressedData, saveData, this.level);
+        } else {
+            compressedSize = ZSTD_compress_usingCDict(cctx, compressedData, saveData, dictionary.cdict);
+        }
+        if (ZSTD_isError(compressedSize)) {
+            MemoryUtil.memFree(compressedData);
+            throw new IllegalStateException("Failed to compress section data: " + ZSTD_getErrorName(compressedSize));
+        }
+        compressedData.limit((int) compressedSize);
+        compressedData.rewind();
+        return compressedData;
+    }
+
+    @Override
+    public ByteBuffer decompress(ByteBuffer saveData) {
+        long size = ZSTD_getFrameContentSize(saveData);
+        if (size == ZSTD_CONTENTSIZE_UNKNOWN || size == ZSTD_CONTENTSIZE_ERROR) {
+            throw new IllegalStateException("Section data does not record its decompressed size");
+        }
+        var decompressed = MemoryUtil.memAlloc((int) size);
+        if (this.decompress(saveData, decompressed) == -1) {
+            MemoryUtil.memFree(decompressed);
+            throw new IllegalStateException("Section data larger than its recorded size");
+        }
+        return decompressed;
+    }
+
+    @Override
+    public int decompress(ByteBuffer saveData, ByteBuffer destination) {
+        int dictionaryId = ZSTD_getDictID_fromFrame(saveData);
+        long dctx = this.contexts.decompressionContext();
+        long size;
+        if (dictionaryId == 0) {
+            size = ZSTD_decompressDCtx(dctx, destination, saveData);
+        } else {
+            var dictionary = this.dictionary;
+            if (dictionary == null || dictionary.id != dictionaryId) {
+                throw new IllegalStateException("Section data was compressed with unknown dictionary " + dictionaryId);
+            }
+            size = ZSTD_decompress_usingDDict(dctx, destination, saveData, dictionary.ddict);
+        }
+        if (ZSTD_isError(size)) {
+            if (ZSTD_getErrorCode(size) == ZSTD_error_dstSize_tooSmall) {
+                return -1;
+            }
+            throw new IllegalStateException("Failed to decompress section data: " + ZSTD_getErrorName(size));
+        }
+        return (int) size;
+    }
+
+    @Override
+    public void close() {
+        this.closing = true;
+        Thread trainer;
+        synchronized (this.samples) {
+            trainer = this.trainer;
+        }
+        if (trainer != null) {
+            try {
+                trainer.join();
+            } catch (InterruptedException e) {
+                throw new RuntimeException(e);
+            }
+        }
+        this.contexts.free();
+        var dictionary = this.dictionary;
+        if (dictionary != null) {
+            ZSTD_freeCDict(dictionary.cdict);
+            ZSTD_freeDDict(dictionary.ddict);
+            this.dictionary = null;
+        }
+        synchronized (this.samples) {
+            this.sampling = false;
+            this.samples.forEach(MemoryUtil::memFree);
+            this.samples.clear();
+        }
+    }
+
+    public static class Config extends CompressorConfig {
+        public int compressionLevel = 7;
+        public int dictionarySize = 110<<10;
+        public int trainingSamples = 2048;
+        public long maxTrainingBytes = 64L<<20;
+
+        @Override
+        public StorageCompressor build(ConfigBuildCtx ctx) {
+            return new ZSTDDictCompressor(this.compressionLevel, this.dictionarySize, this.trainingSamples, this.maxTrainingBytes);
+        }
+
+        public static String getConfigTypeName() {
+            return "ZSTDDict";
+        }
+    }
+}
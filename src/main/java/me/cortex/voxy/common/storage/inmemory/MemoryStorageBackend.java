@@ -4,7 +4,10 @@ import it.unimi.dsi.fastutil.ints.Int2ObjectMap;
 import it.unimi.dsi.fastutil.ints.Int2ObjectOpenHashMap;
 import it.unimi.dsi.fastutil.longs.Long2ObjectMap;
 import it.unimi.dsi.fastutil.longs.Long2ObjectOpenHashMap;
+import it.unimi.dsi.fastutil.longs.LongArrayList;
 import it.unimi.dsi.fastutil.objects.ObjectCollection;
+import me.cortex.voxy.common.storage.ByteBufferConsumer;
+import me.cortex.voxy.common.storage.SectionVisitor;
 import me.cortex.voxy.common.storage.StorageBackend;
 import me.cortex.voxy.common.storage.config.ConfigBuildCtx;
 import me.cortex.voxy.common.storage.config.StorageConfig;
@@ -48,6 +51,19 @@ public class MemoryStorageBackend extends StorageBackend {
         }
     }
 
+    @Override
+    public boolean readSectionData(long key, ByteBufferConsumer consumer) {
+        var map = this.getMap(key);
+        synchronized (map) {
+            var data = map.get(key);
+            if (data == null) {
+                return false;
+            }
+            consumer.accept(MemoryUtil.memDuplicate(data));
+            return true;
+        }
+    }
+
     @Override
     public void setSectionData(long key, ByteBuffer data) {
         var map = this.getMap(key);
@@ -61,6 +77,33 @@ public class MemoryStorageBackend extends StorageBackend {
         }
     }
 
+    //The maps are unordered so the keys in the range are gathered and sorted first
+    @Override
+    public boolean iterateSections(long fromKey, long toKey, SectionVisitor visitor) {
+        var keys = new LongArrayList();
+        for (var map : this.maps) {
+            synchronized (map) {
+                for (long key : map.keySet()) {
+                    if (inRange(key, fromKey, toKey)) {
+                        keys.add(key);
+                    }
+                }
+            }
+        }
+        keys.unstableSort(Long::compareUnsigned);
+        for (int i = 0; i < keys.size(); i++) {
+            long key = keys.getLong(i);
+            var map = this.getMap(key);
+            synchronized (map) {
+                var data = map.get(key);
+                if (data != null && !visitor.visit(key, MemoryUtil.memDuplicate(data))) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
     @Override
     public void deleteSectionData(long key) {
         var map = this.getMap(key);
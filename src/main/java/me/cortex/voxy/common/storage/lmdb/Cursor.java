@@ -19,6 +19,15 @@ public class Cursor implements AutoCloseable {
         return e;
     }
 
+    //Deletes the entry the cursor is on, returns MDB_MAP_FULL instead of throwing so the caller can grow the map
+    public int delete() {
+        int e = mdb_cursor_del(this.cursor, 0);
+        if (e != MDB_SUCCESS && e != MDB_MAP_FULL) {
+            E(e);
+        }
+        return e;
+    }
+
     @Override
     public void close() {
         mdb_cursor_close(this.cursor);
@@ -31,6 +31,11 @@ public class LMDBInterface {
             return this;
         }
 
+        public Builder setMaxReaders(int maxReaders) {
+            E(mdb_env_set_maxreaders(this.env, maxReaders));
+            return this;
+        }
+
         public Builder open(String directory, int flags) {
             E(mdb_env_open(this.env, directory, flags, 0664));
             return this;
@@ -55,6 +60,15 @@ public class LMDBInterface {
         E(mdb_env_set_mapsize(this.env, size));
     }
 
+    //Begins a transaction that the caller is responsible for committing or aborting
+    public long beginTransaction(long parent, int flags) {
+        try (var stack = stackPush()) {
+            PointerBuffer pp = stack.mallocPointer(1);
+            E(mdb_txn_begin(this.env, parent, flags, pp));
+            return pp.get(0);
+        }
+    }
+
     public <T> T transaction(TransactionCallback<T> transaction) {
         return transaction(0, transaction);
     }
@@ -1,6 +1,8 @@
 package me.cortex.voxy.common.storage.lmdb;
 
 import it.unimi.dsi.fastutil.ints.Int2ObjectOpenHashMap;
+import me.cortex.voxy.common.storage.ByteBufferConsumer;
+import me.cortex.voxy.common.storage.SectionVisitor;
 import me.cortex.voxy.common.storage.StorageBackend;
 import me.cortex.voxy.common.storage.config.ConfigBuildCtx;
 import me.cortex.voxy.common.storage.config.StorageConfig;
@@ -8,83 +10,264 @@ import org.lwjgl.system.MemoryUtil;
 import org.lwjgl.util.lmdb.MDBVal;
 
 import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Objects;
-import java.util.concurrent.atomic.AtomicInteger;
-import java.util.concurrent.locks.ReentrantLock;
-import java.util.function.Supplier;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
+import static me.cortex.voxy.common.storage.lmdb.LMDBInterface.E;
+import static org.lwjgl.system.MemoryStack.stackPush;
 import static org.lwjgl.util.lmdb.LMDB.*;
-import static org.lwjgl.util.lmdb.LMDB.MDB_NOTFOUND;
 
+//Reads use pooled read transactions, all writes are queued to a single writer thread that commits everything queued
+// in one transaction, as LMDB only allows one writer at a time anyway. Every transaction holds the read side of the
+// environment lock, growing the map takes the write side as LMDB requires no transactions to be active
 public class LMDBStorageBackend extends StorageBackend {
-    private static final long GROW_SIZE = 1<<25;//Grow by 33 mb each time
+    private static final long MIN_GROW_SIZE = 1<<25;//Grow by at least 33 mb
+    private static final long MAX_GROW_SIZE = 1L<<32;//and at most 4 gb, on windows the file is grown to the map size
+    private static final int MAX_READERS = 1024;
+    private static final int MAX_GROUP_SIZE = 1024;
+    private static final int ITERATION_CHUNK = 1024;
+    private static final int ITERATION_DONE = 0;
+    private static final int ITERATION_STOPPED = 1;
+    private static final int ITERATION_MORE = 2;
 
-    private final AtomicInteger accessingCounts = new AtomicInteger();
-    private final ReentrantLock resizeLock = new ReentrantLock();
+    private static final int WRITE_PUT = 0;
+    //Tries appending each key to the end of the tree first
+    private static final int WRITE_APPEND = 1;
+    //Deletes everything between the two keys
+    private static final int WRITE_DELETE_RANGE = 2;
+
+    //A queued write, data is null for deletes
+    private static final class WriteRequest {
+        private final LMDBInterface.Database database;
+        private final long[] keys;
+        private final ByteBuffer[] data;
+        private final int mode;
+        private final CompletableFuture<Void> done = new CompletableFuture<>();
+
+        private WriteRequest(LMDBInterface.Database database, long[] keys, ByteBuffer[] data) {
+            this(database, keys, data, WRITE_PUT);
+        }
+
+        private WriteRequest(LMDBInterface.Database database, long[] keys, ByteBuffer[] data, int mode) {
+            this.database = database;
+            this.keys = keys;
+            this.data = data;
+            this.mode = mode;
+        }
+    }
+    private static final WriteRequest SHUTDOWN = new WriteRequest(null, null, null);
+
+    private final ReentrantReadWriteLock envLock = new ReentrantReadWriteLock();
+    private final LinkedBlockingQueue<WriteRequest> writeQueue = new LinkedBlockingQueue<>();
+    private final Thread writer;
 
     private final LMDBInterface dbi;
+    private final ReadTransactionPool readTransactions;
     private final LMDBInterface.Database sectionDatabase;
     private final LMDBInterface.Database idMappingDatabase;
     public LMDBStorageBackend(String file) {
         this.dbi = new LMDBInterface.Builder()
                 .setMaxDbs(2)
-                .open(file, MDB_NOSUBDIR)//MDB_NOLOCK (IF I DO THIS, must sync the db manually)// TODO: THIS
+                .setMaxReaders(MAX_READERS)
+                .open(file, MDB_NOSUBDIR|MDB_NOTLS)//MDB_NOLOCK (IF I DO THIS, must sync the db manually)// TODO: THIS
                 .fetch();
-        this.dbi.setMapSize(GROW_SIZE);
+        this.dbi.setMapSize(MIN_GROW_SIZE);
+        this.readTransactions = new ReadTransactionPool(this.dbi);
         this.sectionDatabase = this.dbi.createDb("world_sections");
         this.idMappingDatabase = this.dbi.createDb("id_mapping");
+
+        this.writer = new Thread(this::writeWorker);
+        this.writer.setDaemon(true);
+        this.writer.setName("LMDB writer");
+        this.writer.start();
     }
 
+    //Grows the map geometrically so large worlds dont need a resize every few thousand sections
     private void growEnv() {
-        long size = this.dbi.getMapSize() + GROW_SIZE;
-        System.out.println("Growing DBI env size to: " + size + " bytes");
-        this.dbi.setMapSize(size);
+        this.envLock.writeLock().lock();
+        try {
+            long size = this.dbi.getMapSize();
+            size += Math.min(Math.max(size/2, MIN_GROW_SIZE), MAX_GROW_SIZE);
+            System.out.println("Growing DBI env size to: " + size + " bytes");
+            this.dbi.setMapSize(size);
+        } finally {
+            this.envLock.writeLock().unlock();
+        }
     }
 
-    //TODO: try optimize this hellscape of spagetti locking
-    private <T> T resizingTransaction(Supplier<T> transaction) {
+    private <T> T read(LMDBInterface.Database database, TransactionWrappedCallback<T> callback) {
+        this.envLock.readLock().lock();
+        try {
+            long transaction = this.readTransactions.acquire();
+            try (var stack = stackPush()) {
+                return callback.exec(new TransactionWrapper(transaction, stack).set(database));
+            } finally {
+                this.readTransactions.release(transaction);
+            }
+        } finally {
+            this.envLock.readLock().unlock();
+        }
+    }
+
+    //Queues the write and waits until the transaction it was grouped into has committed
+    private void write(WriteRequest request) {
+        this.writeQueue.add(request);
+        try {
+            request.done.join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof RuntimeException cause) {
+                throw cause;
+            }
+            throw e;
+        }
+    }
+
+    private void writeWorker() {
+        List<WriteRequest> group = new ArrayList<>();
         while (true) {
             try {
-                return this.synchronizedTransaction(transaction);
-            } catch (Throwable e) {
-                if (e.getMessage().startsWith("Code: -30792")) {
-                    if (this.resizeLock.tryLock()) {
-                        //We must wait until all the other transactions have finished before we can resize
-                        while (this.accessingCounts.get() != 0) {
-                            Thread.onSpinWait();
-                        }
-
-                        this.growEnv();
+                group.add(this.writeQueue.take());
+            } catch (InterruptedException e) {
+                throw new RuntimeException(e);
+            }
+            this.writeQueue.drainTo(group, MAX_GROUP_SIZE - 1);
+            boolean shutdown = group.remove(SHUTDOWN);
+            if (!group.isEmpty()) {
+                try {
+                    this.commitGroup(group);
+                    group.forEach(request -> request.done.complete(null));
+                } catch (Throwable e) {
+                    group.forEach(request -> request.done.completeExceptionally(e));
+                }
+            }
+            group.clear();
+            if (shutdown) {
+                //Anything queued after shutdown was requested can no longer be written
+                this.writeQueue.forEach(request -> request.done.completeExceptionally(new IllegalStateException("Storage closed")));
+                return;
+            }
+        }
+    }
 
-                        this.resizeLock.unlock();
+    //Applies the whole group in one transaction, if the map fills up the transaction is aborted, the map grown and
+    // the group applied again
+    private void commitGroup(List<WriteRequest> group) {
+        while (true) {
+            int result;
+            this.envLock.readLock().lock();
+            try (var stack = stackPush()) {
+                long transaction = this.dbi.beginTransaction(0, 0);
+                var key = MDBVal.malloc(stack);
+                var value = MDBVal.malloc(stack);
+                var keyBuff = stack.malloc(8);
+                result = MDB_SUCCESS;
+                try {
+                    for (int i = 0; i < group.size() && result == MDB_SUCCESS; i++) {
+                        result = this.apply(transaction, group.get(i), key, value, keyBuff);
                     }
-                } else {
+                } catch (Throwable e) {
+                    mdb_txn_abort(transaction);
                     throw e;
                 }
+                if (result == MDB_SUCCESS) {
+                    result = mdb_txn_commit(transaction);
+                } else {
+                    mdb_txn_abort(transaction);
+                }
+            } finally {
+                this.envLock.readLock().unlock();
             }
+
+            if (result != MDB_MAP_FULL) {
+                E(result);
+                return;
+            }
+            this.growEnv();
         }
     }
 
-    private <T> T synchronizedTransaction(Supplier<T> transaction) {
-        try {
-            this.accessingCounts.getAndAdd(1);
-            //Check if its locked, if it is locked then need to release the access, wait till resize is finished then
-            while (this.resizeLock.isLocked()) {
-                this.accessingCounts.getAndAdd(-1);
-                while (this.resizeLock.isLocked()) {
-                    Thread.onSpinWait();
+    private int apply(long transaction, WriteRequest request, MDBVal key, MDBVal value, ByteBuffer keyBuff) {
+        if (request.mode == WRITE_DELETE_RANGE) {
+            return this.deleteRange(transaction, request, key, value, keyBuff);
+        }
+        int dbi = request.database.getDBI();
+        boolean idMapping = request.database == this.idMappingDatabase;
+        //Appending only works past the last key of the tree. A bulk load batch spans every level, so after the first
+        // batch the last key is near the top of the key space and most keys of later batches are below it, those are
+        // inserted normally right away instead of failing an append first
+        boolean append = request.mode == WRITE_APPEND && request.data != null;
+        long lastKey = 0;
+        boolean hasLastKey = false;
+        if (append) {
+            try (var stack = stackPush(); var cursor = new TransactionWrapper(transaction, stack).set(request.database).createCursor()) {
+                if (cursor.get(MDB_LAST, key, value) != MDB_NOTFOUND) {
+                    lastKey = key.mv_data().getLong(0);
+                    hasLastKey = true;
+                }
+            }
+        }
+        for (int i = 0; i < request.keys.length; i++) {
+            //The buffer is shared by the whole group, an id mapping leaves it limited to 4 bytes
+            keyBuff.clear();
+            if (idMapping) {
+                keyBuff.putInt(0, (int) request.keys[i]);
+                key.mv_data(keyBuff.limit(4));
+            } else {
+                keyBuff.putLong(0, request.keys[i]);
+                key.mv_data(keyBuff.limit(8));
+            }
+            int result;
+            if (request.data == null) {
+                result = mdb_del(transaction, dbi, key, null);
+                if (result == MDB_NOTFOUND) {
+                    result = MDB_SUCCESS;
+                }
+            } else if (append && (!hasLastKey || Long.compareUnsigned(request.keys[i], lastKey) > 0)) {
+                //Appending skips the tree search and fills pages completely
+                result = mdb_put(transaction, dbi, key, value.mv_data(request.data[i]), MDB_APPEND);
+                if (result == MDB_KEYEXIST) {
+                    result = mdb_put(transaction, dbi, key, value.mv_data(request.data[i]), 0);
+                }
+                lastKey = request.keys[i];
+                hasLastKey = true;
+            } else {
+                result = mdb_put(transaction, dbi, key, value.mv_data(request.data[i]), 0);
+            }
+            if (result == MDB_MAP_FULL) {
+                return result;
+            }
+            E(result);
+        }
+        return MDB_SUCCESS;
+    }
+
+    //Walks the range with a cursor deleting as it goes, the freed pages are reused by later writes
+    private int deleteRange(long transaction, WriteRequest request, MDBVal key, MDBVal value, ByteBuffer keyBuff) {
+        try (var stack = stackPush(); var cursor = new TransactionWrapper(transaction, stack).set(request.database).createCursor()) {
+            keyBuff.clear().putLong(0, request.keys[0]);
+            key.mv_data(keyBuff.limit(8));
+            int op = MDB_SET_RANGE;
+            while (cursor.get(op, key, value) != MDB_NOTFOUND) {
+                op = MDB_NEXT;
+                if (Long.compareUnsigned(key.mv_data().getLong(0), request.keys[1]) > 0) {
+                    break;
+                }
+                int result = cursor.delete();
+                if (result == MDB_MAP_FULL) {
+                    return result;
                 }
-                this.accessingCounts.getAndAdd(1);
             }
-            return transaction.get();
-        } finally {
-            this.accessingCounts.getAndAdd(-1);
         }
+        return MDB_SUCCESS;
     }
 
-    //TODO: make batch get and updates
     public ByteBuffer getSectionData(long key) {
-        return this.synchronizedTransaction(() -> this.sectionDatabase.transaction(MDB_RDONLY, transaction->{
+        return this.read(this.sectionDatabase, transaction->{
             var buff = transaction.stack.malloc(8);
             buff.putLong(0, key);
             var bb = transaction.get(buff);
@@ -94,58 +277,144 @@ public class LMDBStorageBackend extends StorageBackend {
             var copy = MemoryUtil.memAlloc(bb.remaining());
             MemoryUtil.memCopy(bb, copy);
             return copy;
-        }));
+        });
+    }
+
+    //Hands the consumer the memory mapped value directly, it is only valid while the read transaction is open
+    @Override
+    public boolean readSectionData(long key, ByteBufferConsumer consumer) {
+        return this.read(this.sectionDatabase, transaction->{
+            var buff = transaction.stack.malloc(8);
+            buff.putLong(0, key);
+            var bb = transaction.get(buff);
+            if (bb == null) {
+                return false;
+            }
+            consumer.accept(bb);
+            return true;
+        });
     }
 
     //TODO: pad data to like some alignemnt so that when the section gets saved or updated
     // it can use the same allocation
     public void setSectionData(long key, ByteBuffer data) {
-        this.resizingTransaction(() -> this.sectionDatabase.transaction(transaction->{
-            var keyBuff = transaction.stack.malloc(8);
-            keyBuff.putLong(0, key);
-            transaction.put(keyBuff, data, 0);
-            return null;
-        }));
+        this.write(new WriteRequest(this.sectionDatabase, new long[]{key}, new ByteBuffer[]{data}));
     }
 
-    public void deleteSectionData(long key) {
-        this.synchronizedTransaction(() -> this.sectionDatabase.transaction(transaction->{
+    //Fetches all the keys within a single read transaction
+    @Override
+    public ByteBuffer[] getSectionsData(long[] keys) {
+        return this.read(this.sectionDatabase, transaction->{
+            var out = new ByteBuffer[keys.length];
             var keyBuff = transaction.stack.malloc(8);
-            keyBuff.putLong(0, key);
-            transaction.del(keyBuff);
-            return null;
-        }));
+            for (int i = 0; i < keys.length; i++) {
+                keyBuff.putLong(0, keys[i]);
+                var bb = transaction.get(keyBuff);
+                if (bb != null) {
+                    var copy = MemoryUtil.memAlloc(bb.remaining());
+                    MemoryUtil.memCopy(bb, copy);
+                    out[i] = copy;
+                }
+            }
+            return out;
+        });
     }
 
-    public synchronized void putIdMapping(int id, ByteBuffer data) {
-        this.resizingTransaction(()->this.idMappingDatabase.transaction(transaction->{
-            var keyBuff = transaction.stack.malloc(4);
-            keyBuff.putInt(0, id);
-            transaction.put(keyBuff, data, 0);
-            return null;
-        }));
+    //Writes all the keys within a single write transaction
+    @Override
+    public void setSectionsData(long[] keys, ByteBuffer[] data) {
+        if (keys.length != data.length) {
+            throw new IllegalArgumentException("Key count does not match data count");
+        }
+        this.write(new WriteRequest(this.sectionDatabase, keys, data));
     }
 
-    public Int2ObjectOpenHashMap<byte[]> getIdMappingsData() {
-        return this.synchronizedTransaction(() -> {
-            Int2ObjectOpenHashMap<byte[]> mapping = new Int2ObjectOpenHashMap<>();
-            this.idMappingDatabase.transaction(MDB_RDONLY, transaction -> {
+    //The whole load is committed in a single transaction
+    @Override
+    public void bulkLoadSections(long[] keys, ByteBuffer[] data) {
+        if (keys.length != data.length) {
+            throw new IllegalArgumentException("Key count does not match data count");
+        }
+        this.write(new WriteRequest(this.sectionDatabase, keys, data, WRITE_APPEND));
+    }
+
+    //Walks the range with a cursor, the read transaction is reopened every ITERATION_CHUNK entries so a long scan
+    // doesnt hold off resizing for its whole duration
+    @Override
+    public boolean iterateSections(long fromKey, long toKey, SectionVisitor visitor) {
+        long[] next = {fromKey};
+        while (true) {
+            int state = this.read(this.sectionDatabase, transaction->{
                 try (var cursor = transaction.createCursor()) {
-                    var keyPtr = MDBVal.malloc(transaction.stack);
+                    var keyBuff = transaction.stack.malloc(8);
+                    keyBuff.putLong(0, next[0]);
+                    var keyPtr = MDBVal.malloc(transaction.stack).mv_data(keyBuff);
                     var valPtr = MDBVal.malloc(transaction.stack);
-                    while (cursor.get(MDB_NEXT, keyPtr, valPtr) != MDB_NOTFOUND) {
-                        int keyVal = keyPtr.mv_data().getInt(0);
-                        byte[] data = new byte[(int) valPtr.mv_size()];
-                        Objects.requireNonNull(valPtr.mv_data()).get(data);
-                        if (mapping.put(keyVal, data) != null) {
-                            throw new IllegalStateException("Multiple mappings to same id");
+                    int op = MDB_SET_RANGE;
+                    for (int i = 0; i < ITERATION_CHUNK; i++) {
+                        if (cursor.get(op, keyPtr, valPtr) == MDB_NOTFOUND) {
+                            return ITERATION_DONE;
                         }
+                        op = MDB_NEXT;
+                        long key = keyPtr.mv_data().getLong(0);
+                        if (Long.compareUnsigned(key, toKey) > 0) {
+                            return ITERATION_DONE;
+                        }
+                        if (!visitor.visit(key, valPtr.mv_data())) {
+                            return ITERATION_STOPPED;
+                        }
+                        if (key == toKey) {
+                            return ITERATION_DONE;
+                        }
+                        next[0] = key + 1;
                     }
+                    return ITERATION_MORE;
                 }
-                return null;
             });
-            return mapping;
+            if (state != ITERATION_MORE) {
+                return state == ITERATION_DONE;
+            }
+        }
+    }
+
+    public void deleteSectionData(long key) {
+        this.write(new WriteRequest(this.sectionDatabase, new long[]{key}, null));
+    }
+
+    //The whole range is deleted in a single write transaction
+    @Override
+    public void deleteSections(long fromKey, long toKey) {
+        this.write(new WriteRequest(this.sectionDatabase, new long[]{fromKey, toKey}, null, WRITE_DELETE_RANGE));
+    }
+
+    //The pages in use rather than the file size, as the file never shrinks but freed pages are reused
+    @Override
+    public long getStorageSize() {
+        return this.read(this.sectionDatabase, TransactionWrapper::getUsedSize);
+    }
+
+    public void putIdMapping(int id, ByteBuffer data) {
+        this.write(new WriteRequest(this.idMappingDatabase, new long[]{id}, new ByteBuffer[]{data}));
+    }
+
+    public Int2ObjectOpenHashMap<byte[]> getIdMappingsData() {
+        Int2ObjectOpenHashMap<byte[]> mapping = new Int2ObjectOpenHashMap<>();
+        this.read(this.idMappingDatabase, transaction -> {
+            try (var cursor = transaction.createCursor()) {
+                var keyPtr = MDBVal.malloc(transaction.stack);
+                var valPtr = MDBVal.malloc(transaction.stack);
+                while (cursor.get(MDB_NEXT, keyPtr, valPtr) != MDB_NOTFOUND) {
+                    int keyVal = keyPtr.mv_data().getInt(0);
+                    byte[] data = new byte[(int) valPtr.mv_size()];
+                    Objects.requireNonNull(valPtr.mv_data()).get(data);
+                    if (mapping.put(keyVal, data) != null) {
+                        throw new IllegalStateException("Multiple mappings to same id");
+                    }
+                }
+            }
+            return null;
         });
+        return mapping;
     }
 
     public void flush() {
@@ -153,6 +422,13 @@ public class LMDBStorageBackend extends StorageBackend {
     }
 
     public void close() {
+        this.writeQueue.add(SHUTDOWN);
+        try {
+            this.writer.join();
+        } catch (InterruptedException e) {
+            throw new RuntimeException(e);
+        }
+        this.readTransactions.close();
         this.sectionDatabase.close();
         this.idMappingDatabase.close();
         this.dbi.close();
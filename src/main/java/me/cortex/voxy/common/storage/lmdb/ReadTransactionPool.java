@@ -0,0 +1,50 @@
+package me.cortex.voxy.common.storage.lmdb;
+
+import it.unimi.dsi.fastutil.longs.LongArrayList;
+
+import java.util.concurrent.ConcurrentLinkedDeque;
+
+import static me.cortex.voxy.common.storage.lmdb.LMDBInterface.E;
+import static org.lwjgl.util.lmdb.LMDB.*;
+
+//Read only transactions are reset when released and renewed when acquired, instead of creating a transaction and
+// claiming a reader slot for every read. Needs the environment to be opened with MDB_NOTLS as transactions move
+// between threads
+public class ReadTransactionPool {
+    private final LMDBInterface dbi;
+    private final ConcurrentLinkedDeque<Long> idle = new ConcurrentLinkedDeque<>();
+    private final LongArrayList transactions = new LongArrayList();
+
+    public ReadTransactionPool(LMDBInterface dbi) {
+        this.dbi = dbi;
+    }
+
+    public long acquire() {
+        //Most recently released first as its pages are most likely to still be cached
+        Long transaction = this.idle.pollFirst();
+        if (transaction == null) {
+            long created = this.dbi.beginTransaction(0, MDB_RDONLY);
+            synchronized (this.transactions) {
+                this.transactions.add(created);
+            }
+            return created;
+        }
+        E(mdb_txn_renew(transaction));
+        return transaction;
+    }
+
+    public void release(long transaction) {
+        mdb_txn_reset(transaction);
+        this.idle.offerFirst(transaction);
+    }
+
+    public void close() {
+        synchronized (this.transactions) {
+            for (int i = 0; i < this.transactions.size(); i++) {
+                mdb_txn_abort(this.transactions.getLong(i));
+            }
+            this.transactions.clear();
+        }
+        this.idle.clear();
+    }
+}
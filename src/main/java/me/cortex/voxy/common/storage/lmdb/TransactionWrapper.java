@@ -2,6 +2,7 @@ package me.cortex.voxy.common.storage.lmdb;
 
 import org.lwjgl.PointerBuffer;
 import org.lwjgl.system.MemoryStack;
+import org.lwjgl.util.lmdb.MDBStat;
 import org.lwjgl.util.lmdb.MDBVal;
 
 import java.nio.ByteBuffer;
@@ -67,6 +68,15 @@ public class TransactionWrapper {
         }
     }
 
+    //Bytes of the pages used by the database
+    public long getUsedSize() {
+        try (var stack = stackPush()) {
+            var stat = MDBStat.malloc(stack);
+            E(mdb_stat(this.transaction, this.dbi, stat));
+            return stat.ms_psize()*(stat.ms_branch_pages() + stat.ms_leaf_pages() + stat.ms_overflow_pages());
+        }
+    }
+
     public Cursor createCursor() {
         try (var stack = stackPush()) {
             PointerBuffer pb = stack.mallocPointer(1);
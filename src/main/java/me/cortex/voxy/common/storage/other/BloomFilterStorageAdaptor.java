@@ -0,0 +1,435 @@
+package me.cortex.voxy.common.storage.other;
+
+import it.unimi.dsi.fastutil.HashCommon;
+import me.cortex.voxy.common.storage.ByteBufferConsumer;
+import me.cortex.voxy.common.storage.SectionVisitor;
+import me.cortex.voxy.common.storage.StorageBackend;
+import me.cortex.voxy.common.storage.config.ConfigBuildCtx;
+import org.lwjgl.system.MemoryUtil;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+//Answers lookups of sections that were never stored without going to the delegate, which is most lookups when flying
+// over unexplored terrain. Keeps a blocked bloom filter of every stored key, all bits of a key are in the same 512 bit
+// block so a lookup touches a single cache line. Deletes cant be removed from the filter, they only cost a false positive.
+// The filter is saved to its own file on close and the file is deleted on open, so after a crash it is rebuilt from a
+// key scan in the background, lookups go to the delegate until the rebuild is done. Once more keys were added than the
+// filter was sized for, a filter twice the size is built from a key scan in the background and swapped in
+public class BloomFilterStorageAdaptor extends DelegatingStorageAdaptor {
+    private static final int FILTER_VERSION = 1;
+    private static final int HEADER_SIZE = 32;
+    private static final int BLOCK_LONGS = 8;
+    private static final int MAX_BLOCKS = Integer.MAX_VALUE/BLOCK_LONGS;
+
+    private static final class Filter {
+        private final AtomicLongArray bits;
+        private final int blockCount;
+        private final int hashCount;
+        //Number of keys the filter was sized for
+        private final long capacity;
+        //Adds that set a new bit, close to the number of distinct keys added
+        private final LongAdder insertions = new LongAdder();
+
+        private Filter(long capacity, double falsePositiveRate) {
+            double bitsPerKey = -Math.log(falsePositiveRate)/(Math.log(2)*Math.log(2));
+            this.hashCount = (int) Math.max(1, Math.min(7, Math.round(bitsPerKey*Math.log(2))));
+            long totalBits = (long) Math.ceil(capacity*bitsPerKey);
+            this.blockCount = (int) Math.max(1, Math.min(MAX_BLOCKS, (totalBits + 511)/512));
+            this.capacity = capacity;
+            this.bits = new AtomicLongArray(this.blockCount*BLOCK_LONGS);
+        }
+
+        private Filter(int blockCount, int hashCount, long capacity) {
+            this.blockCount = blockCount;
+            this.hashCount = hashCount;
+            this.capacity = capacity;
+            this.bits = new AtomicLongArray(blockCount*BLOCK_LONGS);
+        }
+
+        //The block comes from the key hash, the bit positions within it from a second independent hash
+        private int getBlock(long hash) {
+            return (int) (((hash>>>32)*this.blockCount)>>>32)*BLOCK_LONGS;
+        }
+
+        //Returns true if the key set a bit that wasnt set yet
+        private boolean add(long key) {
+            long hash = HashCommon.mix(key);
+            int block = this.getBlock(hash);
+            long bitHash = HashCommon.murmurHash3(hash);
+            boolean added = false;
+            for (int i = 0; i < this.hashCount; i++) {
+                int bit = (int) (bitHash>>>(i*9))&511;
+                long mask = 1L<<bit;
+                int index = block + (bit>>>6);
+                if ((this.bits.get(index)&mask) == 0) {
+                    added |= (this.bits.getAndAccumulate(index, mask, (a, b) -> a|b)&mask) == 0;
+                }
+            }
+            if (added) {
+                this.insertions.increment();
+            }
+            return added;
+        }
+
+        private boolean mightContain(long key) {
+            long hash = HashCommon.mix(key);
+            int block = this.getBlock(hash);
+            long bitHash = HashCommon.murmurHash3(hash);
+            for (int i = 0; i < this.hashCount; i++) {
+                int bit = (int) (bitHash>>>(i*9))&511;
+                if ((this.bits.get(block + (bit>>>6))&(1L<<bit)) == 0) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        private boolean isSaturated() {
+            return this.insertions.sum() > this.capacity && this.blockCount < MAX_BLOCKS;
+        }
+    }
+
+    private final Path filterFile;
+    private final double falsePositiveRate;
+    private volatile Filter filter;
+    //The filter being built by a resize, every key written while it is built is also added to it
+    private volatile Filter growing;
+    //Writes hold the read lock from adding the key until the delegate has it, so once a resize holds the write lock
+    // every key is either visible to its scan or added to the new filter directly
+    private final ReentrantReadWriteLock growLock = new ReentrantReadWriteLock();
+    private volatile boolean ready;
+    private volatile boolean running = true;
+    private Thread rebuildThread;
+
+    private final LongAdder lookups = new LongAdder();
+    private final LongAdder filteredMisses = new LongAdder();
+
+    public BloomFilterStorageAdaptor(StorageBackend delegate, Path filterFile, long expectedSections, double falsePositiveRate) {
+        super(delegate);
+        this.filterFile = filterFile;
+        this.falsePositiveRate = falsePositiveRate;
+
+        var loaded = this.load(expectedSections);
+        if (loaded != null) {
+            this.filter = loaded;
+            this.ready = true;
+            if (loaded.isSaturated()) {
+                this.startGrowing();
+            }
+        } else {
+            this.filter = new Filter(expectedSections, falsePositiveRate);
+            this.startRebuild(this::rebuild, "Storage bloom filter rebuild");
+        }
+    }
+
+    //Loads the saved filter and deletes the file, any write from here on is not in it so it must not be trusted
+    // after a crash
+    private Filter load(long expectedSections) {
+        if (!Files.exists(this.filterFile)) {
+            return null;
+        }
+        try {
+            var buffer = ByteBuffer.wrap(Files.readAllBytes(this.filterFile)).order(ByteOrder.LITTLE_ENDIAN);
+            Files.delete(this.filterFile);
+            if (buffer.capacity() < HEADER_SIZE || buffer.getInt(0) != FILTER_VERSION) {
+                return null;
+            }
+            int blockCount = buffer.getInt(4);
+            int hashCount = buffer.getInt(8);
+            long capacity = buffer.getLong(16);
+            //A larger configured size rebuilds the filter at that size
+            if (blockCount <= 0 || blockCount > MAX_BLOCKS || capacity < expectedSections || buffer.capacity() != HEADER_SIZE + blockCount*(long)BLOCK_LONGS*8) {
+                return null;
+            }
+            var filter = new Filter(blockCount, hashCount, capacity);
+            filter.insertions.add(buffer.getLong(24));
+            for (int i = 0; i < filter.bits.length(); i++) {
+                filter.bits.set(i, buffer.getLong(HEADER_SIZE + i*8));
+            }
+            return filter;
+        } catch (IOException e) {
+            System.err.println("Failed to load storage bloom filter from " + this.filterFile + ": " + e);
+            return null;
+        }
+    }
+
+    private void save() {
+        var filter = this.filter;
+        var data = MemoryUtil.memAlloc(HEADER_SIZE + filter.bits.length()*8).order(ByteOrder.LITTLE_ENDIAN);
+        var temp = this.filterFile.resolveSibling(this.filterFile.getFileName() + ".tmp");
+        try (var channel = FileChannel.open(temp, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            data.putInt(0, FILTER_VERSION).putInt(4, filter.blockCount).putInt(8, filter.hashCount).putInt(12, 0);
+            data.putLong(16, filter.capacity).putLong(24, filter.insertions.sum());
+            for (int i = 0; i < filter.bits.length(); i++) {
+                data.putLong(HEADER_SIZE + i*8, filter.bits.get(i));
+            }
+            while (data.hasRemaining()) {
+                channel.write(data);
+            }
+            channel.force(true);
+        } catch (IOException e) {
+            System.err.println("Failed to save storage bloom filter to " + this.filterFile + ": " + e);
+            return;
+        } finally {
+            MemoryUtil.memFree(data);
+        }
+        try {
+            Files.move(temp, this.filterFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            System.err.println("Failed to save storage bloom filter to " + this.filterFile + ": " + e);
+        }
+    }
+
+    private void startRebuild(Runnable task, String name) {
+        this.rebuildThread = new Thread(task);
+        this.rebuildThread.setName(name);
+        this.rebuildThread.setDaemon(true);
+        this.rebuildThread.start();
+    }
+
+    //Fills the filter from a scan of the stored keys, below any compression so nothing is decompressed
+    private long scanInto(Filter filter) {
+        long[] count = new long[1];
+        boolean completed = this.delegate.iterateStoredSections(0, -1, (key, data) -> {
+            filter.add(key);
+            count[0]++;
+            return this.running;
+        });
+        return completed ? count[0] : -1;
+    }
+
+    private void rebuild() {
+        var filter = this.filter;
+        long count = this.scanInto(filter);
+        if (count >= 0) {
+            this.ready = true;
+            System.out.println("Rebuilt storage bloom filter from " + count + " sections");
+            if (count > filter.capacity) {
+                this.grow(count);
+            }
+        }
+    }
+
+    private synchronized void startGrowing() {
+        if (this.growing != null || !this.running || (this.rebuildThread != null && this.rebuildThread.isAlive())) {
+            return;
+        }
+        long keys = this.filter.insertions.sum();
+        this.startRebuild(() -> this.grow(keys), "Storage bloom filter resize");
+    }
+
+    //Builds a filter sized for twice the stored keys, the old one stays in use until the new one has every key
+    private void grow(long keys) {
+        while (true) {
+            var current = this.filter;
+            if (current.blockCount >= MAX_BLOCKS) {
+                return;
+            }
+            var next = new Filter(Math.max(current.capacity, keys)*2, this.falsePositiveRate);
+            this.growLock.writeLock().lock();
+            try {
+                this.growing = next;
+            } finally {
+                this.growLock.writeLock().unlock();
+            }
+            long count = this.scanInto(next);
+            if (count >= 0) {
+                this.filter = next;
+                System.out.println("Resized storage bloom filter to " + next.capacity + " sections, rebuilt from " + count + " sections");
+            }
+            this.growing = null;
+            //The count of a saturated filter is low, so the first resize can come out too small
+            if (count <= next.capacity) {
+                return;
+            }
+            keys = count;
+        }
+    }
+
+    private void add(long key) {
+        var filter = this.filter;
+        boolean added = filter.add(key);
+        var growing = this.growing;
+        if (growing != null) {
+            growing.add(key);
+        }
+        if (added && this.ready && growing == null && filter.isSaturated()) {
+            this.startGrowing();
+        }
+    }
+
+    //Only ever returns false for keys that were never stored
+    private boolean mightContain(long key) {
+        if (!this.ready) {
+            return true;
+        }
+        this.lookups.increment();
+        if (!this.filter.mightContain(key)) {
+            this.filteredMisses.increment();
+            return false;
+        }
+        return true;
+    }
+
+    @Override
+    public ByteBuffer getSectionData(long key) {
+        if (!this.mightContain(key)) {
+            return null;
+        }
+        return this.delegate.getSectionData(key);
+    }
+
+    @Override
+    public boolean readSectionData(long key, ByteBufferConsumer consumer) {
+        if (!this.mightContain(key)) {
+            return false;
+        }
+        return this.delegate.readSectionData(key, consumer);
+    }
+
+    @Override
+    public ByteBuffer[] getSectionsData(long[] keys) {
+        int possible = 0;
+        boolean[] present = new boolean[keys.length];
+        for (int i = 0; i < keys.length; i++) {
+            if (present[i] = this.mightContain(keys[i])) {
+                possible++;
+            }
+        }
+        if (possible == keys.length) {
+            return this.delegate.getSectionsData(keys);
+        }
+        var out = new ByteBuffer[keys.length];
+        if (possible == 0) {
+            return out;
+        }
+        long[] remaining = new long[possible];
+        for (int i = 0, j = 0; i < keys.length; i++) {
+            if (present[i]) {
+                remaining[j++] = keys[i];
+            }
+        }
+        var fetched = this.delegate.getSectionsData(remaining);
+        for (int i = 0, j = 0; i < keys.length; i++) {
+            if (present[i]) {
+                out[i] = fetched[j++];
+            }
+        }
+        return out;
+    }
+
+    //Keys are added before they are written so there is never a moment where a stored key is filtered out
+    @Override
+    public void setSectionData(long key, ByteBuffer data) {
+        this.growLock.readLock().lock();
+        try {
+            this.add(key);
+            this.delegate.setSectionData(key, data);
+        } finally {
+            this.growLock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public void setSectionsData(long[] keys, ByteBuffer[] data) {
+        this.growLock.readLock().lock();
+        try {
+            for (long key : keys) {
+                this.add(key);
+            }
+            this.delegate.setSectionsData(keys, data);
+        } finally {
+            this.growLock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public void bulkLoadSections(long[] keys, ByteBuffer[] data) {
+        this.growLock.readLock().lock();
+        try {
+            for (long key : keys) {
+                this.add(key);
+            }
+            this.delegate.bulkLoadSections(keys, data);
+        } finally {
+            this.growLock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public boolean iterateStoredSections(long fromKey, long toKey, SectionVisitor visitor) {
+        return this.delegate.iterateStoredSections(fromKey, toKey, visitor);
+    }
+
+    @Override
+    public void deleteSections(long fromKey, long toKey) {
+        this.delegate.deleteSections(fromKey, toKey);
+    }
+
+    public long getCapacity() {
+        return this.filter.capacity;
+    }
+
+    public long getLookups() {
+        return this.lookups.sum();
+    }
+
+    //Lookups answered without going to the delegate
+    public long getFilteredMisses() {
+        return this.filteredMisses.sum();
+    }
+
+    @Override
+    public void close() {
+        Thread rebuildThread;
+        synchronized (this) {
+            this.running = false;
+            rebuildThread = this.rebuildThread;
+        }
+        if (rebuildThread != null) {
+            try {
+                rebuildThread.join();
+            } catch (InterruptedException e) {
+                throw new RuntimeException(e);
+            }
+        }
+        //An incomplete rebuild saves nothing so it is redone next time, an incomplete resize keeps the old filter
+        if (this.ready) {
+            this.save();
+        }
+        super.close();
+    }
+
+    public static class Config extends DelegateStorageConfig {
+        //Initial size of the filter, it is resized in the background once more sections were stored
+        public long expectedSections = 10_000_000;
+        public double falsePositiveRate = 0.01;
+        //Where the filter is saved, relative to the current path
+        public String filterFile = "bloom_filter.bin";
+
+        @Override
+        public StorageBackend build(ConfigBuildCtx ctx) {
+            ctx.pushPath(this.filterFile);
+            var filterFile = Path.of(ctx.substituteString(ctx.resolvePath()));
+            ctx.popPath();
+            if (filterFile.getParent() != null) {
+                ctx.ensurePathExists(filterFile.getParent().toString());
+            }
+            return new BloomFilterStorageAdaptor(this.delegate.build(ctx), filterFile, this.expectedSections, this.falsePositiveRate);
+        }
+
+        public static String getConfigTypeName() {
+            return "BloomFilterAdaptor";
+        }
+    }
+}
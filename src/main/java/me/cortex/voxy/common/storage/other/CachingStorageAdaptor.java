@@ -0,0 +1,281 @@
+package me.cortex.voxy.common.storage.other;
+
+import it.unimi.dsi.fastutil.longs.Long2ObjectLinkedOpenHashMap;
+import me.cortex.voxy.common.storage.ByteBufferConsumer;
+import me.cortex.voxy.common.storage.SectionVisitor;
+import me.cortex.voxy.common.storage.StorageBackend;
+import me.cortex.voxy.common.storage.config.ConfigBuildCtx;
+import net.minecraft.util.math.random.RandomSeed;
+import org.lwjgl.system.MemoryUtil;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.LongAdder;
+
+//Keeps recently read section payloads off heap under a byte budget, evicting the least recently used. Placed under
+// the compression adaptor it caches the compressed payloads so far more sections fit in the same budget
+public class CachingStorageAdaptor extends DelegatingStorageAdaptor {
+    private static final int STRIPE_BITS = 6;
+
+    private static final class Stripe {
+        //Cached payloads in least recently used order
+        private final Long2ObjectLinkedOpenHashMap<ByteBuffer> entries = new Long2ObjectLinkedOpenHashMap<>();
+        private long bytes;
+        //Incremented on every write to the stripe, a miss only caches what it read if no write happened meanwhile
+        private long writeStamp;
+    }
+
+    private final Stripe[] stripes = new Stripe[1<<STRIPE_BITS];
+    private final long stripeBudget;
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+
+    public CachingStorageAdaptor(StorageBackend delegate, long maxCachedBytes) {
+        super(delegate);
+        this.stripeBudget = maxCachedBytes>>STRIPE_BITS;
+        for (int i = 0; i < this.stripes.length; i++) {
+            this.stripes[i] = new Stripe();
+        }
+    }
+
+    private Stripe getStripe(long key) {
+        return this.stripes[(int) (RandomSeed.mixStafford13(key)&(this.stripes.length-1))];
+    }
+
+    //Must be called while holding the stripe lock
+    private void insert(Stripe stripe, long key, ByteBuffer data) {
+        int size = data.remaining();
+        if (size > this.stripeBudget) {
+            return;
+        }
+        var copy = MemoryUtil.memAlloc(size);
+        MemoryUtil.memCopy(data, copy);
+        var old = stripe.entries.putAndMoveToLast(key, copy);
+        if (old != null) {
+            stripe.bytes -= old.capacity();
+            MemoryUtil.memFree(old);
+        }
+        stripe.bytes += size;
+        while (stripe.bytes > this.stripeBudget) {
+            var evicted = stripe.entries.removeFirst();
+            stripe.bytes -= evicted.capacity();
+            MemoryUtil.memFree(evicted);
+            this.evictions.increment();
+        }
+    }
+
+    private void invalidate(long key) {
+        var stripe = this.getStripe(key);
+        synchronized (stripe) {
+            stripe.writeStamp++;
+            var old = stripe.entries.remove(key);
+            if (old != null) {
+                stripe.bytes -= old.capacity();
+                MemoryUtil.memFree(old);
+            }
+        }
+    }
+
+    @Override
+    public ByteBuffer getSectionData(long key) {
+        var stripe = this.getStripe(key);
+        long stamp;
+        synchronized (stripe) {
+            var cached = stripe.entries.getAndMoveToLast(key);
+            if (cached != null) {
+                this.hits.increment();
+                var copy = MemoryUtil.memAlloc(cached.remaining());
+                MemoryUtil.memCopy(cached, copy);
+                return copy;
+            }
+            stamp = stripe.writeStamp;
+        }
+        this.misses.increment();
+        var data = this.delegate.getSectionData(key);
+        if (data != null) {
+            synchronized (stripe) {
+                if (stripe.writeStamp == stamp) {
+                    this.insert(stripe, key, data);
+                }
+            }
+        }
+        return data;
+    }
+
+    @Override
+    public boolean readSectionData(long key, ByteBufferConsumer consumer) {
+        var stripe = this.getStripe(key);
+        long stamp;
+        synchronized (stripe) {
+            var cached = stripe.entries.getAndMoveToLast(key);
+            if (cached != null) {
+                this.hits.increment();
+                consumer.accept(MemoryUtil.memDuplicate(cached));
+                return true;
+            }
+            stamp = stripe.writeStamp;
+        }
+        this.misses.increment();
+        return this.delegate.readSectionData(key, data -> {
+            synchronized (stripe) {
+                if (stripe.writeStamp == stamp) {
+                    this.insert(stripe, key, data);
+                }
+            }
+            consumer.accept(data);
+        });
+    }
+
+    @Override
+    public ByteBuffer[] getSectionsData(long[] keys) {
+        var out = new ByteBuffer[keys.length];
+        long[] stamps = new long[keys.length];
+        int missCount = 0;
+        for (int i = 0; i < keys.length; i++) {
+            var stripe = this.getStripe(keys[i]);
+            synchronized (stripe) {
+                var cached = stripe.entries.getAndMoveToLast(keys[i]);
+                if (cached != null) {
+                    out[i] = MemoryUtil.memAlloc(cached.remaining());
+                    MemoryUtil.memCopy(cached, out[i]);
+                } else {
+                    stamps[i] = stripe.writeStamp;
+                    missCount++;
+                }
+            }
+        }
+        this.hits.add(keys.length - missCount);
+        this.misses.add(missCount);
+        if (missCount == 0) {
+            return out;
+        }
+
+        long[] missKeys = new long[missCount];
+        for (int i = 0, j = 0; i < keys.length; i++) {
+            if (out[i] == null) {
+                missKeys[j++] = keys[i];
+            }
+        }
+        var fetched = this.delegate.getSectionsData(missKeys);
+        for (int i = 0, j = 0; i < keys.length; i++) {
+            if (out[i] != null) {
+                continue;
+            }
+            var data = fetched[j++];
+            if (data != null) {
+                var stripe = this.getStripe(keys[i]);
+                synchronized (stripe) {
+                    if (stripe.writeStamp == stamps[i]) {
+                        this.insert(stripe, keys[i], data);
+                    }
+                }
+            }
+            out[i] = data;
+        }
+        return out;
+    }
+
+    //Writes invalidate instead of updating the cache, so that concurrent writers cannot leave the cache holding a
+    // different payload to the one that won in the delegate
+    @Override
+    public void setSectionData(long key, ByteBuffer data) {
+        this.delegate.setSectionData(key, data);
+        this.invalidate(key);
+    }
+
+    @Override
+    public void setSectionsData(long[] keys, ByteBuffer[] data) {
+        this.delegate.setSectionsData(keys, data);
+        for (long key : keys) {
+            this.invalidate(key);
+        }
+    }
+
+    @Override
+    public void bulkLoadSections(long[] keys, ByteBuffer[] data) {
+        this.delegate.bulkLoadSections(keys, data);
+        for (long key : keys) {
+            this.invalidate(key);
+        }
+    }
+
+    @Override
+    public void deleteSectionData(long key) {
+        this.delegate.deleteSectionData(key);
+        this.invalidate(key);
+    }
+
+    @Override
+    public boolean iterateStoredSections(long fromKey, long toKey, SectionVisitor visitor) {
+        return this.delegate.iterateStoredSections(fromKey, toKey, visitor);
+    }
+
+    @Override
+    public void deleteSections(long fromKey, long toKey) {
+        this.delegate.deleteSections(fromKey, toKey);
+        for (var stripe : this.stripes) {
+            synchronized (stripe) {
+                stripe.writeStamp++;
+                var iterator = stripe.entries.long2ObjectEntrySet().fastIterator();
+                while (iterator.hasNext()) {
+                    var entry = iterator.next();
+                    if (inRange(entry.getLongKey(), fromKey, toKey)) {
+                        stripe.bytes -= entry.getValue().capacity();
+                        MemoryUtil.memFree(entry.getValue());
+                        iterator.remove();
+                    }
+                }
+            }
+        }
+    }
+
+    @Override
+    public void close() {
+        for (var stripe : this.stripes) {
+            synchronized (stripe) {
+                for (var data : stripe.entries.values()) {
+                    MemoryUtil.memFree(data);
+                }
+                stripe.entries.clear();
+                stripe.bytes = 0;
+            }
+        }
+        super.close();
+    }
+
+    public long getHits() {
+        return this.hits.sum();
+    }
+
+    public long getMisses() {
+        return this.misses.sum();
+    }
+
+    public long getEvictions() {
+        return this.evictions.sum();
+    }
+
+    public long getCachedBytes() {
+        long total = 0;
+        for (var stripe : this.stripes) {
+            synchronized (stripe) {
+                total += stripe.bytes;
+            }
+        }
+        return total;
+    }
+
+    public static class Config extends DelegateStorageConfig {
+        public long maxCachedBytes = 128L<<20;
+
+        @Override
+        public StorageBackend build(ConfigBuildCtx ctx) {
+            return new CachingStorageAdaptor(this.delegate.build(ctx), this.maxCachedBytes);
+        }
+
+        public static String getConfigTypeName() {
+            return "CachingAdaptor";
+        }
+    }
+}
@@ -1,22 +1,308 @@
 package me.cortex.voxy.common.storage.other;
 
+import it.unimi.dsi.fastutil.HashCommon;
 import it.unimi.dsi.fastutil.ints.Int2ObjectOpenHashMap;
+import it.unimi.dsi.fastutil.longs.LongArrayList;
+import me.cortex.voxy.common.storage.ByteBufferConsumer;
+import me.cortex.voxy.common.storage.SectionVisitor;
 import me.cortex.voxy.common.storage.StorageBackend;
 import me.cortex.voxy.common.storage.StorageCompressor;
 import me.cortex.voxy.common.storage.config.CompressorConfig;
 import me.cortex.voxy.common.storage.config.ConfigBuildCtx;
-import me.cortex.voxy.common.storage.config.StorageConfig;
 import org.lwjgl.system.MemoryUtil;
 
 import java.nio.ByteBuffer;
+import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.IntSupplier;
 
-//Compresses the section data
+//Compresses the section data. Optionally adaptive, sections saved while the save backlog is deep are compressed with a
+// fast compressor and recompressed in the background once the storage is idle, with an archive compressor if one is
+// configured. Each payload then starts with a byte tagging the compressor it was compressed with so reads dont care
+// which one it was. Stores created before that dont have tags, which is recorded in the metadata so they stay readable
 public class CompressionStorageAdaptor extends DelegatingStorageAdaptor {
+    private static final int FORMAT_METADATA_ID = StorageBackend.getMetadataMappingId(5);
+    private static final byte FORMAT_TAGGED = 1;
+    private static final byte TAG_MAIN = 0;
+    private static final byte TAG_FAST = 1;
+    private static final byte TAG_ARCHIVE = 2;
+    private static final int STRIPE_BITS = 6;
+    private static final int RECOMPRESS_BATCH_SIZE = 256;
+    private static final int BULK_COMPRESS_CHUNK = 64;
+
     private final StorageCompressor compressor;
+    //Indexed by payload tag, null for the ones that arent configured
+    private final StorageCompressor[] compressors;
+    private final boolean tagged;
+    private final int fastWriteBacklog;
+    private final long idleNanos;
+    private final boolean archiveAllSections;
+    private volatile IntSupplier writeBacklog = () -> 0;
+    private volatile long lastWrite = System.nanoTime();
+
+    //Per thread buffer that readSectionData decompresses into, all allocations are tracked so they can be freed on close
+    private final List<ByteBuffer> scratchBuffers = new ArrayList<>();
+    private final ThreadLocal<ByteBuffer[]> scratch = ThreadLocal.withInitial(() -> new ByteBuffer[]{this.allocateScratch(32*32*32*8*2)});
+
+    //Serializes writes with the recompression of the same key so a recompressed payload never replaces a newer write
+    private final ReentrantLock[] stripes;
+    private final Thread recompressor;
+    //Created by the first bulk load. Its threads never time out, as each one holds its own compressor contexts that are
+    // only freed on close, so threads replaced between batches would leak them
+    private ExecutorService bulkCompressPool;
+    private volatile boolean running = true;
+    private volatile boolean recompressNeeded = true;
+
+    private final LongAdder fastWrites = new LongAdder();
+    private final LongAdder recompressed = new LongAdder();
+    private final LongAdder recompressedBytesSaved = new LongAdder();
+
     public CompressionStorageAdaptor(StorageCompressor compressor, StorageBackend delegate) {
+        this(compressor, null, null, 0, 0, false, delegate);
+    }
+
+    public CompressionStorageAdaptor(StorageCompressor compressor, StorageCompressor fastCompressor, StorageCompressor archiveCompressor, int fastWriteBacklog, int idleRecompressSeconds, boolean archiveAllSections, StorageBackend delegate) {
         super(delegate);
         this.compressor = compressor;
+        this.compressors = new StorageCompressor[]{compressor, fastCompressor, archiveCompressor};
+        this.fastWriteBacklog = fastWriteBacklog;
+        this.idleNanos = idleRecompressSeconds*1_000_000_000L;
+        this.archiveAllSections = archiveAllSections;
+
+        boolean adaptive = fastCompressor != null || archiveCompressor != null;
+        if (delegate.getIdMappingsData().containsKey(FORMAT_METADATA_ID)) {
+            this.tagged = true;
+        } else if (adaptive && delegate.iterateSections(0, -1, (key, data) -> false)) {
+            var format = MemoryUtil.memAlloc(1);
+            format.put(0, FORMAT_TAGGED);
+            delegate.putIdMapping(FORMAT_METADATA_ID, format);
+            MemoryUtil.memFree(format);
+            this.tagged = true;
+        } else {
+            this.tagged = false;
+            if (adaptive) {
+                System.err.println("Storage has sections compressed without payload tags, adaptive compression is disabled for it, migrate it to a new storage to enable it");
+            }
+        }
+
+        if (this.tagged) {
+            for (byte tag = 0; tag < this.compressors.length; tag++) {
+                if (this.compressors[tag] != null) {
+                    this.compressors[tag].attach(new TaggedView(delegate, tag));
+                }
+            }
+        } else {
+            this.compressor.attach(delegate);
+        }
+
+        if (this.tagged && adaptive) {
+            this.stripes = new ReentrantLock[1<<STRIPE_BITS];
+            for (int i = 0; i < this.stripes.length; i++) {
+                this.stripes[i] = new ReentrantLock();
+            }
+            this.recompressor = new Thread(this::recompressWorker);
+            this.recompressor.setName("Storage recompressor");
+            this.recompressor.setDaemon(true);
+            this.recompressor.start();
+        } else {
+            this.stripes = null;
+            this.recompressor = null;
+        }
+    }
+
+    //What a compressor sees of the storage it is attached to, only the payloads it compressed without their tag. The
+    // metadata mappings of each tag are kept apart by putting the tag in high bits of the id, so compressors keeping
+    // state in them (e.g. a trained dictionary) dont overwrite each other. The main compressor uses the ids as they
+    // are, like it does on untagged storages
+    private static final class TaggedView extends DelegatingStorageAdaptor {
+        private static final int METADATA_TAG_SHIFT = 24;
+        private static final int METADATA_TAG_MASK = 0x3F<<METADATA_TAG_SHIFT;
+        private final byte tag;
+
+        private TaggedView(StorageBackend delegate, byte tag) {
+            super(delegate);
+            this.tag = tag;
+        }
+
+        @Override
+        public boolean iterateSections(long fromKey, long toKey, SectionVisitor visitor) {
+            return this.delegate.iterateSections(fromKey, toKey, (key, data) ->
+                    data.get(data.position()) != this.tag || visitor.visit(key, MemoryUtil.memSlice(data, 1, data.remaining() - 1)));
+        }
+
+        //The tag is only known from the payload, so the keys of this tag cant be found from the stored form of lower
+        // layers. The payloads are still compressed here so walking them doesnt decompress anything
+        @Override
+        public boolean iterateStoredSections(long fromKey, long toKey, SectionVisitor visitor) {
+            return this.iterateSections(fromKey, toKey, visitor);
+        }
+
+        @Override
+        public ByteBuffer getSectionData(long key) {
+            return this.untag(this.delegate.getSectionData(key));
+        }
+
+        @Override
+        public ByteBuffer[] getSectionsData(long[] keys) {
+            var data = this.delegate.getSectionsData(keys);
+            for (int i = 0; i < data.length; i++) {
+                data[i] = this.untag(data[i]);
+            }
+            return data;
+        }
+
+        //Copies the payload without its tag and frees the tagged one, null if it was compressed with another tag
+        private ByteBuffer untag(ByteBuffer data) {
+            if (data == null) {
+                return null;
+            }
+            try {
+                if (data.remaining() == 0 || data.get(data.position()) != this.tag) {
+                    return null;
+                }
+                var out = MemoryUtil.memAlloc(data.remaining() - 1);
+                MemoryUtil.memCopy(MemoryUtil.memSlice(data, 1, out.remaining()), out);
+                return out;
+            } finally {
+                MemoryUtil.memFree(data);
+            }
+        }
+
+        @Override
+        public void putIdMapping(int id, ByteBuffer data) {
+            if (StorageBackend.isMetadataMappingId(id)) {
+                if ((id&METADATA_TAG_MASK) != 0) {
+                    throw new IllegalArgumentException("Metadata mapping id " + id + " collides with the compressor tag bits");
+                }
+                id |= this.tag<<METADATA_TAG_SHIFT;
+            }
+            this.delegate.putIdMapping(id, data);
+        }
+
+        @Override
+        public Int2ObjectOpenHashMap<byte[]> getIdMappingsData() {
+            var mappings = new Int2ObjectOpenHashMap<byte[]>();
+            for (var entry : this.delegate.getIdMappingsData().int2ObjectEntrySet()) {
+                int id = entry.getIntKey();
+                if (!StorageBackend.isMetadataMappingId(id)) {
+                    mappings.put(id, entry.getValue());
+                } else if ((id&METADATA_TAG_MASK)>>>METADATA_TAG_SHIFT == this.tag) {
+                    mappings.put(id&~METADATA_TAG_MASK, entry.getValue());
+                }
+            }
+            return mappings;
+        }
+    }
+
+    //Writes switch to the fast compressor while the backlog is deep
+    @Override
+    public void setWriteBacklogSource(IntSupplier backlog) {
+        this.writeBacklog = backlog;
+        super.setWriteBacklogSource(backlog);
+    }
+
+    private ByteBuffer allocateScratch(int size) {
+        var buffer = MemoryUtil.memAlloc(size);
+        synchronized (this.scratchBuffers) {
+            this.scratchBuffers.add(buffer);
+        }
+        return buffer;
+    }
+
+    private void growScratch(ByteBuffer[] holder) {
+        var old = holder[0];
+        holder[0] = this.allocateScratch(old.capacity()*2);
+        synchronized (this.scratchBuffers) {
+            this.scratchBuffers.remove(old);
+        }
+        MemoryUtil.memFree(old);
+    }
+
+    private StorageCompressor getCompressor(byte tag) {
+        var compressor = tag >= 0 && tag < this.compressors.length ? this.compressors[tag] : null;
+        if (compressor == null) {
+            throw new IllegalStateException("Section data was compressed with compressor " + tag + " which isnt configured");
+        }
+        return compressor;
+    }
+
+    private ByteBuffer decompress(ByteBuffer data) {
+        if (!this.tagged) {
+            return this.compressor.decompress(data);
+        }
+        return this.getCompressor(data.get(data.position())).decompress(MemoryUtil.memSlice(data, 1, data.remaining() - 1));
+    }
+
+    private int decompress(ByteBuffer data, ByteBuffer destination) {
+        if (!this.tagged) {
+            return this.compressor.decompress(data, destination);
+        }
+        return this.getCompressor(data.get(data.position())).decompress(MemoryUtil.memSlice(data, 1, data.remaining() - 1), destination);
+    }
+
+    private ByteBuffer compress(ByteBuffer data, byte tag) {
+        if (!this.tagged) {
+            return this.compressor.compress(data);
+        }
+        var compressed = this.compressors[tag].compress(data);
+        try {
+            var out = MemoryUtil.memAlloc(compressed.remaining() + 1);
+            out.put(0, tag);
+            MemoryUtil.memCopy(compressed, MemoryUtil.memSlice(out, 1, compressed.remaining()));
+            return out;
+        } finally {
+            MemoryUtil.memFree(compressed);
+        }
+    }
+
+    //Bulk loads are always written fast, they are imports and the like that are expected to be large
+    private byte getWriteTag(boolean bulk, int count) {
+        this.lastWrite = System.nanoTime();
+        if (this.compressors[TAG_FAST] == null || !this.tagged) {
+            return TAG_MAIN;
+        }
+        if (bulk || this.writeBacklog.getAsInt() >= this.fastWriteBacklog) {
+            this.fastWrites.add(count);
+            this.recompressNeeded = true;
+            return TAG_FAST;
+        }
+        return TAG_MAIN;
+    }
+
+    private ReentrantLock getStripe(long key) {
+        return this.stripes[(int) (HashCommon.mix(key)>>>(64-STRIPE_BITS))];
+    }
+
+    //Locked in index order so concurrent batches cant deadlock
+    private long lockStripes(long[] keys) {
+        if (this.stripes == null) {
+            return 0;
+        }
+        long used = 0;
+        for (long key : keys) {
+            used |= 1L<<(HashCommon.mix(key)>>>(64-STRIPE_BITS));
+        }
+        for (int i = 0; i < this.stripes.length; i++) {
+            if ((used&(1L<<i)) != 0) {
+                this.stripes[i].lock();
+            }
+        }
+        return used;
+    }
+
+    private void unlockStripes(long used) {
+        for (int i = 0; i < 64; i++) {
+            if ((used&(1L<<i)) != 0) {
+                this.stripes[i].unlock();
+            }
+        }
     }
 
     @Override
@@ -25,30 +311,357 @@ public class CompressionStorageAdaptor extends DelegatingStorageAdaptor {
         if (data == null) {
             return null;
         }
-        var decompressed = this.compressor.decompress(data);
+        var decompressed = this.decompress(data);
         MemoryUtil.memFree(data);
         return decompressed;
     }
 
+    //Decompresses straight out of the delegates view into the threads scratch buffer, so no intermediate copies are made
+    @Override
+    public boolean readSectionData(long key, ByteBufferConsumer consumer) {
+        return this.delegate.readSectionData(key, data -> consumer.accept(this.decompressToScratch(data)));
+    }
+
+    @Override
+    public boolean iterateSections(long fromKey, long toKey, SectionVisitor visitor) {
+        return this.delegate.iterateSections(fromKey, toKey, (key, data) -> visitor.visit(key, this.decompressToScratch(data)));
+    }
+
+    @Override
+    public boolean iterateStoredSections(long fromKey, long toKey, SectionVisitor visitor) {
+        return this.delegate.iterateStoredSections(fromKey, toKey, visitor);
+    }
+
+    //Returns a view of the threads scratch buffer holding the decompressed data
+    private ByteBuffer decompressToScratch(ByteBuffer data) {
+        var holder = this.scratch.get();
+        int size;
+        while ((size = this.decompress(data, holder[0].clear())) == -1) {
+            this.growScratch(holder);
+        }
+        return MemoryUtil.memSlice(holder[0], 0, size);
+    }
+
     @Override
     public void setSectionData(long key, ByteBuffer data) {
-        var cdata = this.compressor.compress(data);
-        this.delegate.setSectionData(key, cdata);
-        MemoryUtil.memFree(cdata);
+        var cdata = this.compress(data, this.getWriteTag(false, 1));
+        try {
+            if (this.stripes == null) {
+                this.delegate.setSectionData(key, cdata);
+                return;
+            }
+            var stripe = this.getStripe(key);
+            stripe.lock();
+            try {
+                this.delegate.setSectionData(key, cdata);
+            } finally {
+                stripe.unlock();
+            }
+        } finally {
+            MemoryUtil.memFree(cdata);
+        }
+    }
+
+    @Override
+    public ByteBuffer[] getSectionsData(long[] keys) {
+        var data = this.delegate.getSectionsData(keys);
+        for (int i = 0; i < data.length; i++) {
+            if (data[i] == null) {
+                continue;
+            }
+            var decompressed = this.decompress(data[i]);
+            MemoryUtil.memFree(data[i]);
+            data[i] = decompressed;
+        }
+        return data;
+    }
+
+    @Override
+    public void setSectionsData(long[] keys, ByteBuffer[] data) {
+        this.setCompressed(keys, data, false);
+    }
+
+    @Override
+    public void bulkLoadSections(long[] keys, ByteBuffer[] data) {
+        this.setCompressed(keys, data, true);
+    }
+
+    private void setCompressed(long[] keys, ByteBuffer[] data, boolean bulk) {
+        byte tag = this.getWriteTag(bulk, data.length);
+        var cdata = new ByteBuffer[data.length];
+        try {
+            if (bulk && data.length > BULK_COMPRESS_CHUNK) {
+                this.compressParallel(data, cdata, tag);
+            } else {
+                for (int i = 0; i < data.length; i++) {
+                    cdata[i] = this.compress(data[i], tag);
+                }
+            }
+            long stripes = this.lockStripes(keys);
+            try {
+                if (bulk) {
+                    this.delegate.bulkLoadSections(keys, cdata);
+                } else {
+                    this.delegate.setSectionsData(keys, cdata);
+                }
+            } finally {
+                this.unlockStripes(stripes);
+            }
+        } finally {
+            for (var buffer : cdata) {
+                if (buffer != null) {
+                    MemoryUtil.memFree(buffer);
+                }
+            }
+        }
+    }
+
+    //A bulk load batch is hundreds of megabytes handed over by a single thread, so it is compressed in chunks spread
+    // over a pool, the compressors keep their state per thread
+    private void compressParallel(ByteBuffer[] data, ByteBuffer[] cdata, byte tag) {
+        ExecutorService pool;
+        synchronized (this) {
+            if (this.bulkCompressPool == null) {
+                var index = new AtomicInteger();
+                this.bulkCompressPool = Executors.newFixedThreadPool(Math.max(1, Runtime.getRuntime().availableProcessors() - 1), runnable -> {
+                    var thread = new Thread(runnable);
+                    thread.setName("Storage bulk compressor " + index.getAndIncrement());
+                    thread.setDaemon(true);
+                    return thread;
+                });
+            }
+            pool = this.bulkCompressPool;
+        }
+        var tasks = new ArrayList<Future<?>>();
+        for (int start = 0; start < data.length; start += BULK_COMPRESS_CHUNK) {
+            int from = start;
+            int to = Math.min(start + BULK_COMPRESS_CHUNK, data.length);
+            tasks.add(pool.submit(() -> {
+                for (int i = from; i < to; i++) {
+                    cdata[i] = this.compress(data[i], tag);
+                }
+            }));
+        }
+        //Every task is waited on before failing so none still writes into cdata while the caller frees it
+        RuntimeException error = null;
+        for (var task : tasks) {
+            try {
+                task.get();
+            } catch (ExecutionException e) {
+                if (error == null) {
+                    error = e.getCause() instanceof RuntimeException re ? re : new RuntimeException(e.getCause());
+                }
+            } catch (InterruptedException e) {
+                if (error == null) {
+                    error = new RuntimeException(e);
+                }
+            }
+        }
+        if (error != null) {
+            throw error;
+        }
+    }
+
+    @Override
+    public void deleteSectionData(long key) {
+        if (this.stripes == null) {
+            this.delegate.deleteSectionData(key);
+            return;
+        }
+        var stripe = this.getStripe(key);
+        stripe.lock();
+        try {
+            this.delegate.deleteSectionData(key);
+        } finally {
+            stripe.unlock();
+        }
+    }
+
+    @Override
+    public void deleteSections(long fromKey, long toKey) {
+        if (this.stripes == null) {
+            this.delegate.deleteSections(fromKey, toKey);
+            return;
+        }
+        long stripes = -1L>>>(64-this.stripes.length);
+        for (var stripe : this.stripes) {
+            stripe.lock();
+        }
+        try {
+            this.delegate.deleteSections(fromKey, toKey);
+        } finally {
+            this.unlockStripes(stripes);
+        }
+    }
+
+    private boolean isIdle() {
+        return this.writeBacklog.getAsInt() == 0 && System.nanoTime() - this.lastWrite >= this.idleNanos;
+    }
+
+    //Fast payloads are always recompressed, main ones only if archiveAllSections asks for everything to be archived
+    private boolean needsRecompression(byte tag, byte target) {
+        return tag == TAG_FAST || (this.archiveAllSections && tag == TAG_MAIN && target == TAG_ARCHIVE);
+    }
+
+    //Walks the storage while it is idle, recompressing the sections written with the fast compressor, and the ones
+    // written with the main compressor too if archiveAllSections is set. Once a walk has completed it is only repeated
+    // after more sections have been written with the fast compressor
+    private void recompressWorker() {
+        byte target = this.compressors[TAG_ARCHIVE] != null ? TAG_ARCHIVE : TAG_MAIN;
+        long cursor = 0;
+        long[] lastKey = new long[1];
+        while (this.running) {
+            if (!this.isIdle() || (cursor == 0 && !this.recompressNeeded)) {
+                synchronized (this) {
+                    if (!this.running) {
+                        return;
+                    }
+                    try {
+                        this.wait(1000);
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+                continue;
+            }
+            if (cursor == 0) {
+                this.recompressNeeded = false;
+            }
+
+            var keys = new LongArrayList();
+            try {
+                boolean completed = this.delegate.iterateSections(cursor, -1, (key, data) -> {
+                    lastKey[0] = key;
+                    if (this.needsRecompression(data.get(data.position()), target)) {
+                        keys.add(key);
+                    }
+                    return keys.size() < RECOMPRESS_BATCH_SIZE && this.running && this.isIdle();
+                });
+                int i = 0;
+                for (; i < keys.size() && this.running && this.isIdle(); i++) {
+                    this.recompress(keys.getLong(i), target);
+                }
+                //Continue from the first section that wasnt recompressed if the storage stopped being idle
+                if (i < keys.size()) {
+                    cursor = keys.getLong(i);
+                } else {
+                    cursor = completed || lastKey[0] == -1 ? 0 : lastKey[0] + 1;
+                }
+            } catch (Exception e) {
+                System.err.println("Failed to recompress storage sections: " + e);
+                //Start over later rather than spinning on a section that cant be recompressed
+                this.recompressNeeded = false;
+                cursor = 0;
+            }
+        }
+    }
+
+    private void recompress(long key, byte target) {
+        var stripe = this.getStripe(key);
+        stripe.lock();
+        try {
+            //Reread under the lock as the section may have been rewritten or deleted since the scan
+            var data = this.delegate.getSectionData(key);
+            if (data == null) {
+                return;
+            }
+            try {
+                if (!this.needsRecompression(data.get(data.position()), target)) {
+                    return;
+                }
+                var decompressed = this.decompress(data);
+                try {
+                    var cdata = this.compress(decompressed, target);
+                    try {
+                        this.delegate.setSectionData(key, cdata);
+                        this.recompressed.increment();
+                        this.recompressedBytesSaved.add(data.remaining() - cdata.remaining());
+                    } finally {
+                        MemoryUtil.memFree(cdata);
+                    }
+                } finally {
+                    MemoryUtil.memFree(decompressed);
+                }
+            } finally {
+                MemoryUtil.memFree(data);
+            }
+        } finally {
+            stripe.unlock();
+        }
+    }
+
+    public long getFastWrites() {
+        return this.fastWrites.sum();
+    }
+
+    public long getRecompressed() {
+        return this.recompressed.sum();
+    }
+
+    public void addDebugInfo(List<String> debug) {
+        if (this.recompressor != null) {
+            debug.add("Storage compression: " + this.getFastWrites() + " fast writes, " + this.getRecompressed() + " recompressed saving " + (this.recompressedBytesSaved.sum()>>10) + "KB");
+        }
+    }
+
+    @Override
+    public Int2ObjectOpenHashMap<byte[]> getIdMappingsData() {
+        var mappings = this.delegate.getIdMappingsData();
+        mappings.remove(FORMAT_METADATA_ID);
+        return mappings;
     }
 
     @Override
     public void close() {
-        this.compressor.close();
+        if (this.recompressor != null) {
+            synchronized (this) {
+                this.running = false;
+                this.notifyAll();
+            }
+            try {
+                this.recompressor.join();
+            } catch (InterruptedException e) {
+                throw new RuntimeException(e);
+            }
+        }
+        synchronized (this) {
+            if (this.bulkCompressPool != null) {
+                this.bulkCompressPool.shutdown();
+            }
+        }
+        synchronized (this.scratchBuffers) {
+            this.scratchBuffers.forEach(MemoryUtil::memFree);
+            this.scratchBuffers.clear();
+        }
+        for (var compressor : this.compressors) {
+            if (compressor != null) {
+                compressor.close();
+            }
+        }
         super.close();
     }
 
     public static class Config extends DelegateStorageConfig {
         public CompressorConfig compressor;
+        //Optional, sections saved while at least fastWriteBacklog saves are queued, and all bulk loads, are compressed
+        // with this instead. Only used by storages created with it or archiveCompressor set
+        public CompressorConfig fastCompressor;
+        //Optional, the fast compressed sections are recompressed with this once the storage has been idle for
+        // idleRecompressSeconds, otherwise with the main compressor. Like fastCompressor it must stay set for as long
+        // as the storage has sections compressed with it
+        public CompressorConfig archiveCompressor;
+        //Also recompresses the sections saved with the main compressor with the archive compressor, which rewrites
+        // every section of the storage once
+        public boolean archiveAllSections = false;
+        public int fastWriteBacklog = 512;
+        public int idleRecompressSeconds = 30;
 
         @Override
         public StorageBackend build(ConfigBuildCtx ctx) {
-            return new CompressionStorageAdaptor(this.compressor.build(ctx), this.delegate.build(ctx));
+            return new CompressionStorageAdaptor(this.compressor.build(ctx),
+                    this.fastCompressor == null ? null : this.fastCompressor.build(ctx),
+                    this.archiveCompressor == null ? null : this.archiveCompressor.build(ctx),
+                    this.fastWriteBacklog, this.idleRecompressSeconds, this.archiveAllSections, this.delegate.build(ctx));
         }
 
         public static String getConfigTypeName() {
@@ -0,0 +1,678 @@
+package me.cortex.voxy.common.storage.other;
+
+import it.unimi.dsi.fastutil.HashCommon;
+import it.unimi.dsi.fastutil.ints.Int2ObjectOpenHashMap;
+import it.unimi.dsi.fastutil.ints.IntArrayList;
+import it.unimi.dsi.fastutil.longs.Long2IntOpenHashMap;
+import it.unimi.dsi.fastutil.longs.Long2ObjectLinkedOpenHashMap;
+import it.unimi.dsi.fastutil.longs.Long2ObjectOpenHashMap;
+import it.unimi.dsi.fastutil.longs.LongArrayList;
+import me.cortex.voxy.common.storage.ByteBufferConsumer;
+import me.cortex.voxy.common.storage.SectionVisitor;
+import me.cortex.voxy.common.storage.StorageBackend;
+import me.cortex.voxy.common.storage.config.ConfigBuildCtx;
+import me.cortex.voxy.common.storage.config.StorageConfig;
+import me.cortex.voxy.common.storage.region.RegionFileStorageBackend;
+import org.lwjgl.system.MemoryUtil;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+
+//Stores byte identical section payloads once. The index backend maps each section key to either its payload inline or
+// to the hash of a blob, the blob backend maps the hash to a reference count and the payload. Uniform sections (all air,
+// all stone, ...) serialize to the same small payload, so placing this under the compression adaptor collapses millions
+// of them to a handful of blobs. Payloads over maxSharedSize are always stored inline as they are almost never shared
+// and would only pay for the extra lookup, as are the extremely unlikely payloads whose hash collides with another blob
+public class DeduplicatingStorageAdaptor extends StorageBackend {
+    private static final int STRIPE_BITS = 6;
+    private static final byte ENTRY_INLINE = 0;
+    private static final byte ENTRY_SHARED = 1;
+    private static final int SHARED_ENTRY_SIZE = 9;
+    private static final int REFCOUNT_SIZE = 4;
+
+    private final StorageBackend index;
+    private final StorageBackend blobs;
+    private final int maxSharedSize;
+    private final int maxCachedBlobs;
+
+    //Section keys and blob hashes are locked separately, a blob lock is only ever taken while holding a key lock
+    private final ReentrantLock[] keyStripes = new ReentrantLock[1<<STRIPE_BITS];
+    private final ReentrantLock[] blobStripes = new ReentrantLock[1<<STRIPE_BITS];
+
+    //Payloads of the most recently read blobs that are referenced by more than one section
+    private final Long2ObjectLinkedOpenHashMap<ByteBuffer> blobCache = new Long2ObjectLinkedOpenHashMap<>();
+
+    private final LongAdder sharedWrites = new LongAdder();
+    private final LongAdder cacheHits = new LongAdder();
+
+    public DeduplicatingStorageAdaptor(StorageBackend index, StorageBackend blobs, int maxSharedSize, int maxCachedBlobs) {
+        this.index = index;
+        this.blobs = blobs;
+        this.maxSharedSize = maxSharedSize;
+        this.maxCachedBlobs = maxCachedBlobs;
+        for (int i = 0; i < this.keyStripes.length; i++) {
+            this.keyStripes[i] = new ReentrantLock();
+            this.blobStripes[i] = new ReentrantLock();
+        }
+    }
+
+    private static ReentrantLock getStripe(ReentrantLock[] stripes, long key) {
+        return stripes[(int) (HashCommon.mix(key)>>>(64-STRIPE_BITS))];
+    }
+
+    private static long hashPayload(ByteBuffer data) {
+        long address = MemoryUtil.memAddress(data);
+        int length = data.remaining();
+        long hash = HashCommon.murmurHash3((long) length);
+        int i = 0;
+        for (; i + 8 <= length; i += 8) {
+            hash = HashCommon.murmurHash3(hash^MemoryUtil.memGetLong(address + i)) + i;
+        }
+        for (; i < length; i++) {
+            hash = HashCommon.murmurHash3(hash^(MemoryUtil.memGetByte(address + i)&0xFF)) + i;
+        }
+        return hash;
+    }
+
+    private static boolean payloadEquals(ByteBuffer blob, ByteBuffer data) {
+        return MemoryUtil.memSlice(blob, REFCOUNT_SIZE, blob.remaining() - REFCOUNT_SIZE).equals(data);
+    }
+
+    private static ByteBuffer copyOf(ByteBuffer data) {
+        var copy = MemoryUtil.memAlloc(data.remaining());
+        MemoryUtil.memCopy(data, copy);
+        return copy;
+    }
+
+    //Adds a reference to the blob with the payload, returns false if a different payload already has the hash
+    private boolean addReference(long hash, ByteBuffer data) {
+        var stripe = getStripe(this.blobStripes, hash);
+        stripe.lock();
+        try {
+            var blob = this.blobs.getSectionData(hash);
+            try {
+                if (blob == null) {
+                    blob = MemoryUtil.memAlloc(REFCOUNT_SIZE + data.remaining());
+                    blob.putInt(0, 1);
+                    MemoryUtil.memCopy(data, blob.position(REFCOUNT_SIZE));
+                    this.blobs.setSectionData(hash, blob.position(0));
+                    return true;
+                }
+                if (!payloadEquals(blob, data)) {
+                    return false;
+                }
+                blob.putInt(0, blob.getInt(0) + 1);
+                this.blobs.setSectionData(hash, blob);
+                this.sharedWrites.increment();
+                return true;
+            } finally {
+                if (blob != null) {
+                    MemoryUtil.memFree(blob);
+                }
+            }
+        } finally {
+            stripe.unlock();
+        }
+    }
+
+    private boolean blobMatches(long hash, ByteBuffer data) {
+        var stripe = getStripe(this.blobStripes, hash);
+        stripe.lock();
+        try {
+            boolean[] matches = new boolean[1];
+            this.blobs.readSectionData(hash, blob -> matches[0] = payloadEquals(blob, data));
+            return matches[0];
+        } finally {
+            stripe.unlock();
+        }
+    }
+
+    private void removeReference(long hash) {
+        var stripe = getStripe(this.blobStripes, hash);
+        stripe.lock();
+        try {
+            var blob = this.blobs.getSectionData(hash);
+            if (blob == null) {
+                System.err.println("Deduplicated blob " + Long.toHexString(hash) + " is missing");
+                return;
+            }
+            try {
+                int references = blob.getInt(0) - 1;
+                if (references <= 0) {
+                    this.blobs.deleteSectionData(hash);
+                    this.uncacheBlob(hash);
+                } else {
+                    blob.putInt(0, references);
+                    this.blobs.setSectionData(hash, blob);
+                }
+            } finally {
+                MemoryUtil.memFree(blob);
+            }
+        } finally {
+            stripe.unlock();
+        }
+    }
+
+    //Returns the blob the index entry references, or -1 if the entry is inline. Hashes of -1 are stored inline
+    private static long getReference(ByteBuffer entry) {
+        if (entry.get(entry.position()) == ENTRY_SHARED) {
+            return entry.getLong(entry.position() + 1);
+        }
+        return -1;
+    }
+
+    private long readReference(long key) {
+        long[] reference = {-1};
+        this.index.readSectionData(key, entry -> reference[0] = getReference(entry));
+        return reference[0];
+    }
+
+    //Returns a copy of the payload of the blob owned by the caller, or null if the blob was released since its reference
+    // was read, in which case the section was rewritten or deleted and its index entry has to be read again
+    private ByteBuffer getBlobPayload(long hash) {
+        var cached = this.getCachedPayload(hash);
+        if (cached != null) {
+            return cached;
+        }
+        var blob = this.blobs.getSectionData(hash);
+        if (blob == null) {
+            return null;
+        }
+        try {
+            this.cacheBlob(hash, blob);
+            return copyOf(MemoryUtil.memSlice(blob, REFCOUNT_SIZE, blob.remaining() - REFCOUNT_SIZE));
+        } finally {
+            MemoryUtil.memFree(blob);
+        }
+    }
+
+    private ByteBuffer getCachedPayload(long hash) {
+        synchronized (this.blobCache) {
+            var cached = this.blobCache.getAndMoveToLast(hash);
+            if (cached == null) {
+                return null;
+            }
+            this.cacheHits.increment();
+            return copyOf(cached);
+        }
+    }
+
+    //Only blobs shared by multiple sections are worth keeping around
+    private void cacheBlob(long hash, ByteBuffer blob) {
+        if (this.maxCachedBlobs == 0 || blob.getInt(blob.position()) <= 1) {
+            return;
+        }
+        synchronized (this.blobCache) {
+            if (!this.blobCache.containsKey(hash)) {
+                this.blobCache.putAndMoveToLast(hash, copyOf(MemoryUtil.memSlice(blob, REFCOUNT_SIZE, blob.remaining() - REFCOUNT_SIZE)));
+                if (this.blobCache.size() > this.maxCachedBlobs) {
+                    MemoryUtil.memFree(this.blobCache.removeFirst());
+                }
+            }
+        }
+    }
+
+    private void uncacheBlob(long hash) {
+        synchronized (this.blobCache) {
+            var cached = this.blobCache.remove(hash);
+            if (cached != null) {
+                MemoryUtil.memFree(cached);
+            }
+        }
+    }
+
+    //Locked in index order so concurrent batches cant deadlock
+    private static long lockStripes(ReentrantLock[] stripes, long[] keys) {
+        long used = 0;
+        for (long key : keys) {
+            used |= 1L<<(HashCommon.mix(key)>>>(64-STRIPE_BITS));
+        }
+        for (int i = 0; i < stripes.length; i++) {
+            if ((used&(1L<<i)) != 0) {
+                stripes[i].lock();
+            }
+        }
+        return used;
+    }
+
+    private static void unlockStripes(ReentrantLock[] stripes, long used) {
+        for (int i = 0; i < stripes.length; i++) {
+            if ((used&(1L<<i)) != 0) {
+                stripes[i].unlock();
+            }
+        }
+    }
+
+    @Override
+    public ByteBuffer getSectionData(long key) {
+        while (true) {
+            ByteBuffer[] inline = new ByteBuffer[1];
+            long[] reference = {-1};
+            boolean found = this.index.readSectionData(key, entry -> {
+                reference[0] = getReference(entry);
+                if (reference[0] == -1) {
+                    inline[0] = copyOf(MemoryUtil.memSlice(entry, 1, entry.remaining() - 1));
+                }
+            });
+            if (!found || reference[0] == -1) {
+                return inline[0];
+            }
+            var payload = this.getBlobPayload(reference[0]);
+            if (payload != null) {
+                return payload;
+            }
+        }
+    }
+
+    @Override
+    public boolean readSectionData(long key, ByteBufferConsumer consumer) {
+        while (true) {
+            long[] reference = {-1};
+            boolean found = this.index.readSectionData(key, entry -> {
+                reference[0] = getReference(entry);
+                if (reference[0] == -1) {
+                    consumer.accept(MemoryUtil.memSlice(entry, 1, entry.remaining() - 1));
+                }
+            });
+            if (!found || reference[0] == -1) {
+                return found;
+            }
+            var payload = this.getBlobPayload(reference[0]);
+            if (payload != null) {
+                try {
+                    consumer.accept(payload);
+                } finally {
+                    MemoryUtil.memFree(payload);
+                }
+                return true;
+            }
+        }
+    }
+
+    @Override
+    public void setSectionData(long key, ByteBuffer data) {
+        var stripe = getStripe(this.keyStripes, key);
+        stripe.lock();
+        try {
+            long previous = this.readReference(key);
+            long hash = -1;
+            if (data.remaining() <= this.maxSharedSize) {
+                hash = hashPayload(data);
+                if (hash == previous) {
+                    //Rewriting the payload already stored leaves the refcount unchanged
+                    if (this.blobMatches(hash, data)) {
+                        return;
+                    }
+                    hash = -1;
+                } else if (hash != -1 && !this.addReference(hash, data)) {
+                    hash = -1;
+                }
+            }
+
+            if (hash != -1) {
+                var entry = MemoryUtil.memAlloc(SHARED_ENTRY_SIZE);
+                entry.put(0, ENTRY_SHARED).putLong(1, hash);
+                try {
+                    this.index.setSectionData(key, entry);
+                } finally {
+                    MemoryUtil.memFree(entry);
+                }
+            } else {
+                var entry = MemoryUtil.memAlloc(1 + data.remaining());
+                entry.put(0, ENTRY_INLINE);
+                MemoryUtil.memCopy(data, entry.position(1));
+                try {
+                    this.index.setSectionData(key, entry.position(0));
+                } finally {
+                    MemoryUtil.memFree(entry);
+                }
+            }
+
+            if (previous != -1) {
+                this.removeReference(previous);
+            }
+        } finally {
+            stripe.unlock();
+        }
+    }
+
+    //Reads the index entries in one batch and then the blobs they reference that arent cached in a second one
+    @Override
+    public ByteBuffer[] getSectionsData(long[] keys) {
+        var out = new ByteBuffer[keys.length];
+        var entries = this.index.getSectionsData(keys);
+        var referencing = new Long2ObjectOpenHashMap<IntArrayList>();
+        for (int i = 0; i < keys.length; i++) {
+            var entry = entries[i];
+            if (entry == null) {
+                continue;
+            }
+            try {
+                long reference = getReference(entry);
+                if (reference == -1) {
+                    out[i] = copyOf(MemoryUtil.memSlice(entry, 1, entry.remaining() - 1));
+                } else if ((out[i] = this.getCachedPayload(reference)) == null) {
+                    referencing.computeIfAbsent(reference, hash -> new IntArrayList()).add(i);
+                }
+            } finally {
+                MemoryUtil.memFree(entry);
+            }
+        }
+        if (referencing.isEmpty()) {
+            return out;
+        }
+        long[] hashes = referencing.keySet().toLongArray();
+        var blobs = this.blobs.getSectionsData(hashes);
+        for (int i = 0; i < hashes.length; i++) {
+            var indices = referencing.get(hashes[i]);
+            var blob = blobs[i];
+            if (blob == null) {
+                //Released since the index was read, the sections were rewritten or deleted so they are read again
+                for (int j = 0; j < indices.size(); j++) {
+                    out[indices.getInt(j)] = this.getSectionData(keys[indices.getInt(j)]);
+                }
+                continue;
+            }
+            try {
+                this.cacheBlob(hashes[i], blob);
+                var payload = MemoryUtil.memSlice(blob, REFCOUNT_SIZE, blob.remaining() - REFCOUNT_SIZE);
+                for (int j = 0; j < indices.size(); j++) {
+                    out[indices.getInt(j)] = copyOf(payload);
+                }
+            } finally {
+                MemoryUtil.memFree(blob);
+            }
+        }
+        return out;
+    }
+
+    //Works out the reference changes of the whole batch from a batched read of the index entries and the blobs, then
+    // writes them in batches. Like the single key path the blobs gaining references are written before the index and
+    // the ones losing references after it, so a crash in between can only leave a refcount too high
+    @Override
+    public void setSectionsData(long[] keys, ByteBuffer[] data) {
+        if (keys.length != data.length) {
+            throw new IllegalArgumentException("Key count does not match data count");
+        }
+        //A key written twice in the batch keeps its last payload
+        var lastWrite = new Long2IntOpenHashMap(keys.length);
+        for (int i = 0; i < keys.length; i++) {
+            lastWrite.put(keys[i], i);
+        }
+        long[] unique = lastWrite.keySet().toLongArray();
+        var payloads = new ByteBuffer[unique.length];
+        for (int i = 0; i < unique.length; i++) {
+            payloads[i] = data[lastWrite.get(unique[i])];
+        }
+
+        long keyLocks = lockStripes(this.keyStripes, unique);
+        try {
+            long[] previous = new long[unique.length];
+            var entries = this.index.getSectionsData(unique);
+            for (int i = 0; i < unique.length; i++) {
+                previous[i] = entries[i] == null ? -1 : getReference(entries[i]);
+                if (entries[i] != null) {
+                    MemoryUtil.memFree(entries[i]);
+                }
+            }
+            long[] hashes = new long[unique.length];
+            var blobIndex = new Long2IntOpenHashMap();
+            blobIndex.defaultReturnValue(-1);
+            for (int i = 0; i < unique.length; i++) {
+                hashes[i] = payloads[i].remaining() <= this.maxSharedSize ? hashPayload(payloads[i]) : -1;
+                if (hashes[i] != -1) {
+                    blobIndex.putIfAbsent(hashes[i], blobIndex.size());
+                }
+                if (previous[i] != -1) {
+                    blobIndex.putIfAbsent(previous[i], blobIndex.size());
+                }
+            }
+            long[] blobKeys = new long[blobIndex.size()];
+            for (var entry : blobIndex.long2IntEntrySet()) {
+                blobKeys[entry.getIntValue()] = entry.getLongKey();
+            }
+
+            long blobLocks = lockStripes(this.blobStripes, blobKeys);
+            var stored = blobKeys.length == 0 ? new ByteBuffer[0] : this.blobs.getSectionsData(blobKeys);
+            var written = new ByteBuffer[blobKeys.length];
+            try {
+                int[] delta = new int[blobKeys.length];
+                //Payload of each blob that doesnt exist yet, from the first section of the batch with its hash
+                var created = new ByteBuffer[blobKeys.length];
+                boolean[] unchanged = new boolean[unique.length];
+                for (int i = 0; i < unique.length; i++) {
+                    if (hashes[i] == -1) {
+                        continue;
+                    }
+                    int blob = blobIndex.get(hashes[i]);
+                    boolean matches = stored[blob] != null ? payloadEquals(stored[blob], payloads[i]) : created[blob] == null || created[blob].equals(payloads[i]);
+                    if (!matches) {
+                        hashes[i] = -1;
+                        continue;
+                    }
+                    if (hashes[i] == previous[i] && stored[blob] != null) {
+                        //Rewriting the payload already stored leaves the refcount unchanged
+                        unchanged[i] = true;
+                        continue;
+                    }
+                    if (stored[blob] == null && created[blob] == null) {
+                        created[blob] = payloads[i];
+                    } else {
+                        this.sharedWrites.increment();
+                    }
+                    delta[blob]++;
+                }
+                //A previous blob that is missing has no references left to drop, and when the batch creates it again
+                // the new references must not be taken off it
+                for (int i = 0; i < unique.length; i++) {
+                    if (!unchanged[i] && previous[i] != -1 && stored[blobIndex.get(previous[i])] != null) {
+                        delta[blobIndex.get(previous[i])]--;
+                    }
+                }
+
+                var deleted = new LongArrayList();
+                for (int i = 0; i < blobKeys.length; i++) {
+                    if (delta[i] == 0) {
+                        continue;
+                    }
+                    if (stored[i] == null) {
+                        if (created[i] == null) {
+                            System.err.println("Deduplicated blob " + Long.toHexString(blobKeys[i]) + " is missing");
+                            continue;
+                        }
+                        written[i] = MemoryUtil.memAlloc(REFCOUNT_SIZE + created[i].remaining());
+                        written[i].putInt(0, delta[i]);
+                        MemoryUtil.memCopy(created[i], MemoryUtil.memSlice(written[i], REFCOUNT_SIZE, created[i].remaining()));
+                        continue;
+                    }
+                    int references = stored[i].getInt(stored[i].position()) + delta[i];
+                    if (references <= 0) {
+                        deleted.add(blobKeys[i]);
+                    } else {
+                        stored[i].putInt(stored[i].position(), references);
+                        written[i] = stored[i];
+                        stored[i] = null;
+                    }
+                }
+
+                this.writeBlobs(blobKeys, written, delta, true);
+                this.writeIndexEntries(unique, payloads, hashes, unchanged);
+                this.writeBlobs(blobKeys, written, delta, false);
+                for (int i = 0; i < deleted.size(); i++) {
+                    this.blobs.deleteSectionData(deleted.getLong(i));
+                    this.uncacheBlob(deleted.getLong(i));
+                }
+            } finally {
+                for (int i = 0; i < blobKeys.length; i++) {
+                    if (stored[i] != null) {
+                        MemoryUtil.memFree(stored[i]);
+                    }
+                    if (written[i] != null) {
+                        MemoryUtil.memFree(written[i]);
+                    }
+                }
+                unlockStripes(this.blobStripes, blobLocks);
+            }
+        } finally {
+            unlockStripes(this.keyStripes, keyLocks);
+        }
+    }
+
+    //Writes the blobs that gained or lost references in a single batch
+    private void writeBlobs(long[] blobKeys, ByteBuffer[] written, int[] delta, boolean gained) {
+        var keys = new LongArrayList();
+        var data = new ArrayList<ByteBuffer>();
+        for (int i = 0; i < blobKeys.length; i++) {
+            if (written[i] != null && (delta[i] > 0) == gained) {
+                keys.add(blobKeys[i]);
+                data.add(written[i]);
+            }
+        }
+        if (!keys.isEmpty()) {
+            this.blobs.setSectionsData(keys.toLongArray(), data.toArray(new ByteBuffer[0]));
+        }
+    }
+
+    private void writeIndexEntries(long[] keys, ByteBuffer[] payloads, long[] hashes, boolean[] unchanged) {
+        var entryKeys = new LongArrayList();
+        var entries = new ArrayList<ByteBuffer>();
+        try {
+            for (int i = 0; i < keys.length; i++) {
+                if (unchanged[i]) {
+                    continue;
+                }
+                ByteBuffer entry;
+                if (hashes[i] != -1) {
+                    entry = MemoryUtil.memAlloc(SHARED_ENTRY_SIZE);
+                    entry.put(0, ENTRY_SHARED).putLong(1, hashes[i]);
+                } else {
+                    entry = MemoryUtil.memAlloc(1 + payloads[i].remaining());
+                    entry.put(0, ENTRY_INLINE);
+                    MemoryUtil.memCopy(payloads[i], MemoryUtil.memSlice(entry, 1, payloads[i].remaining()));
+                }
+                entryKeys.add(keys[i]);
+                entries.add(entry);
+            }
+            if (!entryKeys.isEmpty()) {
+                this.index.setSectionsData(entryKeys.toLongArray(), entries.toArray(new ByteBuffer[0]));
+            }
+        } finally {
+            entries.forEach(MemoryUtil::memFree);
+        }
+    }
+
+    @Override
+    public void deleteSectionData(long key) {
+        var stripe = getStripe(this.keyStripes, key);
+        stripe.lock();
+        try {
+            long previous = this.readReference(key);
+            this.index.deleteSectionData(key);
+            if (previous != -1) {
+                this.removeReference(previous);
+            }
+        } finally {
+            stripe.unlock();
+        }
+    }
+
+    @Override
+    public boolean iterateSections(long fromKey, long toKey, SectionVisitor visitor) {
+        //Sections rewritten while being iterated cant be reread from within the index iteration, they are visited after
+        var rewritten = new LongArrayList();
+        boolean completed = this.index.iterateSections(fromKey, toKey, (key, entry) -> {
+            long reference = getReference(entry);
+            if (reference == -1) {
+                return visitor.visit(key, MemoryUtil.memSlice(entry, 1, entry.remaining() - 1));
+            }
+            var payload = this.getBlobPayload(reference);
+            if (payload == null) {
+                rewritten.add(key);
+                return true;
+            }
+            try {
+                return visitor.visit(key, payload);
+            } finally {
+                MemoryUtil.memFree(payload);
+            }
+        });
+        for (int i = 0; i < rewritten.size() && completed; i++) {
+            long key = rewritten.getLong(i);
+            var data = this.getSectionData(key);
+            if (data != null) {
+                try {
+                    completed = visitor.visit(key, data);
+                } finally {
+                    MemoryUtil.memFree(data);
+                }
+            }
+        }
+        return completed;
+    }
+
+    //Number of writes that referenced an already stored blob instead of storing the payload again
+    public long getSharedWrites() {
+        return this.sharedWrites.sum();
+    }
+
+    public long getCacheHits() {
+        return this.cacheHits.sum();
+    }
+
+    @Override
+    public void putIdMapping(int id, ByteBuffer data) {
+        this.index.putIdMapping(id, data);
+    }
+
+    @Override
+    public Int2ObjectOpenHashMap<byte[]> getIdMappingsData() {
+        return this.index.getIdMappingsData();
+    }
+
+    @Override
+    public void flush() {
+        this.index.flush();
+        this.blobs.flush();
+    }
+
+    @Override
+    public void close() {
+        this.index.close();
+        this.blobs.close();
+        synchronized (this.blobCache) {
+            this.blobCache.values().forEach(MemoryUtil::memFree);
+            this.blobCache.clear();
+        }
+    }
+
+    @Override
+    public List<StorageBackend> getChildBackends() {
+        return List.of(this.index, this.blobs);
+    }
+
+    public static class Config extends StorageConfig {
+        public StorageConfig index;
+        public StorageConfig blobs;
+        public int maxSharedSize = 4096;
+        public int maxCachedBlobs = 1024;
+
+        @Override
+        public List<StorageConfig> getChildStorageConfigs() {
+            return List.of(this.index, this.blobs);
+        }
+
+        @Override
+        public StorageBackend build(ConfigBuildCtx ctx) {
+            //Blobs are keyed by the hash of their payload
+            RegionFileStorageBackend.Config.rejectIn(this.blobs, "The blob storage of deduplication");
+            return new DeduplicatingStorageAdaptor(this.index.build(ctx), this.blobs.build(ctx), this.maxSharedSize, this.maxCachedBlobs);
+        }
+
+        public static String getConfigTypeName() {
+            return "DeduplicatingAdaptor";
+        }
+    }
+}
@@ -1,6 +1,8 @@
 package me.cortex.voxy.common.storage.other;
 
 import it.unimi.dsi.fastutil.ints.Int2ObjectOpenHashMap;
+import me.cortex.voxy.common.storage.ByteBufferConsumer;
+import me.cortex.voxy.common.storage.SectionVisitor;
 import me.cortex.voxy.common.storage.StorageBackend;
 import me.cortex.voxy.common.storage.StorageCompressor;
 import me.cortex.voxy.common.storage.config.CompressorConfig;
@@ -27,6 +29,32 @@ public class DelegatingStorageAdaptor extends StorageBackend {
         this.delegate.setSectionData(key, data);
     }
 
+    @Override
+    public boolean readSectionData(long key, ByteBufferConsumer consumer) {
+        return this.delegate.readSectionData(key, consumer);
+    }
+
+    @Override
+    public ByteBuffer[] getSectionsData(long[] keys) {
+        return this.delegate.getSectionsData(keys);
+    }
+
+    @Override
+    public void setSectionsData(long[] keys, ByteBuffer[] data) {
+        this.delegate.setSectionsData(keys, data);
+    }
+
+    @Override
+    public boolean iterateSections(long fromKey, long toKey, SectionVisitor visitor) {
+        return this.delegate.iterateSections(fromKey, toKey, visitor);
+    }
+
+    //Subclasses that change the keys or data must override this as well
+    @Override
+    public boolean iterateStoredSections(long fromKey, long toKey, SectionVisitor visitor) {
+        return this.delegate.iterateStoredSections(fromKey, toKey, visitor);
+    }
+
     @Override
     public void deleteSectionData(long key) {
         this.delegate.deleteSectionData(key);
@@ -1,59 +1,454 @@
 package me.cortex.voxy.common.storage.other;
 
 import it.unimi.dsi.fastutil.ints.Int2ObjectOpenHashMap;
+import it.unimi.dsi.fastutil.ints.IntArrayList;
+import it.unimi.dsi.fastutil.ints.IntArrays;
 import it.unimi.dsi.fastutil.objects.Object2IntMap;
 import it.unimi.dsi.fastutil.objects.Object2IntOpenHashMap;
+import me.cortex.voxy.common.storage.ByteBufferConsumer;
+import me.cortex.voxy.common.storage.SectionVisitor;
 import me.cortex.voxy.common.storage.StorageBackend;
 import me.cortex.voxy.common.storage.config.ConfigBuildCtx;
 import me.cortex.voxy.common.storage.config.StorageConfig;
 import net.minecraft.util.math.random.RandomSeed;
+import org.lwjgl.system.MemoryUtil;
 
 import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
 
-//Segments the section data into multiple dbs
+//Segments the section data into multiple dbs. Keys are placed on a consistent hash ring with a number of virtual nodes
+// per fragment, so appending a fragment to the config only moves the keys that now belong to it. The fragment count
+// the data was laid out with is stored in every fragment, when it grows the affected keys are moved on startup
 public class FragmentedStorageBackendAdaptor extends StorageBackend {
+    private static final int SHARD_MAP_METADATA_ID = StorageBackend.getMetadataMappingId(3);
+    private static final int VIRTUAL_NODES = 128;
+    private static final int REBALANCE_BATCH = 256;
+
     private final StorageBackend[] backends;
+    private final long[] ringPositions;
+    private final int[] ringOwners;
+
+    //Operations spanning multiple fragments run one share on the calling thread and hand the others to a pool shared
+    // by all fragments, so concurrent callers of the same fragment still run in parallel
+    private final Thread[] workers;
+    private final LinkedBlockingQueue<Runnable> workQueue = new LinkedBlockingQueue<>();
+    private static final Runnable STOP = () -> {};
+
+    //A share of a fan out that is run by whichever of the pool or the caller claims it first
+    private static final class Share extends CompletableFuture<Void> implements Runnable {
+        private final Runnable task;
+        private final AtomicBoolean claimed = new AtomicBoolean();
+
+        private Share(Runnable task) {
+            this.task = task;
+        }
+
+        @Override
+        public void run() {
+            if (!this.claimed.compareAndSet(false, true)) {
+                return;
+            }
+            try {
+                this.task.run();
+                this.complete(null);
+            } catch (Throwable e) {
+                this.completeExceptionally(e);
+            }
+        }
+    }
 
     public FragmentedStorageBackendAdaptor(StorageBackend... backends) {
+        if (backends.length == 0) {
+            throw new IllegalArgumentException("Need at least one backend");
+        }
         this.backends = backends;
-        int len = backends.length;
-        if ((len&(len-1)) != (len-1)) {
-            throw new IllegalArgumentException("Backend count not a power of 2");
+        this.ringPositions = new long[backends.length * VIRTUAL_NODES];
+        this.ringOwners = new int[backends.length * VIRTUAL_NODES];
+        buildRing(backends.length, this.ringPositions, this.ringOwners);
+
+        //The caller runs one share itself, so the pool only needs a thread for each of the others
+        this.workers = new Thread[Math.max(1, backends.length - 1)];
+        for (int i = 0; i < this.workers.length; i++) {
+            this.workers[i] = new Thread(() -> {
+                while (true) {
+                    Runnable task;
+                    try {
+                        task = this.workQueue.take();
+                    } catch (InterruptedException e) {
+                        throw new RuntimeException(e);
+                    }
+                    if (task == STOP) {
+                        return;
+                    }
+                    task.run();
+                }
+            });
+            this.workers[i].setName("Storage fragment worker #" + i);
+            this.workers[i].setDaemon(true);
+            this.workers[i].start();
         }
+
+        try {
+            this.rebalance();
+        } catch (RuntimeException e) {
+            this.close();
+            throw e;
+        }
+    }
+
+    private static long hashKey(long key) {
+        return RandomSeed.mixStafford13(RandomSeed.mixStafford13(key)^key);
+    }
+
+    private static void buildRing(int fragments, long[] positions, int[] owners) {
+        int[] order = new int[fragments * VIRTUAL_NODES];
+        long[] unsorted = new long[order.length];
+        for (int i = 0; i < order.length; i++) {
+            order[i] = i;
+            unsorted[i] = hashKey(((long) (i / VIRTUAL_NODES) << 32) | (i % VIRTUAL_NODES));
+        }
+        IntArrays.quickSort(order, (a, b) -> Long.compare(unsorted[a], unsorted[b]));
+        for (int i = 0; i < order.length; i++) {
+            positions[i] = unsorted[order[i]];
+            owners[i] = order[i] / VIRTUAL_NODES;
+        }
+    }
+
+    //The fragment owning the first virtual node at or after the hash of the key, wrapping around the ring
+    private static int getOwner(long key, long[] positions, int[] owners) {
+        if (positions.length == VIRTUAL_NODES) {
+            return 0;
+        }
+        int index = Arrays.binarySearch(positions, hashKey(key));
+        if (index < 0) {
+            index = -index - 1;
+        }
+        return owners[index == positions.length ? 0 : index];
     }
 
     private int getSegmentId(long key) {
-        return (int) (RandomSeed.mixStafford13(RandomSeed.mixStafford13(key)^key)&(this.backends.length-1));
+        return getOwner(key, this.ringPositions, this.ringOwners);
     }
 
-    //TODO: reencode the key to be shifted one less OR
-    // use like a mix64 to shuffle the key in getSegmentId so that
-    // multiple layers of spliced storage backends can be stacked
+    //Runs a task per fragment and waits for all of them. The first task is run inline and the rest are queued on the
+    // pool, the caller then runs any the pool hasnt started yet itself so it is never left waiting on a busy pool
+    private void fanOut(Runnable[] tasks) {
+        int count = 0;
+        int last = -1;
+        for (int i = 0; i < tasks.length; i++) {
+            if (tasks[i] != null) {
+                count++;
+                last = i;
+            }
+        }
+        if (count == 0) {
+            return;
+        }
+        if (count == 1) {
+            tasks[last].run();
+            return;
+        }
+        var shares = new ArrayList<Share>(count);
+        Runnable inline = null;
+        for (var task : tasks) {
+            if (task == null) {
+                continue;
+            }
+            if (inline == null) {
+                inline = task;
+                continue;
+            }
+            var share = new Share(task);
+            shares.add(share);
+            this.workQueue.add(share);
+        }
+        RuntimeException failure = null;
+        try {
+            inline.run();
+        } catch (RuntimeException e) {
+            failure = e;
+        }
+        for (var share : shares) {
+            share.run();
+        }
+        for (var share : shares) {
+            try {
+                share.join();
+            } catch (CompletionException e) {
+                if (failure == null) {
+                    failure = e.getCause() instanceof RuntimeException re ? re : new RuntimeException(e.getCause());
+                } else {
+                    failure.addSuppressed(e.getCause());
+                }
+            }
+        }
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    private void forEachBackend(Consumer<StorageBackend> action) {
+        var tasks = new Runnable[this.backends.length];
+        for (int i = 0; i < tasks.length; i++) {
+            var backend = this.backends[i];
+            tasks[i] = () -> action.accept(backend);
+        }
+        this.fanOut(tasks);
+    }
+
+    private static int getStoredFragmentCount(StorageBackend backend) {
+        var data = backend.getIdMappingsData().get(SHARD_MAP_METADATA_ID);
+        return data == null ? 0 : ByteBuffer.wrap(data).order(ByteOrder.nativeOrder()).getInt();
+    }
+
+    //Moves the keys whose owner changed since the fragment count stored in the fragments, or every key not on its ring
+    // owner when no count is stored. Data is copied before it is deleted and the new count is only stored once
+    // everything moved, so an interrupted rebalance is redone safely
+    private void rebalance() {
+        int previous = 0;
+        for (var backend : this.backends) {
+            previous = Math.max(previous, getStoredFragmentCount(backend));
+        }
+        if (previous > this.backends.length) {
+            throw new IllegalStateException("Storage was fragmented over " + previous + " backends but only " + this.backends.length + " are configured, fragments cannot be removed");
+        }
+        if (previous == this.backends.length) {
+            return;
+        }
+        //Data written before the fragment count was recorded was routed by masking the key hash with the fragment count,
+        // which could not change, so all the configured fragments hold data that has to be moved onto the ring
+        int oldCount = previous == 0 ? this.backends.length : previous;
+
+        //New fragments get the id mappings of the existing ones
+        var mappings = this.getIdMappingsData();
+        for (int i = oldCount; i < this.backends.length; i++) {
+            for (var entry : mappings.int2ObjectEntrySet()) {
+                if (entry.getIntKey() == SHARD_MAP_METADATA_ID) {
+                    continue;
+                }
+                var data = MemoryUtil.memAlloc(entry.getValue().length);
+                data.put(0, entry.getValue());
+                this.backends[i].putIdMapping(entry.getIntKey(), data);
+                MemoryUtil.memFree(data);
+            }
+        }
+
+        AtomicLong moved = new AtomicLong();
+        var tasks = new Runnable[oldCount];
+        for (int fragment = 0; fragment < oldCount; fragment++) {
+            int source = fragment;
+            tasks[fragment] = () -> moved.addAndGet(this.moveMisplaced(source));
+        }
+        this.fanOut(tasks);
+
+        var count = MemoryUtil.memAlloc(4);
+        count.putInt(0, this.backends.length);
+        this.forEachBackend(backend -> {
+            backend.putIdMapping(SHARD_MAP_METADATA_ID, count);
+            backend.flush();
+        });
+        MemoryUtil.memFree(count);
+        if (moved.get() != 0) {
+            if (previous == 0) {
+                System.out.println("Moved " + moved.get() + " sections from the old hash mask layout onto the hash ring");
+            } else {
+                System.out.println("Moved " + moved.get() + " sections while growing storage from " + oldCount + " to " + this.backends.length + " fragments");
+            }
+        }
+    }
+
+    //Moves the misplaced sections in bounded batches, each scan stops once a batch is full and the next one resumes
+    // after the last key seen so the keys of a whole fragment are never held at once
+    private long moveMisplaced(int source) {
+        var backend = this.backends[source];
+        long moved = 0;
+        long[] batch = new long[REBALANCE_BATCH];
+        int[] count = new int[1];
+        long[] resume = {0};
+        boolean completed;
+        do {
+            count[0] = 0;
+            completed = backend.iterateStoredSections(resume[0], -1, (key, data) -> {
+                resume[0] = key + 1;
+                if (this.getSegmentId(key) != source) {
+                    batch[count[0]++] = key;
+                }
+                return count[0] != batch.length && resume[0] != 0;
+            });
+            if (count[0] == 0) {
+                continue;
+            }
+            long[] keys = Arrays.copyOf(batch, count[0]);
+            var data = backend.getSectionsData(keys);
+            try {
+                for (int i = 0; i < keys.length; i++) {
+                    if (data[i] != null) {
+                        this.backends[this.getSegmentId(keys[i])].setSectionData(keys[i], data[i]);
+                    }
+                }
+            } finally {
+                for (var buffer : data) {
+                    if (buffer != null) {
+                        MemoryUtil.memFree(buffer);
+                    }
+                }
+            }
+            for (long key : keys) {
+                backend.deleteSectionData(key);
+            }
+            moved += keys.length;
+        } while (!completed && resume[0] != 0);
+        return moved;
+    }
 
     @Override
     public ByteBuffer getSectionData(long key) {
         return this.backends[this.getSegmentId(key)].getSectionData(key);
     }
 
+    @Override
+    public boolean readSectionData(long key, ByteBufferConsumer consumer) {
+        return this.backends[this.getSegmentId(key)].readSectionData(key, consumer);
+    }
+
     @Override
     public void setSectionData(long key, ByteBuffer data) {
         this.backends[this.getSegmentId(key)].setSectionData(key, data);
     }
 
+    //Groups the indices of the keys by the segment they belong to
+    private IntArrayList[] splitBySegment(long[] keys) {
+        var segments = new IntArrayList[this.backends.length];
+        for (int i = 0; i < keys.length; i++) {
+            int segment = this.getSegmentId(keys[i]);
+            if (segments[segment] == null) {
+                segments[segment] = new IntArrayList();
+            }
+            segments[segment].add(i);
+        }
+        return segments;
+    }
+
+    @Override
+    public ByteBuffer[] getSectionsData(long[] keys) {
+        var out = new ByteBuffer[keys.length];
+        var segments = this.splitBySegment(keys);
+        var tasks = new Runnable[segments.length];
+        for (int segment = 0; segment < segments.length; segment++) {
+            var indices = segments[segment];
+            if (indices == null) {
+                continue;
+            }
+            var backend = this.backends[segment];
+            tasks[segment] = () -> {
+                long[] segmentKeys = new long[indices.size()];
+                for (int i = 0; i < segmentKeys.length; i++) {
+                    segmentKeys[i] = keys[indices.getInt(i)];
+                }
+                var results = backend.getSectionsData(segmentKeys);
+                for (int i = 0; i < segmentKeys.length; i++) {
+                    out[indices.getInt(i)] = results[i];
+                }
+            };
+        }
+        try {
+            this.fanOut(tasks);
+        } catch (RuntimeException e) {
+            for (var buffer : out) {
+                if (buffer != null) {
+                    MemoryUtil.memFree(buffer);
+                }
+            }
+            throw e;
+        }
+        return out;
+    }
+
+    @Override
+    public void setSectionsData(long[] keys, ByteBuffer[] data) {
+        this.setSegmented(keys, data, false);
+    }
+
+    //Splitting keeps the keys of each fragment in order
+    @Override
+    public void bulkLoadSections(long[] keys, ByteBuffer[] data) {
+        this.setSegmented(keys, data, true);
+    }
+
+    private void setSegmented(long[] keys, ByteBuffer[] data, boolean bulk) {
+        if (keys.length != data.length) {
+            throw new IllegalArgumentException("Key count does not match data count");
+        }
+        var segments = this.splitBySegment(keys);
+        var tasks = new Runnable[segments.length];
+        for (int segment = 0; segment < segments.length; segment++) {
+            var indices = segments[segment];
+            if (indices == null) {
+                continue;
+            }
+            var backend = this.backends[segment];
+            tasks[segment] = () -> {
+                long[] segmentKeys = new long[indices.size()];
+                ByteBuffer[] segmentData = new ByteBuffer[indices.size()];
+                for (int i = 0; i < segmentKeys.length; i++) {
+                    segmentKeys[i] = keys[indices.getInt(i)];
+                    segmentData[i] = data[indices.getInt(i)];
+                }
+                if (bulk) {
+                    backend.bulkLoadSections(segmentKeys, segmentData);
+                } else {
+                    backend.setSectionsData(segmentKeys, segmentData);
+                }
+            };
+        }
+        this.fanOut(tasks);
+    }
+
+    //Each fragment is walked in turn, so keys are only ordered within a fragment
+    @Override
+    public boolean iterateSections(long fromKey, long toKey, SectionVisitor visitor) {
+        for (var backend : this.backends) {
+            if (!backend.iterateSections(fromKey, toKey, visitor)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public boolean iterateStoredSections(long fromKey, long toKey, SectionVisitor visitor) {
+        for (var backend : this.backends) {
+            if (!backend.iterateStoredSections(fromKey, toKey, visitor)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
     @Override
     public void deleteSectionData(long key) {
         this.backends[this.getSegmentId(key)].deleteSectionData(key);
     }
 
+    //Fragments hold disjoint keys, so the range is deleted from all of them in parallel
+    @Override
+    public void deleteSections(long fromKey, long toKey) {
+        this.forEachBackend(backend -> backend.deleteSections(fromKey, toKey));
+    }
+
     @Override
     public void putIdMapping(int id, ByteBuffer data) {
         //Replicate the mappings over all the dbs to mean the chance of recovery in case of corruption is 30x
-        for (var backend : this.backends) {
-            backend.putIdMapping(id, data);
-        }
+        this.forEachBackend(backend -> backend.putIdMapping(id, data));
     }
 
     private record EqualingArray(byte[] bytes) {
@@ -119,15 +514,24 @@ public class FragmentedStorageBackendAdaptor extends StorageBackend {
 
     @Override
     public void flush() {
-        for (var db : this.backends) {
-            db.flush();
-        }
+        this.forEachBackend(StorageBackend::flush);
     }
 
     @Override
     public void close() {
-        for (var db : this.backends) {
-            db.close();
+        try {
+            this.forEachBackend(StorageBackend::close);
+        } finally {
+            for (int i = 0; i < this.workers.length; i++) {
+                this.workQueue.add(STOP);
+            }
+            for (var worker : this.workers) {
+                try {
+                    worker.join();
+                } catch (InterruptedException e) {
+                    throw new RuntimeException(e);
+                }
+            }
         }
     }
 
@@ -137,6 +541,7 @@ public class FragmentedStorageBackendAdaptor extends StorageBackend {
     }
 
     public static class Config extends StorageConfig {
+        //Backends may be appended to spread an existing world over more fragments, they must never be removed or reordered
         public List<StorageConfig> backends = new ArrayList<>();
 
         @Override
@@ -0,0 +1,299 @@
+package me.cortex.voxy.common.storage.other;
+
+import me.cortex.voxy.common.storage.ByteBufferConsumer;
+import me.cortex.voxy.common.storage.SectionVisitor;
+import me.cortex.voxy.common.storage.StorageBackend;
+import me.cortex.voxy.common.storage.config.ConfigBuildCtx;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+//Records counts, bytes and latency of every operation passing through it. Can be placed at multiple points of the
+// storage config, e.g. above and below the compression adaptor, to tell time spent compressing from time spent in the
+// backend
+public class InstrumentedStorageAdaptor extends DelegatingStorageAdaptor {
+    public enum Operation {
+        GET, READ, GET_BATCH, SET, SET_BATCH, DELETE, ITERATE, FLUSH
+    }
+
+    //Log bucketed latency histogram, each power of 2 of nanoseconds is split into 4 buckets so percentiles are within 25%
+    public static final class LatencyHistogram {
+        private static final int SUB_BUCKET_BITS = 2;
+        private final AtomicLongArray buckets = new AtomicLongArray(64<<SUB_BUCKET_BITS);
+        private final LongAdder count = new LongAdder();
+        private final AtomicLong max = new AtomicLong();
+
+        private static int getBucket(long nanos) {
+            if (nanos < 1<<SUB_BUCKET_BITS) {
+                return (int) Math.max(nanos, 0);
+            }
+            int exponent = 63 - Long.numberOfLeadingZeros(nanos);
+            int sub = (int) (nanos>>>(exponent-SUB_BUCKET_BITS))&((1<<SUB_BUCKET_BITS)-1);
+            return (exponent<<SUB_BUCKET_BITS)|sub;
+        }
+
+        //Upper bound of the latencies that fall in the bucket
+        private static long getBucketLimit(int bucket) {
+            if (bucket < 1<<SUB_BUCKET_BITS) {
+                return bucket;
+            }
+            int exponent = bucket>>>SUB_BUCKET_BITS;
+            long sub = bucket&((1<<SUB_BUCKET_BITS)-1);
+            return (((1L<<SUB_BUCKET_BITS)|sub)+1)<<(exponent-SUB_BUCKET_BITS);
+        }
+
+        public void record(long nanos) {
+            this.buckets.incrementAndGet(getBucket(nanos));
+            this.count.increment();
+            this.max.accumulateAndGet(nanos, Math::max);
+        }
+
+        public long getCount() {
+            return this.count.sum();
+        }
+
+        public long getMax() {
+            return this.max.get();
+        }
+
+        public long getPercentile(double percentile) {
+            long total = 0;
+            long[] counts = new long[this.buckets.length()];
+            for (int i = 0; i < counts.length; i++) {
+                counts[i] = this.buckets.get(i);
+                total += counts[i];
+            }
+            long target = (long) Math.ceil(total*percentile);
+            long seen = 0;
+            for (int i = 0; i < counts.length; i++) {
+                seen += counts[i];
+                if (seen >= target && counts[i] != 0) {
+                    return Math.min(getBucketLimit(i), this.getMax());
+                }
+            }
+            return 0;
+        }
+    }
+
+    private final String name;
+    private final Path statsFile;
+    private final LatencyHistogram[] latencies = new LatencyHistogram[Operation.values().length];
+    private final LongAdder bytesRead = new LongAdder();
+    private final LongAdder bytesWritten = new LongAdder();
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+
+    public InstrumentedStorageAdaptor(StorageBackend delegate, String name) {
+        this(delegate, name, null);
+    }
+
+    public InstrumentedStorageAdaptor(StorageBackend delegate, String name, Path statsFile) {
+        super(delegate);
+        this.name = name;
+        this.statsFile = statsFile;
+        for (int i = 0; i < this.latencies.length; i++) {
+            this.latencies[i] = new LatencyHistogram();
+        }
+    }
+
+    private void record(Operation operation, long start) {
+        this.latencies[operation.ordinal()].record(System.nanoTime() - start);
+    }
+
+    private void recordRead(ByteBuffer data) {
+        if (data == null) {
+            this.misses.increment();
+        } else {
+            this.hits.increment();
+            this.bytesRead.add(data.remaining());
+        }
+    }
+
+    @Override
+    public ByteBuffer getSectionData(long key) {
+        long start = System.nanoTime();
+        var data = this.delegate.getSectionData(key);
+        this.record(Operation.GET, start);
+        this.recordRead(data);
+        return data;
+    }
+
+    @Override
+    public boolean readSectionData(long key, ByteBufferConsumer consumer) {
+        long start = System.nanoTime();
+        boolean found = this.delegate.readSectionData(key, data -> {
+            this.bytesRead.add(data.remaining());
+            consumer.accept(data);
+        });
+        //Includes the time spent in the consumer as the data is only valid while it runs
+        this.record(Operation.READ, start);
+        (found ? this.hits : this.misses).increment();
+        return found;
+    }
+
+    @Override
+    public ByteBuffer[] getSectionsData(long[] keys) {
+        long start = System.nanoTime();
+        var data = this.delegate.getSectionsData(keys);
+        this.record(Operation.GET_BATCH, start);
+        for (var buffer : data) {
+            this.recordRead(buffer);
+        }
+        return data;
+    }
+
+    @Override
+    public void setSectionData(long key, ByteBuffer data) {
+        this.bytesWritten.add(data.remaining());
+        long start = System.nanoTime();
+        this.delegate.setSectionData(key, data);
+        this.record(Operation.SET, start);
+    }
+
+    @Override
+    public void setSectionsData(long[] keys, ByteBuffer[] data) {
+        for (var buffer : data) {
+            this.bytesWritten.add(buffer.remaining());
+        }
+        long start = System.nanoTime();
+        this.delegate.setSectionsData(keys, data);
+        this.record(Operation.SET_BATCH, start);
+    }
+
+    @Override
+    public void bulkLoadSections(long[] keys, ByteBuffer[] data) {
+        for (var buffer : data) {
+            this.bytesWritten.add(buffer.remaining());
+        }
+        long start = System.nanoTime();
+        this.delegate.bulkLoadSections(keys, data);
+        this.record(Operation.SET_BATCH, start);
+    }
+
+    @Override
+    public void deleteSectionData(long key) {
+        long start = System.nanoTime();
+        this.delegate.deleteSectionData(key);
+        this.record(Operation.DELETE, start);
+    }
+
+    @Override
+    public void deleteSections(long fromKey, long toKey) {
+        long start = System.nanoTime();
+        this.delegate.deleteSections(fromKey, toKey);
+        this.record(Operation.DELETE, start);
+    }
+
+    @Override
+    public boolean iterateStoredSections(long fromKey, long toKey, SectionVisitor visitor) {
+        return this.delegate.iterateStoredSections(fromKey, toKey, visitor);
+    }
+
+    @Override
+    public boolean iterateSections(long fromKey, long toKey, SectionVisitor visitor) {
+        long start = System.nanoTime();
+        boolean completed = this.delegate.iterateSections(fromKey, toKey, (key, data) -> {
+            this.bytesRead.add(data.remaining());
+            return visitor.visit(key, data);
+        });
+        this.record(Operation.ITERATE, start);
+        return completed;
+    }
+
+    @Override
+    public void flush() {
+        long start = System.nanoTime();
+        this.delegate.flush();
+        this.record(Operation.FLUSH, start);
+    }
+
+    @Override
+    public void close() {
+        if (this.statsFile != null) {
+            this.dumpStats(this.statsFile);
+        }
+        super.close();
+    }
+
+    public LatencyHistogram getLatency(Operation operation) {
+        return this.latencies[operation.ordinal()];
+    }
+
+    private static String formatNanos(long nanos) {
+        if (nanos < 10_000) {
+            return nanos + "ns";
+        } else if (nanos < 10_000_000) {
+            return nanos/1000 + "us";
+        } else {
+            return nanos/1_000_000 + "ms";
+        }
+    }
+
+    private static String formatBytes(long bytes) {
+        if (bytes < 10L<<10) {
+            return bytes + "B";
+        } else if (bytes < 10L<<20) {
+            return (bytes>>10) + "KB";
+        } else {
+            return (bytes>>20) + "MB";
+        }
+    }
+
+    public void addDebugInfo(List<String> debug) {
+        long hits = this.hits.sum();
+        long total = hits + this.misses.sum();
+        debug.add("Storage " + this.name + ": read " + formatBytes(this.bytesRead.sum()) + " written " + formatBytes(this.bytesWritten.sum())
+                + " hit " + (total == 0 ? "-" : String.format("%.1f%%", hits*100.0/total)));
+        for (var operation : Operation.values()) {
+            var latency = this.getLatency(operation);
+            long count = latency.getCount();
+            if (count == 0) {
+                continue;
+            }
+            debug.add(" " + operation.name().toLowerCase() + ": " + count + " p50 " + formatNanos(latency.getPercentile(0.5))
+                    + " p99 " + formatNanos(latency.getPercentile(0.99)) + " max " + formatNanos(latency.getMax()));
+        }
+    }
+
+    //Appends the current stats to the file
+    public void dumpStats(Path file) {
+        List<String> lines = new ArrayList<>();
+        lines.add("[" + LocalDateTime.now() + "]");
+        this.addDebugInfo(lines);
+        try {
+            Files.write(file, lines, StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+        } catch (IOException e) {
+            System.err.println("Failed to write storage stats to " + file + ": " + e);
+        }
+    }
+
+    public static class Config extends DelegateStorageConfig {
+        public String name = "storage";
+        //If set the stats are appended to this file, relative to the current path, when the storage is closed
+        public String statsFile = "";
+
+        @Override
+        public StorageBackend build(ConfigBuildCtx ctx) {
+            Path statsFile = null;
+            if (!this.statsFile.isBlank()) {
+                ctx.pushPath(this.statsFile);
+                statsFile = Path.of(ctx.substituteString(ctx.resolvePath()));
+                ctx.popPath();
+            }
+            return new InstrumentedStorageAdaptor(this.delegate.build(ctx), this.name, statsFile);
+        }
+
+        public static String getConfigTypeName() {
+            return "InstrumentedAdaptor";
+        }
+    }
+}
@@ -0,0 +1,446 @@
+package me.cortex.voxy.common.storage.other;
+
+import it.unimi.dsi.fastutil.ints.IntArrays;
+import it.unimi.dsi.fastutil.longs.LongArrayList;
+import me.cortex.voxy.common.storage.ByteBufferConsumer;
+import me.cortex.voxy.common.storage.SectionKeyEncoding;
+import me.cortex.voxy.common.storage.SectionVisitor;
+import me.cortex.voxy.common.storage.StorageBackend;
+import me.cortex.voxy.common.storage.config.ConfigBuildCtx;
+import me.cortex.voxy.common.storage.region.RegionFileStorageBackend;
+import me.cortex.voxy.common.world.WorldEngine;
+import net.minecraft.util.math.random.RandomSeed;
+import org.lwjgl.system.MemoryUtil;
+
+import java.nio.ByteBuffer;
+
+//Changes the layout of the section keys stored in the delegate. The 4 spare low bits of a key are used as a tag
+// for the encoding it was written with, so keys of different encodings can live side by side while a database is
+// migrated in place by a background job
+public class KeyEncodingStorageAdaptor extends DelegatingStorageAdaptor {
+    public enum Encoding {
+        //The key as produced by WorldEngine.getWorldSectionId, lvl|y|z|x
+        LEGACY,
+        //lvl|morton(x,z,y), sections that are close in space are close in key order
+        MORTON
+    }
+
+    private static final int KEY_ENCODING_METADATA_ID = StorageBackend.getMetadataMappingId(1);
+    private static final int MIGRATION_BATCH_SIZE = 512;
+    private static final long X_MASK = ((1L<<24)-1)<<4;
+    //Runs along a row up to this long are deleted key by key instead of walking the levels
+    private static final int POINT_DELETE_LIMIT = 1024;
+    //A range scan over morton keys is split into at most about this many key intervals per level, past that the
+    // cells on the edge of the range are scanned whole and filtered
+    private static final int MAX_MORTON_INTERVALS = 64;
+    private static final long MORTON_CODE_MASK = (1L<<56)-1;
+
+    private final Encoding encoding;
+    private final long tag;
+    //While migrating, keys can exist in either encoding so every access needs to check both
+    private volatile boolean migrating;
+    private volatile boolean running = true;
+    private final Object[] locks = new Object[64];
+    private final Thread migrationThread;
+
+    public KeyEncodingStorageAdaptor(StorageBackend delegate, Encoding encoding) {
+        super(delegate);
+        this.encoding = encoding;
+        this.tag = encoding == Encoding.MORTON ? SectionKeyEncoding.MORTON_TAG : SectionKeyEncoding.LEGACY_TAG;
+        for (int i = 0; i < this.locks.length; i++) {
+            this.locks[i] = new Object();
+        }
+
+        var stored = delegate.getIdMappingsData().get(KEY_ENCODING_METADATA_ID);
+        if (stored != null && stored.length == 1 && stored[0] == this.tag) {
+            this.migrationThread = null;
+        } else if (delegate.iterateStoredSections(0, -1, (key, data) -> false)) {
+            //Nothing stored yet so nothing to migrate
+            this.markMigrated();
+            this.migrationThread = null;
+        } else {
+            this.migrating = true;
+            this.migrationThread = new Thread(this::migrate);
+            this.migrationThread.setDaemon(true);
+            this.migrationThread.setName("Section key migration");
+            this.migrationThread.start();
+        }
+    }
+
+    private void markMigrated() {
+        var data = MemoryUtil.memAlloc(1);
+        data.put(0, (byte) this.tag);
+        this.delegate.putIdMapping(KEY_ENCODING_METADATA_ID, data);
+        MemoryUtil.memFree(data);
+    }
+
+    //Rewrites keys of other encodings in batches, passes are repeated until one finds nothing left to rewrite
+    private void migrate() {
+        long migrated = 0;
+        long[] batch = new long[MIGRATION_BATCH_SIZE];
+        while (this.running) {
+            int[] count = new int[1];
+            long[] resume = {0};
+            boolean passMigratedAny = false;
+            boolean completed;
+            do {
+                count[0] = 0;
+                completed = this.delegate.iterateStoredSections(resume[0], -1, (key, data) -> {
+                    resume[0] = key + 1;
+                    if ((key & 0xF) != this.tag) {
+                        batch[count[0]++] = key;
+                    }
+                    return count[0] != batch.length && resume[0] != 0;
+                });
+                for (int i = 0; i < count[0]; i++) {
+                    this.migrateKey(batch[i]);
+                }
+                migrated += count[0];
+                passMigratedAny |= count[0] != 0;
+            } while (this.running && !completed && resume[0] != 0);
+
+            if (!this.running) {
+                return;
+            }
+            if (!passMigratedAny) {
+                break;
+            }
+            System.out.println("Migrated " + migrated + " sections to " + this.encoding + " key encoding");
+        }
+        this.markMigrated();
+        this.migrating = false;
+        System.out.println("Finished migrating sections to " + this.encoding + " key encoding");
+    }
+
+    private void migrateKey(long storedKey) {
+        long key = SectionKeyEncoding.toWorldKey(storedKey);
+        synchronized (this.getLock(key)) {
+            var data = this.delegate.getSectionData(storedKey);
+            if (data == null) {
+                return;
+            }
+            try {
+                this.delegate.setSectionData(this.encode(key), data);
+                this.delegate.deleteSectionData(storedKey);
+            } finally {
+                MemoryUtil.memFree(data);
+            }
+        }
+    }
+
+    private Object getLock(long key) {
+        return this.locks[(int) (RandomSeed.mixStafford13(key)&(this.locks.length-1))];
+    }
+
+    private long encode(long key) {
+        return this.encoding == Encoding.MORTON ? SectionKeyEncoding.encodeMorton(key) : key;
+    }
+
+    //Returns the key in the other encoding that may still hold the data of a section during migration
+    private long otherEncoding(long key) {
+        return this.encoding == Encoding.MORTON ? key : SectionKeyEncoding.encodeMorton(key);
+    }
+
+    @Override
+    public ByteBuffer getSectionData(long key) {
+        if (!this.migrating) {
+            return this.delegate.getSectionData(this.encode(key));
+        }
+        synchronized (this.getLock(key)) {
+            var data = this.delegate.getSectionData(this.encode(key));
+            return data != null ? data : this.delegate.getSectionData(this.otherEncoding(key));
+        }
+    }
+
+    @Override
+    public boolean readSectionData(long key, ByteBufferConsumer consumer) {
+        if (!this.migrating) {
+            return this.delegate.readSectionData(this.encode(key), consumer);
+        }
+        synchronized (this.getLock(key)) {
+            return this.delegate.readSectionData(this.encode(key), consumer) || this.delegate.readSectionData(this.otherEncoding(key), consumer);
+        }
+    }
+
+    @Override
+    public void setSectionData(long key, ByteBuffer data) {
+        if (!this.migrating) {
+            this.delegate.setSectionData(this.encode(key), data);
+            return;
+        }
+        synchronized (this.getLock(key)) {
+            this.delegate.setSectionData(this.encode(key), data);
+            //Make sure the stale copy can never be migrated over the new data
+            this.delegate.deleteSectionData(this.otherEncoding(key));
+        }
+    }
+
+    @Override
+    public void deleteSectionData(long key) {
+        if (!this.migrating) {
+            this.delegate.deleteSectionData(this.encode(key));
+            return;
+        }
+        synchronized (this.getLock(key)) {
+            this.delegate.deleteSectionData(this.encode(key));
+            this.delegate.deleteSectionData(this.otherEncoding(key));
+        }
+    }
+
+    //Legacy keys are stored as they are, so once nothing is left in the other encoding ranges go straight to the
+    // delegate. Morton keys scatter a range over the whole level, so short runs along a row are deleted key by key
+    // and anything else walks the levels of the range once
+    @Override
+    public void deleteSections(long fromKey, long toKey) {
+        if (this.encoding == Encoding.LEGACY && !this.migrating) {
+            this.delegate.deleteSections(fromKey, toKey);
+            return;
+        }
+        long fromX = (fromKey&X_MASK)>>>4;
+        long toX = (toKey&X_MASK)>>>4;
+        if ((fromKey&~X_MASK) == (toKey&~X_MASK) && fromX <= toX && toX - fromX < POINT_DELETE_LIMIT) {
+            for (long x = fromX; x <= toX; x++) {
+                this.deleteSectionData((fromKey&~X_MASK)|(x<<4));
+            }
+            return;
+        }
+        var keys = new LongArrayList();
+        this.iterateStoredSections(fromKey, toKey, (key, data) -> {
+            keys.add(key);
+            return true;
+        });
+        for (int i = 0; i < keys.size(); i++) {
+            this.deleteSectionData(keys.getLong(i));
+        }
+    }
+
+    @Override
+    public ByteBuffer[] getSectionsData(long[] keys) {
+        if (this.migrating) {
+            var out = new ByteBuffer[keys.length];
+            for (int i = 0; i < keys.length; i++) {
+                out[i] = this.getSectionData(keys[i]);
+            }
+            return out;
+        }
+        return this.delegate.getSectionsData(this.encodeAll(keys));
+    }
+
+    @Override
+    public void setSectionsData(long[] keys, ByteBuffer[] data) {
+        if (keys.length != data.length) {
+            throw new IllegalArgumentException("Key count does not match data count");
+        }
+        if (this.migrating) {
+            for (int i = 0; i < keys.length; i++) {
+                this.setSectionData(keys[i], data[i]);
+            }
+            return;
+        }
+        this.delegate.setSectionsData(this.encodeAll(keys), data);
+    }
+
+    //The encoded keys are in a different order, so they are sorted again before going to the delegate
+    @Override
+    public void bulkLoadSections(long[] keys, ByteBuffer[] data) {
+        if (this.migrating) {
+            super.bulkLoadSections(keys, data);
+            return;
+        }
+        long[] encoded = this.encodeAll(keys);
+        int[] order = new int[keys.length];
+        for (int i = 0; i < order.length; i++) {
+            order[i] = i;
+        }
+        IntArrays.quickSort(order, (a, b) -> Long.compareUnsigned(encoded[a], encoded[b]));
+        long[] sortedKeys = new long[keys.length];
+        ByteBuffer[] sortedData = new ByteBuffer[keys.length];
+        for (int i = 0; i < order.length; i++) {
+            sortedKeys[i] = encoded[order[i]];
+            sortedData[i] = data[order[i]];
+        }
+        this.delegate.bulkLoadSections(sortedKeys, sortedData);
+    }
+
+    private long[] encodeAll(long[] keys) {
+        long[] encoded = new long[keys.length];
+        for (int i = 0; i < keys.length; i++) {
+            encoded[i] = this.encode(keys[i]);
+        }
+        return encoded;
+    }
+
+    //Legacy keys are stored as they are so ranges go straight to the delegate. Morton keys of a range are split into
+    // the key intervals of the cells of the curve that cover it, and while migrating the levels the range covers are
+    // walked as keys can be in either encoding. Sections are visited in the order of the stored keys
+    @Override
+    public boolean iterateSections(long fromKey, long toKey, SectionVisitor visitor) {
+        return this.iterate(fromKey, toKey, visitor, false);
+    }
+
+    @Override
+    public boolean iterateStoredSections(long fromKey, long toKey, SectionVisitor visitor) {
+        return this.iterate(fromKey, toKey, visitor, true);
+    }
+
+    private boolean iterate(long fromKey, long toKey, SectionVisitor visitor, boolean stored) {
+        if (this.encoding == Encoding.LEGACY && !this.migrating) {
+            return stored ? this.delegate.iterateStoredSections(fromKey, toKey, visitor) : this.delegate.iterateSections(fromKey, toKey, visitor);
+        }
+        SectionVisitor filter = (storedKey, data) -> {
+            long key = SectionKeyEncoding.toWorldKey(storedKey);
+            return !inRange(key, fromKey, toKey) || visitor.visit(key, data);
+        };
+        if (this.migrating) {
+            long from = ((long) WorldEngine.getLevel(fromKey))<<60;
+            long to = (((long) WorldEngine.getLevel(toKey))<<60)|((1L<<60)-1);
+            return stored ? this.delegate.iterateStoredSections(from, to, filter) : this.delegate.iterateSections(from, to, filter);
+        }
+        if (Long.compareUnsigned(fromKey, toKey) > 0) {
+            return true;
+        }
+        int fromLevel = WorldEngine.getLevel(fromKey);
+        int toLevel = WorldEngine.getLevel(toKey);
+        for (int lvl = fromLevel; lvl <= toLevel; lvl++) {
+            long from = lvl == fromLevel ? (fromKey>>>4)&MORTON_CODE_MASK : 0;
+            long to = lvl == toLevel ? (toKey>>>4)&MORTON_CODE_MASK : MORTON_CODE_MASK;
+            long level = ((long) lvl)<<60;
+            var intervals = getMortonIntervals(from, to);
+            for (int i = 0; i < intervals.length; i += 2) {
+                long start = level|(intervals[i]<<4);
+                long end = level|(intervals[i+1]<<4)|0xF;
+                if (!(stored ? this.delegate.iterateStoredSections(start, end, filter) : this.delegate.iterateSections(start, end, filter))) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    //The sorted, disjoint morton code intervals covering the legacy keys from..to of a level, both given without the
+    // level and tag bits. The range is split into boxes, which are split again where they cross the sign of an axis
+    // as morton codes flip the sign bits
+    private static long[] getMortonIntervals(long from, long to) {
+        if (from == 0 && to == MORTON_CODE_MASK) {
+            return new long[]{0, MORTON_CODE_MASK};
+        }
+        long fromY = from>>>48, fromZ = (from>>>24)&0xFFFFFF, fromX = from&0xFFFFFF;
+        long toY = to>>>48, toZ = (to>>>24)&0xFFFFFF, toX = to&0xFFFFFF;
+        var boxes = new LongArrayList();
+        if (fromY == toY && fromZ == toZ) {
+            addBox(boxes, fromX, toX, fromZ, toZ, fromY, toY);
+        } else {
+            addBox(boxes, fromX, 0xFFFFFF, fromZ, fromZ, fromY, fromY);
+            if (fromY == toY) {
+                addBox(boxes, 0, 0xFFFFFF, fromZ + 1, toZ - 1, fromY, fromY);
+            } else {
+                addBox(boxes, 0, 0xFFFFFF, fromZ + 1, 0xFFFFFF, fromY, fromY);
+                addBox(boxes, 0, 0xFFFFFF, 0, 0xFFFFFF, fromY + 1, toY - 1);
+                addBox(boxes, 0, 0xFFFFFF, 0, toZ - 1, toY, toY);
+            }
+            addBox(boxes, 0, toX, toZ, toZ, toY, toY);
+        }
+
+        var intervals = new LongArrayList();
+        for (int i = 0; i < boxes.size(); i += 6) {
+            collectMortonIntervals(0, 56, boxes.elements(), i, intervals);
+        }
+
+        //Cells taken whole once the budget ran out can overlap the intervals of other boxes, so they are merged
+        int[] order = new int[intervals.size()/2];
+        for (int i = 0; i < order.length; i++) {
+            order[i] = i*2;
+        }
+        long[] unsorted = intervals.elements();
+        IntArrays.quickSort(order, (a, b) -> Long.compare(unsorted[a], unsorted[b]));
+        var merged = new LongArrayList(intervals.size());
+        for (int index : order) {
+            long start = unsorted[index];
+            long end = unsorted[index+1];
+            if (!merged.isEmpty() && start <= merged.getLong(merged.size()-1) + 1) {
+                merged.set(merged.size()-1, Math.max(end, merged.getLong(merged.size()-1)));
+            } else {
+                merged.add(start);
+                merged.add(end);
+            }
+        }
+        return merged.toLongArray();
+    }
+
+    //Adds the box of raw key coordinates, inclusive, as boxes of sign flipped coordinates
+    private static void addBox(LongArrayList boxes, long x0, long x1, long z0, long z1, long y0, long y1) {
+        if (x0 > x1 || z0 > z1 || y0 > y1) {
+            return;
+        }
+        for (int xs = 0; xs < 2; xs++) {
+            long fx0 = Math.max(x0, xs*0x800000L), fx1 = Math.min(x1, xs*0x800000L + 0x7FFFFF);
+            for (int zs = 0; zs < 2; zs++) {
+                long fz0 = Math.max(z0, zs*0x800000L), fz1 = Math.min(z1, zs*0x800000L + 0x7FFFFF);
+                for (int ys = 0; ys < 2; ys++) {
+                    long fy0 = Math.max(y0, ys*0x80L), fy1 = Math.min(y1, ys*0x80L + 0x7F);
+                    if (fx0 <= fx1 && fz0 <= fz1 && fy0 <= fy1) {
+                        boxes.add(fx0^0x800000);
+                        boxes.add(fx1^0x800000);
+                        boxes.add(fz0^0x800000);
+                        boxes.add(fz1^0x800000);
+                        boxes.add(fy0^0x80);
+                        boxes.add(fy1^0x80);
+                    }
+                }
+            }
+        }
+    }
+
+    //Splits the cell of codes sharing the high bits of code in half until the halves are inside or outside the box,
+    // once the interval budget is used up cells on the edge of the box are taken whole
+    private static void collectMortonIntervals(long code, int freeBits, long[] boxes, int box, LongArrayList out) {
+        long last = code|((1L<<freeBits)-1);
+        long minX = SectionKeyEncoding.mortonX(code), maxX = SectionKeyEncoding.mortonX(last);
+        long minZ = SectionKeyEncoding.mortonZ(code), maxZ = SectionKeyEncoding.mortonZ(last);
+        long minY = SectionKeyEncoding.mortonY(code), maxY = SectionKeyEncoding.mortonY(last);
+        if (maxX < boxes[box] || minX > boxes[box+1] || maxZ < boxes[box+2] || minZ > boxes[box+3] || maxY < boxes[box+4] || minY > boxes[box+5]) {
+            return;
+        }
+        boolean inside = minX >= boxes[box] && maxX <= boxes[box+1] && minZ >= boxes[box+2] && maxZ <= boxes[box+3] && minY >= boxes[box+4] && maxY <= boxes[box+5];
+        if (inside || freeBits == 0 || out.size() >= MAX_MORTON_INTERVALS*2) {
+            if (!out.isEmpty() && out.getLong(out.size()-1) + 1 == code) {
+                out.set(out.size()-1, last);
+            } else {
+                out.add(code);
+                out.add(last);
+            }
+            return;
+        }
+        collectMortonIntervals(code, freeBits - 1, boxes, box, out);
+        collectMortonIntervals(code|(1L<<(freeBits - 1)), freeBits - 1, boxes, box, out);
+    }
+
+    @Override
+    public void close() {
+        this.running = false;
+        if (this.migrationThread != null) {
+            try {
+                this.migrationThread.join();
+            } catch (InterruptedException e) {
+                throw new RuntimeException(e);
+            }
+        }
+        super.close();
+    }
+
+    public static class Config extends DelegateStorageConfig {
+        public Encoding encoding = Encoding.MORTON;
+
+        @Override
+        public StorageBackend build(ConfigBuildCtx ctx) {
+            if (this.encoding != Encoding.LEGACY) {
+                RegionFileStorageBackend.Config.rejectIn(this.delegate, this.encoding + " key encoding");
+            }
+            return new KeyEncodingStorageAdaptor(this.delegate.build(ctx), this.encoding);
+        }
+
+        public static String getConfigTypeName() {
+            return "KeyEncodingAdaptor";
+        }
+    }
+}
@@ -0,0 +1,259 @@
+package me.cortex.voxy.common.storage.other;
+
+import it.unimi.dsi.fastutil.longs.LongArrayList;
+import it.unimi.dsi.fastutil.longs.LongOpenHashSet;
+import me.cortex.voxy.common.storage.StorageBackend;
+import org.lwjgl.system.MemoryUtil;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.BooleanSupplier;
+
+//Lets a live storage be copied somewhere else without losing the writes made while the copy runs. While recording,
+// the keys and ranges written to the storage are remembered so catchUp can copy them over again, the final catch up
+// attaches the destination as a mirror that every later write also goes to. Not built from a config, the world
+// selection wraps the storage of the world engine with it
+public class MirroringStorageAdaptor extends DelegatingStorageAdaptor {
+    private static final int CATCH_UP_BATCH_SIZE = 256;
+
+    //Writes hold the read lock so the final catch up can stop them while it attaches the mirror
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+    private volatile boolean recording;
+    private volatile StorageBackend mirror;
+    private LongOpenHashSet recordedKeys = new LongOpenHashSet();
+    private LongArrayList recordedRanges = new LongArrayList();
+    private boolean recordedMappings;
+
+    public MirroringStorageAdaptor(StorageBackend delegate) {
+        super(delegate);
+    }
+
+    public void startRecording() {
+        this.lock.writeLock().lock();
+        try {
+            if (this.mirror != null) {
+                throw new IllegalStateException("Storage is already being mirrored");
+            }
+            synchronized (this) {
+                this.recordedKeys = new LongOpenHashSet();
+                this.recordedRanges = new LongArrayList();
+                this.recordedMappings = false;
+            }
+            this.recording = true;
+        } finally {
+            this.lock.writeLock().unlock();
+        }
+    }
+
+    public void stopRecording() {
+        this.recording = false;
+    }
+
+    /**
+     * Copies everything written since the last catch up to the destination, the current contents of the storage are
+     * copied so sections written again since they were recorded end up with their latest data
+     * @param attach stops writes while copying and then makes the destination a mirror that all further writes go to,
+     *               it is closed together with this storage
+     * @param cancelled checked between batches, once it returns true a CancellationException is thrown and the
+     *                  destination is left partially caught up and not attached
+     * @return the number of keys and ranges that were copied
+     */
+    public int catchUp(StorageBackend destination, boolean attach, BooleanSupplier cancelled) {
+        if (attach) {
+            this.lock.writeLock().lock();
+        }
+        try {
+            long[] keys;
+            long[] ranges;
+            boolean mappings;
+            synchronized (this) {
+                keys = this.recordedKeys.toLongArray();
+                ranges = this.recordedRanges.toLongArray();
+                mappings = this.recordedMappings;
+                this.recordedKeys = new LongOpenHashSet();
+                this.recordedRanges = new LongArrayList();
+                this.recordedMappings = false;
+            }
+            //Ranges first, any key written into one after it was deleted is also recorded and copied below
+            for (int i = 0; i < ranges.length; i += 2) {
+                destination.deleteSections(ranges[i], ranges[i+1]);
+            }
+            for (int i = 0; i < keys.length; i += CATCH_UP_BATCH_SIZE) {
+                if (cancelled.getAsBoolean()) {
+                    throw new CancellationException("Catch up was cancelled");
+                }
+                long[] batch = Arrays.copyOfRange(keys, i, Math.min(i + CATCH_UP_BATCH_SIZE, keys.length));
+                var data = this.delegate.getSectionsData(batch);
+                try {
+                    for (int j = 0; j < batch.length; j++) {
+                        if (data[j] == null) {
+                            destination.deleteSectionData(batch[j]);
+                        } else {
+                            destination.setSectionData(batch[j], data[j]);
+                        }
+                    }
+                } finally {
+                    for (var buffer : data) {
+                        if (buffer != null) {
+                            MemoryUtil.memFree(buffer);
+                        }
+                    }
+                }
+            }
+            if (mappings) {
+                copyIdMappings(this.delegate, destination);
+            }
+            if (attach) {
+                this.mirror = destination;
+                this.recording = false;
+            }
+            return keys.length + ranges.length/2;
+        } finally {
+            if (attach) {
+                this.lock.writeLock().unlock();
+            }
+        }
+    }
+
+    //Metadata mappings belong to the storage layers of each side so only the others are copied
+    private static void copyIdMappings(StorageBackend source, StorageBackend destination) {
+        for (var entry : source.getIdMappingsData().int2ObjectEntrySet()) {
+            if (isMetadataMappingId(entry.getIntKey())) {
+                continue;
+            }
+            var data = MemoryUtil.memAlloc(entry.getValue().length);
+            data.put(0, entry.getValue());
+            destination.putIdMapping(entry.getIntKey(), data);
+            MemoryUtil.memFree(data);
+        }
+    }
+
+    private synchronized void recordKeys(long... keys) {
+        for (long key : keys) {
+            this.recordedKeys.add(key);
+        }
+    }
+
+    @Override
+    public void setSectionData(long key, ByteBuffer data) {
+        this.lock.readLock().lock();
+        try {
+            this.delegate.setSectionData(key, data);
+            var mirror = this.mirror;
+            if (mirror != null) {
+                mirror.setSectionData(key, data);
+            } else if (this.recording) {
+                this.recordKeys(key);
+            }
+        } finally {
+            this.lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public void setSectionsData(long[] keys, ByteBuffer[] data) {
+        this.lock.readLock().lock();
+        try {
+            this.delegate.setSectionsData(keys, data);
+            var mirror = this.mirror;
+            if (mirror != null) {
+                mirror.setSectionsData(keys, data);
+            } else if (this.recording) {
+                this.recordKeys(keys);
+            }
+        } finally {
+            this.lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public void bulkLoadSections(long[] keys, ByteBuffer[] data) {
+        this.lock.readLock().lock();
+        try {
+            this.delegate.bulkLoadSections(keys, data);
+            var mirror = this.mirror;
+            if (mirror != null) {
+                mirror.bulkLoadSections(keys, data);
+            } else if (this.recording) {
+                this.recordKeys(keys);
+            }
+        } finally {
+            this.lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public void deleteSectionData(long key) {
+        this.lock.readLock().lock();
+        try {
+            this.delegate.deleteSectionData(key);
+            var mirror = this.mirror;
+            if (mirror != null) {
+                mirror.deleteSectionData(key);
+            } else if (this.recording) {
+                this.recordKeys(key);
+            }
+        } finally {
+            this.lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public void deleteSections(long fromKey, long toKey) {
+        this.lock.readLock().lock();
+        try {
+            this.delegate.deleteSections(fromKey, toKey);
+            var mirror = this.mirror;
+            if (mirror != null) {
+                mirror.deleteSections(fromKey, toKey);
+            } else if (this.recording) {
+                synchronized (this) {
+                    this.recordedRanges.add(fromKey);
+                    this.recordedRanges.add(toKey);
+                }
+            }
+        } finally {
+            this.lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public void putIdMapping(int id, ByteBuffer data) {
+        this.lock.readLock().lock();
+        try {
+            this.delegate.putIdMapping(id, data);
+            var mirror = this.mirror;
+            if (mirror != null) {
+                if (!isMetadataMappingId(id)) {
+                    mirror.putIdMapping(id, data);
+                }
+            } else if (this.recording) {
+                synchronized (this) {
+                    this.recordedMappings = true;
+                }
+            }
+        } finally {
+            this.lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public void flush() {
+        this.delegate.flush();
+        var mirror = this.mirror;
+        if (mirror != null) {
+            mirror.flush();
+        }
+    }
+
+    @Override
+    public void close() {
+        this.delegate.close();
+        var mirror = this.mirror;
+        if (mirror != null) {
+            mirror.close();
+        }
+    }
+}
@@ -1,9 +1,13 @@
 package me.cortex.voxy.common.storage.other;
 
 import it.unimi.dsi.fastutil.ints.Int2ObjectOpenHashMap;
+import it.unimi.dsi.fastutil.longs.LongOpenHashSet;
+import me.cortex.voxy.common.storage.ByteBufferConsumer;
+import me.cortex.voxy.common.storage.SectionVisitor;
 import me.cortex.voxy.common.storage.StorageBackend;
 import me.cortex.voxy.common.storage.config.ConfigBuildCtx;
 import me.cortex.voxy.common.storage.config.StorageConfig;
+import org.lwjgl.system.MemoryUtil;
 
 import java.nio.ByteBuffer;
 import java.util.List;
@@ -30,16 +34,120 @@ public class ReadonlyCachingLayer extends StorageBackend {
         return result;
     }
 
+    @Override
+    public boolean readSectionData(long key, ByteBufferConsumer consumer) {
+        if (this.cache.readSectionData(key, consumer)) {
+            return true;
+        }
+        var result = this.onMiss.getSectionData(key);
+        if (result == null) {
+            return false;
+        }
+        try {
+            this.cache.setSectionData(key, result);
+            consumer.accept(result);
+        } finally {
+            MemoryUtil.memFree(result);
+        }
+        return true;
+    }
+
     @Override
     public void setSectionData(long key, ByteBuffer data) {
         this.cache.setSectionData(key, data);
     }
 
+    @Override
+    public ByteBuffer[] getSectionsData(long[] keys) {
+        var result = this.cache.getSectionsData(keys);
+        int misses = 0;
+        for (var data : result) {
+            if (data == null) misses++;
+        }
+        if (misses == 0) {
+            return result;
+        }
+
+        //Fetch all the misses in one batch and populate the cache with the ones that existed
+        long[] missKeys = new long[misses];
+        int[] missIndices = new int[misses];
+        for (int i = 0, j = 0; i < keys.length; i++) {
+            if (result[i] == null) {
+                missKeys[j] = keys[i];
+                missIndices[j++] = i;
+            }
+        }
+        var fetched = this.onMiss.getSectionsData(missKeys);
+        int found = 0;
+        for (int i = 0; i < misses; i++) {
+            if (fetched[i] != null) {
+                result[missIndices[i]] = fetched[i];
+                found++;
+            }
+        }
+        if (found != 0) {
+            long[] cacheKeys = new long[found];
+            ByteBuffer[] cacheData = new ByteBuffer[found];
+            for (int i = 0, j = 0; i < misses; i++) {
+                if (fetched[i] != null) {
+                    cacheKeys[j] = missKeys[i];
+                    cacheData[j++] = fetched[i];
+                }
+            }
+            this.cache.setSectionsData(cacheKeys, cacheData);
+        }
+        return result;
+    }
+
+    @Override
+    public void setSectionsData(long[] keys, ByteBuffer[] data) {
+        this.cache.setSectionsData(keys, data);
+    }
+
+    //Visits the union of both backends, preferring the cached copy. The cache is visited first and its keys are kept
+    // so the walk over onMiss can skip them without a lookup per key, onMiss is often a packed archive where any
+    // lookup decompresses a whole block
+    @Override
+    public boolean iterateSections(long fromKey, long toKey, SectionVisitor visitor) {
+        return this.iterate(fromKey, toKey, visitor, false);
+    }
+
+    @Override
+    public boolean iterateStoredSections(long fromKey, long toKey, SectionVisitor visitor) {
+        return this.iterate(fromKey, toKey, visitor, true);
+    }
+
+    private boolean iterate(long fromKey, long toKey, SectionVisitor visitor, boolean stored) {
+        var cached = new LongOpenHashSet();
+        SectionVisitor collecting = (key, data) -> {
+            cached.add(key);
+            return visitor.visit(key, data);
+        };
+        boolean completed = stored ? this.cache.iterateStoredSections(fromKey, toKey, collecting) : this.cache.iterateSections(fromKey, toKey, collecting);
+        if (!completed) {
+            return false;
+        }
+        SectionVisitor uncached = (key, data) -> cached.contains(key) || visitor.visit(key, data);
+        return stored ? this.onMiss.iterateStoredSections(fromKey, toKey, uncached) : this.onMiss.iterateSections(fromKey, toKey, uncached);
+    }
+
     @Override
     public void deleteSectionData(long key) {
         this.cache.deleteSectionData(key);
     }
 
+    //Only the cache can be deleted from, going through the default would keep finding the sections of onMiss
+    @Override
+    public void deleteSections(long fromKey, long toKey) {
+        this.cache.deleteSections(fromKey, toKey);
+    }
+
+    //onMiss is read only so only the cache counts towards the space that can be freed
+    @Override
+    public long getStorageSize() {
+        return this.cache.getStorageSize();
+    }
+
     @Override
     public void putIdMapping(int id, ByteBuffer data) {
         this.cache.putIdMapping(id, data);
@@ -47,14 +155,16 @@ public class ReadonlyCachingLayer extends StorageBackend {
 
     @Override
     public Int2ObjectOpenHashMap<byte[]> getIdMappingsData() {
-        //TODO: replicate this data onto the cache
-        return this.onMiss.getIdMappingsData();
+        //Mappings added since onMiss was made are only in the cache and override the ones of onMiss
+        var mappings = this.onMiss.getIdMappingsData();
+        mappings.putAll(this.cache.getIdMappingsData());
+        return mappings;
     }
 
     @Override
     public void flush() {
-        this.cache.close();
-        this.onMiss.close();
+        this.cache.flush();
+        this.onMiss.flush();
     }
 
     @Override
@@ -63,6 +173,11 @@ public class ReadonlyCachingLayer extends StorageBackend {
         this.onMiss.close();
     }
 
+    @Override
+    public List<StorageBackend> getChildBackends() {
+        return List.of(this.cache, this.onMiss);
+    }
+
     public static class Config extends StorageConfig {
         public StorageConfig cache;
         public StorageConfig onMiss;
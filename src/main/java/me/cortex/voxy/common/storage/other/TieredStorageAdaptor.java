@@ -0,0 +1,480 @@
+package me.cortex.voxy.common.storage.other;
+
+import it.unimi.dsi.fastutil.HashCommon;
+import it.unimi.dsi.fastutil.ints.Int2ObjectOpenHashMap;
+import it.unimi.dsi.fastutil.ints.IntArrayList;
+import it.unimi.dsi.fastutil.longs.LongArrayList;
+import it.unimi.dsi.fastutil.longs.LongOpenHashSet;
+import me.cortex.voxy.common.storage.ByteBufferConsumer;
+import me.cortex.voxy.common.storage.SectionVisitor;
+import me.cortex.voxy.common.storage.StorageBackend;
+import me.cortex.voxy.common.storage.config.ConfigBuildCtx;
+import me.cortex.voxy.common.storage.config.StorageConfig;
+import org.lwjgl.system.MemoryUtil;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+
+//Keeps recently accessed sections in a fast hot tier and moves sections that havent been touched for a while to a
+// cold tier in the background, e.g. lightly compressed LMDB in front of heavily compressed RocksDB. Cold sections are
+// promoted back into the hot tier when read. The hot tier is authoritative, the cold tier may still hold an older copy
+// of a section that has since been promoted or rewritten, it is overwritten when the section is demoted again
+public class TieredStorageAdaptor extends StorageBackend {
+    private static final int STRIPE_BITS = 6;
+    private static final int MAX_DEMOTIONS_PER_PASS = 1<<16;
+
+    //Count-min style sketch of the last access time of keys in seconds since the adaptor was created. Each key maps
+    // to one cell per row and a cell keeps the latest time of all keys mapping to it, taking the minimum over the rows
+    // gives a time that is never older than the real last access, so collisions can only delay a demotion
+    private static final class AccessSketch {
+        private final AtomicIntegerArray[] rows = new AtomicIntegerArray[2];
+        private final int mask;
+
+        private AccessSketch(int sizeBits) {
+            this.mask = (1<<sizeBits)-1;
+            for (int i = 0; i < this.rows.length; i++) {
+                this.rows[i] = new AtomicIntegerArray(1<<sizeBits);
+            }
+        }
+
+        private int getCell(long key, int row) {
+            long hash = HashCommon.mix(key);
+            return (int) (row == 0 ? hash : hash>>>32)&this.mask;
+        }
+
+        private void record(long key, int time) {
+            for (int row = 0; row < this.rows.length; row++) {
+                var cells = this.rows[row];
+                int cell = this.getCell(key, row);
+                int current = cells.get(cell);
+                while (current < time && !cells.compareAndSet(cell, current, time)) {
+                    current = cells.get(cell);
+                }
+            }
+        }
+
+        private int getLastAccess(long key) {
+            int time = Integer.MAX_VALUE;
+            for (int row = 0; row < this.rows.length; row++) {
+                time = Math.min(time, this.rows[row].get(this.getCell(key, row)));
+            }
+            return time;
+        }
+    }
+
+    private final StorageBackend hot;
+    private final StorageBackend cold;
+    private final int demoteAfter;
+    private final long scanIntervalMs;
+    private final long startNanos = System.nanoTime();
+    private final AccessSketch sketch;
+    //Serializes writes, promotions and demotions of the same key so a move between the tiers never loses a write
+    private final ReentrantLock[] stripes = new ReentrantLock[1<<STRIPE_BITS];
+    //Bumped by every change to either tier while holding the stripe lock, a read that saw the same version before its
+    // unlocked hot tier miss and once it holds the lock knows the miss is still valid and doesnt need to read hot again
+    private final AtomicLongArray stripeVersions = new AtomicLongArray(1<<STRIPE_BITS);
+
+    private final LongAdder promotions = new LongAdder();
+    private final LongAdder demotions = new LongAdder();
+
+    private final Thread demoter;
+    private volatile boolean running = true;
+
+    public TieredStorageAdaptor(StorageBackend hot, StorageBackend cold, int demoteAfterSeconds, int scanIntervalSeconds, int sketchSizeBits) {
+        this.hot = hot;
+        this.cold = cold;
+        this.demoteAfter = demoteAfterSeconds;
+        this.scanIntervalMs = scanIntervalSeconds*1000L;
+        this.sketch = new AccessSketch(sketchSizeBits);
+        for (int i = 0; i < this.stripes.length; i++) {
+            this.stripes[i] = new ReentrantLock();
+        }
+
+        this.demoter = new Thread(this::demoteWorker);
+        this.demoter.setName("Storage tier demoter");
+        this.demoter.setDaemon(true);
+        this.demoter.start();
+    }
+
+    //Access times are not persisted, keys that havent been accessed since startup read as accessed at time 0 so nothing
+    // gets demoted before it had the chance to be used
+    private int now() {
+        return (int) ((System.nanoTime() - this.startNanos)/1_000_000_000L);
+    }
+
+    private static int getStripeIndex(long key) {
+        return (int) (HashCommon.mix(key)>>>(64-STRIPE_BITS));
+    }
+
+    private ReentrantLock getStripe(long key) {
+        return this.stripes[getStripeIndex(key)];
+    }
+
+    private long getVersion(long key) {
+        return this.stripeVersions.get(getStripeIndex(key));
+    }
+
+    //Must be called while holding the stripe lock after changing a tier
+    private void bumpVersion(long key) {
+        this.stripeVersions.incrementAndGet(getStripeIndex(key));
+    }
+
+    //Locked in index order so concurrent batches cant deadlock
+    private long lockStripes(long[] keys) {
+        long used = 0;
+        for (long key : keys) {
+            used |= 1L<<getStripeIndex(key);
+        }
+        for (int i = 0; i < this.stripes.length; i++) {
+            if ((used&(1L<<i)) != 0) {
+                this.stripes[i].lock();
+            }
+        }
+        return used;
+    }
+
+    //Bumps the versions of the locked stripes and unlocks them
+    private void unlockStripes(long used, boolean changed) {
+        for (int i = 0; i < this.stripes.length; i++) {
+            if ((used&(1L<<i)) != 0) {
+                if (changed) {
+                    this.stripeVersions.incrementAndGet(i);
+                }
+                this.stripes[i].unlock();
+            }
+        }
+    }
+
+    //Copies the section from the cold tier into the hot tier unless it got written to the hot tier meanwhile, returns
+    // the current data of the section owned by the caller. The version is the one read before the hot tier missed
+    private ByteBuffer promote(long key, long version) {
+        var stripe = this.getStripe(key);
+        stripe.lock();
+        try {
+            ByteBuffer data;
+            if (this.getVersion(key) != version && (data = this.hot.getSectionData(key)) != null) {
+                return data;
+            }
+            data = this.cold.getSectionData(key);
+            if (data != null) {
+                this.hot.setSectionData(key, data);
+                this.bumpVersion(key);
+                this.promotions.increment();
+            }
+            return data;
+        } finally {
+            stripe.unlock();
+        }
+    }
+
+    @Override
+    public ByteBuffer getSectionData(long key) {
+        this.sketch.record(key, this.now());
+        long version = this.getVersion(key);
+        var data = this.hot.getSectionData(key);
+        if (data != null) {
+            return data;
+        }
+        return this.promote(key, version);
+    }
+
+    @Override
+    public boolean readSectionData(long key, ByteBufferConsumer consumer) {
+        this.sketch.record(key, this.now());
+        long version = this.getVersion(key);
+        if (this.hot.readSectionData(key, consumer)) {
+            return true;
+        }
+        var data = this.promote(key, version);
+        if (data == null) {
+            return false;
+        }
+        try {
+            consumer.accept(data);
+        } finally {
+            MemoryUtil.memFree(data);
+        }
+        return true;
+    }
+
+    //The cold tier is read in one batch for all keys the hot tier missed, and the sections found are promoted in one
+    // batch. Only keys whose stripe changed since the hot tier was read go through the per key promotion
+    @Override
+    public ByteBuffer[] getSectionsData(long[] keys) {
+        int now = this.now();
+        long[] versions = new long[keys.length];
+        for (int i = 0; i < keys.length; i++) {
+            this.sketch.record(keys[i], now);
+            versions[i] = this.getVersion(keys[i]);
+        }
+        var result = this.hot.getSectionsData(keys);
+        var missing = new IntArrayList();
+        for (int i = 0; i < keys.length; i++) {
+            if (result[i] == null) {
+                missing.add(i);
+            }
+        }
+        if (missing.isEmpty()) {
+            return result;
+        }
+        long[] missingKeys = new long[missing.size()];
+        for (int i = 0; i < missingKeys.length; i++) {
+            missingKeys[i] = keys[missing.getInt(i)];
+        }
+        var coldData = this.cold.getSectionsData(missingKeys);
+
+        var promoteKeys = new LongArrayList();
+        var promoteData = new ArrayList<ByteBuffer>();
+        long used = this.lockStripes(missingKeys);
+        try {
+            for (int i = 0; i < missingKeys.length; i++) {
+                int index = missing.getInt(i);
+                if (this.getVersion(missingKeys[i]) != versions[index]) {
+                    //Changed since the reads, redo them for the key under the lock
+                    if (coldData[i] != null) {
+                        MemoryUtil.memFree(coldData[i]);
+                    }
+                    result[index] = this.promote(missingKeys[i], versions[index]);
+                } else if (coldData[i] != null) {
+                    result[index] = coldData[i];
+                    promoteKeys.add(missingKeys[i]);
+                    promoteData.add(coldData[i]);
+                }
+            }
+            if (!promoteKeys.isEmpty()) {
+                this.hot.setSectionsData(promoteKeys.toLongArray(), promoteData.toArray(new ByteBuffer[0]));
+                this.promotions.add(promoteKeys.size());
+            }
+        } finally {
+            this.unlockStripes(used, !promoteKeys.isEmpty());
+        }
+        return result;
+    }
+
+    @Override
+    public void setSectionData(long key, ByteBuffer data) {
+        this.sketch.record(key, this.now());
+        var stripe = this.getStripe(key);
+        stripe.lock();
+        try {
+            this.hot.setSectionData(key, data);
+            this.bumpVersion(key);
+        } finally {
+            stripe.unlock();
+        }
+    }
+
+    @Override
+    public void setSectionsData(long[] keys, ByteBuffer[] data) {
+        if (keys.length != data.length) {
+            throw new IllegalArgumentException("Key count does not match data count");
+        }
+        int now = this.now();
+        for (long key : keys) {
+            this.sketch.record(key, now);
+        }
+        long used = this.lockStripes(keys);
+        try {
+            this.hot.setSectionsData(keys, data);
+        } finally {
+            this.unlockStripes(used, true);
+        }
+    }
+
+    @Override
+    public void deleteSectionData(long key) {
+        var stripe = this.getStripe(key);
+        stripe.lock();
+        try {
+            this.hot.deleteSectionData(key);
+            this.cold.deleteSectionData(key);
+            this.bumpVersion(key);
+        } finally {
+            stripe.unlock();
+        }
+    }
+
+    @Override
+    public void deleteSections(long fromKey, long toKey) {
+        for (var stripe : this.stripes) {
+            stripe.lock();
+        }
+        try {
+            this.hot.deleteSections(fromKey, toKey);
+            this.cold.deleteSections(fromKey, toKey);
+        } finally {
+            for (int i = 0; i < this.stripes.length; i++) {
+                this.stripeVersions.incrementAndGet(i);
+                this.stripes[i].unlock();
+            }
+        }
+    }
+
+    //Visits the hot tier and then the cold sections that arent shadowed by a hot copy. Iterating doesnt count as an
+    // access, so a full scan does not keep the whole world in the hot tier
+    @Override
+    public boolean iterateSections(long fromKey, long toKey, SectionVisitor visitor) {
+        return this.iterate(fromKey, toKey, visitor, false);
+    }
+
+    @Override
+    public boolean iterateStoredSections(long fromKey, long toKey, SectionVisitor visitor) {
+        return this.iterate(fromKey, toKey, visitor, true);
+    }
+
+    private boolean iterate(long fromKey, long toKey, SectionVisitor visitor, boolean stored) {
+        //The hot keys are collected on the first pass so the cold pass skips shadowed sections without reading hot
+        var visited = new LongOpenHashSet();
+        SectionVisitor collecting = (key, data) -> {
+            visited.add(key);
+            return visitor.visit(key, data);
+        };
+        if (!(stored ? this.hot.iterateStoredSections(fromKey, toKey, collecting) : this.hot.iterateSections(fromKey, toKey, collecting))) {
+            return false;
+        }
+        SectionVisitor unshadowed = (key, data) -> visited.contains(key) || visitor.visit(key, data);
+        return stored ? this.cold.iterateStoredSections(fromKey, toKey, unshadowed) : this.cold.iterateSections(fromKey, toKey, unshadowed);
+    }
+
+    private void demoteWorker() {
+        while (this.running) {
+            int demoted = 0;
+            try {
+                demoted = this.demotePass();
+            } catch (Exception e) {
+                System.err.println("Failed to demote storage sections: " + e);
+            }
+            //Keep going without waiting while there is a backlog of sections to demote
+            if (demoted >= MAX_DEMOTIONS_PER_PASS) {
+                continue;
+            }
+            synchronized (this) {
+                if (!this.running) {
+                    return;
+                }
+                try {
+                    this.wait(this.scanIntervalMs);
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+        }
+    }
+
+    //Moves up to MAX_DEMOTIONS_PER_PASS sections that havent been accessed within the demotion age to the cold tier
+    private int demotePass() {
+        int cutoff = this.now() - this.demoteAfter;
+        var candidates = new LongArrayList();
+        //Only the keys are needed, so the hot tier is walked without decoding its sections
+        this.hot.iterateStoredSections(0, -1, (key, data) -> {
+            if (this.sketch.getLastAccess(key) < cutoff) {
+                candidates.add(key);
+            }
+            return this.running && candidates.size() < MAX_DEMOTIONS_PER_PASS;
+        });
+
+        int demoted = 0;
+        for (int i = 0; i < candidates.size() && this.running; i++) {
+            long key = candidates.getLong(i);
+            var stripe = this.getStripe(key);
+            stripe.lock();
+            try {
+                //Recheck as the section may have been accessed since the scan
+                if (this.sketch.getLastAccess(key) >= cutoff) {
+                    continue;
+                }
+                var data = this.hot.getSectionData(key);
+                if (data == null) {
+                    continue;
+                }
+                try {
+                    this.cold.setSectionData(key, data);
+                } finally {
+                    MemoryUtil.memFree(data);
+                }
+                this.hot.deleteSectionData(key);
+                this.bumpVersion(key);
+                demoted++;
+            } finally {
+                stripe.unlock();
+            }
+        }
+        this.demotions.add(demoted);
+        return demoted;
+    }
+
+    public long getPromotions() {
+        return this.promotions.sum();
+    }
+
+    public long getDemotions() {
+        return this.demotions.sum();
+    }
+
+    @Override
+    public void putIdMapping(int id, ByteBuffer data) {
+        this.hot.putIdMapping(id, data);
+        this.cold.putIdMapping(id, data);
+    }
+
+    @Override
+    public Int2ObjectOpenHashMap<byte[]> getIdMappingsData() {
+        var mappings = this.hot.getIdMappingsData();
+        return mappings.isEmpty() ? this.cold.getIdMappingsData() : mappings;
+    }
+
+    @Override
+    public void flush() {
+        this.hot.flush();
+        this.cold.flush();
+    }
+
+    @Override
+    public void close() {
+        synchronized (this) {
+            this.running = false;
+            this.notifyAll();
+        }
+        try {
+            this.demoter.join();
+        } catch (InterruptedException e) {
+            throw new RuntimeException(e);
+        }
+        this.hot.close();
+        this.cold.close();
+    }
+
+    @Override
+    public List<StorageBackend> getChildBackends() {
+        return List.of(this.hot, this.cold);
+    }
+
+    public static class Config extends StorageConfig {
+        public StorageConfig hot;
+        public StorageConfig cold;
+        //Sections not accessed for this long are moved to the cold tier
+        public int demoteAfterSeconds = 60*60;
+        public int scanIntervalSeconds = 5*60;
+        //Cells per row of the access time sketch, 2 rows of 2^20 cells take 8MB
+        public int sketchSizeBits = 20;
+
+        @Override
+        public List<StorageConfig> getChildStorageConfigs() {
+            return List.of(this.hot, this.cold);
+        }
+
+        @Override
+        public StorageBackend build(ConfigBuildCtx ctx) {
+            return new TieredStorageAdaptor(this.hot.build(ctx), this.cold.build(ctx), this.demoteAfterSeconds, this.scanIntervalSeconds, this.sketchSizeBits);
+        }
+
+        public static String getConfigTypeName() {
+            return "TieredAdaptor";
+        }
+    }
+}
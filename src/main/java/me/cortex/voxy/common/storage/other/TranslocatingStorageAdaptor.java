@@ -1,15 +1,27 @@
 package me.cortex.voxy.common.storage.other;
 
+import it.unimi.dsi.fastutil.ints.IntArrayList;
+import it.unimi.dsi.fastutil.longs.Long2IntOpenHashMap;
+import it.unimi.dsi.fastutil.longs.LongAVLTreeSet;
+import it.unimi.dsi.fastutil.longs.LongArrayList;
+import it.unimi.dsi.fastutil.longs.LongArrays;
+import it.unimi.dsi.fastutil.longs.LongOpenHashSet;
+import me.cortex.voxy.common.storage.ByteBufferConsumer;
+import me.cortex.voxy.common.storage.SectionVisitor;
 import me.cortex.voxy.common.storage.StorageBackend;
 import me.cortex.voxy.common.storage.config.ConfigBuildCtx;
 import me.cortex.voxy.common.storage.config.StorageConfig;
 import me.cortex.voxy.common.world.WorldEngine;
+import org.lwjgl.system.MemoryUtil;
 
 import java.nio.ByteBuffer;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 
 public class TranslocatingStorageAdaptor extends DelegatingStorageAdaptor {
+    private static final int DELETE_BATCH_SIZE = 1024;
+
     public enum Mode {
         BOX_ONLY,
         PRIORITY_BOX,
@@ -24,61 +36,332 @@ public class TranslocatingStorageAdaptor extends DelegatingStorageAdaptor {
             int x = WorldEngine.getX(pos);
             int y = WorldEngine.getY(pos);
             int z = WorldEngine.getZ(pos);
+            return this.contains(lvl, x, y, z) ? this.translate(lvl, x, y, z) : -1;
+        }
 
-            //TODO: FIXME this might need to be the other way around, as in shift x,y,z instead of x1 etc
-            if (!((this.x1>>lvl) <= x && x <= (this.x2>>lvl) &&
-                  (this.y1>>lvl) <= y && y <= (this.y2>>lvl) &&
-                  (this.z1>>lvl) <= z && z <= (this.z2>>lvl))) {
-                return -1;
-            }
+        //TODO: FIXME this might need to be the other way around, as in shift x,y,z instead of x1 etc
+        public boolean contains(int lvl, int x, int y, int z) {
+            return (this.x1>>lvl) <= x && x <= (this.x2>>lvl) &&
+                   (this.y1>>lvl) <= y && y <= (this.y2>>lvl) &&
+                   (this.z1>>lvl) <= z && z <= (this.z2>>lvl);
+        }
+
+        public long translate(int lvl, int x, int y, int z) {
             return WorldEngine.getWorldSectionId(lvl,
                     x + (this.dx>>lvl),
                     y + (this.dy>>lvl),
                     z + (this.dz>>lvl)
             );
         }
+
+        private boolean isPriority() {
+            return this.mode == Mode.PRIORITY_BOX || this.mode == Mode.PRIORITY_ORIGINAL;
+        }
+
+        //Maps a position that data is read from back to the position in the box that reads it, -1 if there is none
+        public long inverseTransformIfInBox(long pos) {
+            int lvl = WorldEngine.getLevel(pos);
+            long source = WorldEngine.getWorldSectionId(lvl,
+                    WorldEngine.getX(pos) - (this.dx>>lvl),
+                    WorldEngine.getY(pos) - (this.dy>>lvl),
+                    WorldEngine.getZ(pos) - (this.dz>>lvl)
+            );
+            return this.transformIfInBox(source) == pos ? source : -1;
+        }
+    }
+
+    //Finds the box a section is in without going over every transform. Per level the x axis is cut into slabs at the
+    // edges of the boxes, and each slab cuts the z axis the same way at the edges of the boxes crossing it, so every
+    // cell is covered by a fixed set of boxes. A lookup is two binary searches then a y check of the boxes covering
+    // the cell, normally none or one
+    private static final class SpatialIndex {
+        private static final int[] EMPTY = new int[0];
+        //Slab i covers [edges[i], edges[i+1])
+        private final long[] xEdges;
+        private final long[][] zEdges;
+        //Indices of the covering transforms per x slab and z slab, ascending so the first declared box wins
+        private final int[][][] cells;
+
+        private SpatialIndex(BoxTransform[] transforms, int lvl) {
+            var boxes = new IntArrayList();
+            for (int i = 0; i < transforms.length; i++) {
+                var t = transforms[i];
+                if ((t.x1>>lvl) <= (t.x2>>lvl) && (t.y1>>lvl) <= (t.y2>>lvl) && (t.z1>>lvl) <= (t.z2>>lvl)) {
+                    boxes.add(i);
+                }
+            }
+            this.xEdges = getEdges(transforms, boxes, lvl, true);
+            int slabs = Math.max(0, this.xEdges.length - 1);
+            this.zEdges = new long[slabs][];
+            this.cells = new int[slabs][][];
+            for (int xs = 0; xs < slabs; xs++) {
+                var crossing = new IntArrayList();
+                for (int i : boxes) {
+                    if ((transforms[i].x1>>lvl) <= this.xEdges[xs] && this.xEdges[xs] <= (transforms[i].x2>>lvl)) {
+                        crossing.add(i);
+                    }
+                }
+                var zEdges = getEdges(transforms, crossing, lvl, false);
+                this.zEdges[xs] = zEdges;
+                this.cells[xs] = new int[Math.max(0, zEdges.length - 1)][];
+                for (int zs = 0; zs < zEdges.length - 1; zs++) {
+                    var covering = new IntArrayList();
+                    for (int i : crossing) {
+                        if ((transforms[i].z1>>lvl) <= zEdges[zs] && zEdges[zs] <= (transforms[i].z2>>lvl)) {
+                            covering.add(i);
+                        }
+                    }
+                    this.cells[xs][zs] = covering.isEmpty() ? EMPTY : covering.toIntArray();
+                }
+            }
+        }
+
+        private static long[] getEdges(BoxTransform[] transforms, IntArrayList boxes, int lvl, boolean x) {
+            var edges = new LongAVLTreeSet();
+            for (int i : boxes) {
+                var t = transforms[i];
+                edges.add(x ? t.x1>>lvl : t.z1>>lvl);
+                edges.add((long) (x ? t.x2>>lvl : t.z2>>lvl) + 1);
+            }
+            return edges.toLongArray();
+        }
+
+        //The slab containing the value, -1 if it is outside all of them
+        private static int findSlab(long[] edges, int value) {
+            int low = 0;
+            int high = edges.length - 1;
+            while (low <= high) {
+                int mid = (low + high)>>>1;
+                if (edges[mid] <= value) {
+                    low = mid + 1;
+                } else {
+                    high = mid - 1;
+                }
+            }
+            int slab = low - 1;
+            return slab < edges.length - 1 ? slab : -1;
+        }
+
+        private int find(BoxTransform[] transforms, int lvl, int x, int y, int z) {
+            int xs = findSlab(this.xEdges, x);
+            if (xs == -1) {
+                return -1;
+            }
+            int zs = findSlab(this.zEdges[xs], z);
+            if (zs == -1) {
+                return -1;
+            }
+            for (int i : this.cells[xs][zs]) {
+                if ((transforms[i].y1>>lvl) <= y && y <= (transforms[i].y2>>lvl)) {
+                    return i;
+                }
+            }
+            return -1;
+        }
     }
 
     private final BoxTransform[] transforms;
+    private final SpatialIndex[] index = new SpatialIndex[16];
 
     public TranslocatingStorageAdaptor(StorageBackend delegate, BoxTransform... transforms) {
         super(delegate);
         this.transforms = transforms;
+        for (int lvl = 0; lvl < this.index.length; lvl++) {
+            this.index[lvl] = new SpatialIndex(transforms, lvl);
+        }
+    }
+
+    //The first declared transform whose box contains the key, null if there is none
+    private BoxTransform findTransform(long key) {
+        int lvl = WorldEngine.getLevel(key);
+        int i = this.index[lvl].find(this.transforms, lvl, WorldEngine.getX(key), WorldEngine.getY(key), WorldEngine.getZ(key));
+        return i == -1 ? null : this.transforms[i];
+    }
+
+    //The positions to read for a key, the first one is tried and if it doesnt exist the second, -1 if there is none
+    private long[] getReadOrder(long key) {
+        var transform = this.findTransform(key);
+        if (transform == null) {
+            return new long[] {key, -1};
+        }
+        long tpos = transform.transformIfInBox(key);
+        if (transform.mode == Mode.BOX_ONLY || transform.mode == null) {
+            return new long[] {tpos, -1};
+        } else if (transform.mode == Mode.PRIORITY_BOX) {
+            return new long[] {tpos, key};
+        } else if (transform.mode == Mode.PRIORITY_ORIGINAL) {
+            return new long[] {key, tpos};
+        } else {
+            throw new IllegalStateException();
+        }
     }
 
     @Override
     public ByteBuffer getSectionData(long key) {
-        for (var transform : this.transforms) {
-            long tpos = transform.transformIfInBox(key);
-            if (tpos != -1) {
-                if (transform.mode == Mode.BOX_ONLY || transform.mode == null) {
-                    return super.getSectionData(tpos);
-                } else if (transform.mode == Mode.PRIORITY_BOX) {
-                    var data = super.getSectionData(tpos);
-                    if (data == null) {
-                        return super.getSectionData(key);
-                    }
-                } else if (transform.mode == Mode.PRIORITY_ORIGINAL) {
-                    var data = super.getSectionData(key);
-                    if (data == null) {
-                        return super.getSectionData(tpos);
-                    }
-                } else {
-                    throw new IllegalStateException();
+        long[] order = this.getReadOrder(key);
+        var data = super.getSectionData(order[0]);
+        if (data == null && order[1] != -1) {
+            data = super.getSectionData(order[1]);
+        }
+        return data;
+    }
+
+    @Override
+    public boolean readSectionData(long key, ByteBufferConsumer consumer) {
+        long[] order = this.getReadOrder(key);
+        return super.readSectionData(order[0], consumer) || (order[1] != -1 && super.readSectionData(order[1], consumer));
+    }
+
+    //Keys are mapped to the positions they read from and fetched from the delegate in one batch, then a second batch
+    // fetches the fallback positions of the PRIORITY_* keys the first one missed. Keys reading the same position share
+    // a fetch and get their own copy
+    @Override
+    public ByteBuffer[] getSectionsData(long[] keys) {
+        var out = new ByteBuffer[keys.length];
+        long[][] orders = new long[keys.length][];
+        int[] pending = new int[keys.length];
+        for (int i = 0; i < keys.length; i++) {
+            orders[i] = this.getReadOrder(keys[i]);
+            pending[i] = i;
+        }
+        int pendingCount = keys.length;
+        for (int pass = 0; pass < 2 && pendingCount != 0; pass++) {
+            var fetchIndex = new Long2IntOpenHashMap();
+            fetchIndex.defaultReturnValue(-1);
+            var fetchKeys = new LongArrayList();
+            for (int j = 0; j < pendingCount; j++) {
+                long pos = orders[pending[j]][pass];
+                if (fetchIndex.putIfAbsent(pos, fetchKeys.size()) == -1) {
+                    fetchKeys.add(pos);
+                }
+            }
+            var fetched = super.getSectionsData(fetchKeys.toLongArray());
+            boolean[] used = new boolean[fetched.length];
+            int missing = 0;
+            for (int j = 0; j < pendingCount; j++) {
+                int i = pending[j];
+                int f = fetchIndex.get(orders[i][pass]);
+                var data = fetched[f];
+                if (data != null) {
+                    out[i] = used[f] ? copy(data) : data;
+                    used[f] = true;
+                } else if (pass == 0 && orders[i][1] != -1) {
+                    pending[missing++] = i;
+                }
+            }
+            pendingCount = missing;
+        }
+        return out;
+    }
+
+    private static ByteBuffer copy(ByteBuffer data) {
+        var copy = MemoryUtil.memAlloc(data.remaining());
+        MemoryUtil.memCopy(data, copy);
+        return copy;
+    }
+
+    //The stored keys arent the keys seen through this adaptor, so the sections are visited like iterateSections does
+    @Override
+    public boolean iterateStoredSections(long fromKey, long toKey, SectionVisitor visitor) {
+        return this.iterateSections(fromKey, toKey, visitor);
+    }
+
+    //Visits the sections as they would be seen through getSectionData. Sections outside of every box are passed
+    // through and data that a BOX_ONLY transform reads from is also visited at the box position it is mapped to.
+    // As any stored key can be mapped into the range the whole delegate is walked. Which position a PRIORITY_* box
+    // reads depends on what else exists, and the delegate cant be read while it is being walked, so the stored keys
+    // involved in those boxes are collected and the box positions are resolved and visited after the walk
+    @Override
+    public boolean iterateSections(long fromKey, long toKey, SectionVisitor visitor) {
+        var priorityKeys = new LongOpenHashSet();
+        boolean completed = this.delegate.iterateSections(0, -1, (key, data) -> {
+            var owner = this.findTransform(key);
+            if (owner == null) {
+                //Every visit gets its own view as the visitor may move the position
+                if (inRange(key, fromKey, toKey) && !visitor.visit(key, data.duplicate().order(data.order()))) {
+                    return false;
+                }
+            } else if (owner.isPriority()) {
+                priorityKeys.add(key);
+            }
+            for (var transform : this.transforms) {
+                long pos = transform.inverseTransformIfInBox(key);
+                if (pos == -1 || this.findTransform(pos) != transform) {
+                    continue;
                 }
+                if (transform.isPriority()) {
+                    priorityKeys.add(key);
+                } else if (inRange(pos, fromKey, toKey) && !visitor.visit(pos, data.duplicate().order(data.order()))) {
+                    return false;
+                }
+            }
+            return true;
+        });
+        if (!completed || priorityKeys.isEmpty()) {
+            return completed;
+        }
+
+        //Every box position that can see data, stored originals in the box and positions whose source is stored
+        var positions = new LongOpenHashSet();
+        for (long key : priorityKeys) {
+            var owner = this.findTransform(key);
+            if (owner != null && owner.isPriority() && inRange(key, fromKey, toKey)) {
+                positions.add(key);
+            }
+            for (var transform : this.transforms) {
+                if (!transform.isPriority()) {
+                    continue;
+                }
+                long pos = transform.inverseTransformIfInBox(key);
+                if (pos != -1 && this.findTransform(pos) == transform && inRange(pos, fromKey, toKey)) {
+                    positions.add(pos);
+                }
+            }
+        }
+        long[] sorted = positions.toLongArray();
+        LongArrays.quickSort(sorted, Long::compareUnsigned);
+        boolean[] proceed = {true};
+        for (long pos : sorted) {
+            long[] order = this.getReadOrder(pos);
+            long source = priorityKeys.contains(order[0]) ? order[0] : order[1];
+            this.delegate.readSectionData(source, data -> proceed[0] = visitor.visit(pos, data));
+            if (!proceed[0]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    //Transformed positions are dropped like setSectionData does and the rest go to the delegate as one batch
+    @Override
+    public void setSectionsData(long[] keys, ByteBuffer[] data) {
+        if (keys.length != data.length) {
+            throw new IllegalArgumentException("Key count does not match data count");
+        }
+        int kept = 0;
+        long[] keptKeys = new long[keys.length];
+        ByteBuffer[] keptData = new ByteBuffer[keys.length];
+        for (int i = 0; i < keys.length; i++) {
+            if (this.findTransform(keys[i]) == null) {
+                keptKeys[kept] = keys[i];
+                keptData[kept++] = data[i];
             }
         }
-        return super.getSectionData(key);
+        if (kept == 0) {
+            return;
+        }
+        if (kept != keys.length) {
+            keptKeys = Arrays.copyOf(keptKeys, kept);
+            keptData = Arrays.copyOf(keptData, kept);
+        }
+        super.setSectionsData(keptKeys, keptData);
     }
 
     @Override
     public void setSectionData(long key, ByteBuffer data) {
         //Dont save data if its a transformed position
-        for (var transform : this.transforms) {
-            long tpos = transform.transformIfInBox(key);
-            if (tpos != -1) {
-                return;
-            }
+        if (this.findTransform(key) != null) {
+            return;
         }
         super.setSectionData(key, data);
     }
@@ -86,15 +369,31 @@ public class TranslocatingStorageAdaptor extends DelegatingStorageAdaptor {
     @Override
     public void deleteSectionData(long key) {
         //Dont delete save data if its a transformed position
-        for (var transform : this.transforms) {
-            long tpos = transform.transformIfInBox(key);
-            if (tpos != -1) {
-                return;
-            }
+        if (this.findTransform(key) != null) {
+            return;
         }
         super.deleteSectionData(key);
     }
 
+    //Deletes the stored sections of the range that arent in a box, going through the default would keep finding the
+    // box positions that deleteSectionData ignores
+    @Override
+    public void deleteSections(long fromKey, long toKey) {
+        var keys = new LongArrayList();
+        do {
+            keys.clear();
+            this.delegate.iterateSections(fromKey, toKey, (key, data) -> {
+                if (this.findTransform(key) == null) {
+                    keys.add(key);
+                }
+                return keys.size() < DELETE_BATCH_SIZE;
+            });
+            for (int i = 0; i < keys.size(); i++) {
+                this.delegate.deleteSectionData(keys.getLong(i));
+            }
+        } while (!keys.isEmpty());
+    }
+
     public static class Config extends StorageConfig {
         public StorageConfig delegate;
         public List<BoxTransform> transforms = new ArrayList<>();
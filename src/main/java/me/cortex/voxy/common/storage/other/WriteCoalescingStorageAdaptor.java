@@ -0,0 +1,325 @@
+package me.cortex.voxy.common.storage.other;
+
+import it.unimi.dsi.fastutil.longs.Long2ObjectLinkedOpenHashMap;
+import it.unimi.dsi.fastutil.longs.Long2ObjectOpenHashMap;
+import me.cortex.voxy.common.storage.ByteBufferConsumer;
+import me.cortex.voxy.common.storage.SectionVisitor;
+import me.cortex.voxy.common.storage.StorageBackend;
+import me.cortex.voxy.common.storage.config.ConfigBuildCtx;
+import org.lwjgl.system.MemoryUtil;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+//Buffers writes off heap and only writes the latest payload of each key to the delegate, in batches, once the buffer
+// grows past its budget or the flush interval passes. Reads are served from the buffer so writes are always visible
+public class WriteCoalescingStorageAdaptor extends DelegatingStorageAdaptor {
+    private static final int FLUSH_BATCH_SIZE = 256;
+    //Buffered value of a key that has been deleted
+    private static final ByteBuffer DELETED = ByteBuffer.allocateDirect(0);
+
+    private final long maxBufferedBytes;
+    private final long flushInterval;
+
+    private final Object lock = new Object();
+    private final Long2ObjectLinkedOpenHashMap<ByteBuffer> pending = new Long2ObjectLinkedOpenHashMap<>();
+    //Entries taken by a flush in progress, they are still served to reads until they have reached the delegate
+    private final Long2ObjectOpenHashMap<ByteBuffer> flushing = new Long2ObjectOpenHashMap<>();
+    private long bufferedBytes;
+    //Only one flush may run at a time so that an older payload can never be written after a newer one
+    private final ReentrantLock flushLock = new ReentrantLock();
+
+    private final AtomicLong absorbedWrites = new AtomicLong();
+    private final AtomicLong flushedWrites = new AtomicLong();
+
+    private volatile boolean running = true;
+    private final Thread flusher;
+
+    public WriteCoalescingStorageAdaptor(StorageBackend delegate, long maxBufferedBytes, long flushIntervalMs) {
+        super(delegate);
+        this.maxBufferedBytes = maxBufferedBytes;
+        this.flushInterval = flushIntervalMs;
+        this.flusher = new Thread(this::flushWorker);
+        this.flusher.setDaemon(true);
+        this.flusher.setName("Write coalescing flusher");
+        this.flusher.start();
+    }
+
+    private void flushWorker() {
+        while (this.running) {
+            synchronized (this.lock) {
+                try {
+                    this.lock.wait(this.flushInterval);
+                } catch (InterruptedException e) {
+                    throw new RuntimeException(e);
+                }
+            }
+            if (!this.running) {
+                return;
+            }
+            try {
+                this.flushPending(0);
+            } catch (Throwable e) {
+                System.err.println("Failed to flush buffered section writes, retrying next interval: " + e);
+            }
+        }
+    }
+
+    //Writes buffered entries to the delegate, oldest first, until no more than targetBytes remain buffered
+    private void flushPending(long targetBytes) {
+        this.flushLock.lock();
+        try {
+            while (true) {
+                long[] keys;
+                ByteBuffer[] data;
+                synchronized (this.lock) {
+                    if (this.pending.isEmpty() || this.bufferedBytes <= targetBytes) {
+                        return;
+                    }
+                    int count = Math.min(FLUSH_BATCH_SIZE, this.pending.size());
+                    keys = new long[count];
+                    data = new ByteBuffer[count];
+                    for (int i = 0; i < count; i++) {
+                        keys[i] = this.pending.firstLongKey();
+                        data[i] = this.pending.removeFirst();
+                        this.flushing.put(keys[i], data[i]);
+                    }
+                }
+
+                try {
+                    this.writeToDelegate(keys, data);
+                } catch (Throwable e) {
+                    //Put back anything that hasnt been superseded so it is retried
+                    synchronized (this.lock) {
+                        for (int i = 0; i < keys.length; i++) {
+                            this.flushing.remove(keys[i]);
+                            if (this.pending.containsKey(keys[i])) {
+                                this.release(data[i]);
+                            } else {
+                                this.pending.put(keys[i], data[i]);
+                            }
+                        }
+                    }
+                    throw e;
+                }
+
+                synchronized (this.lock) {
+                    for (int i = 0; i < keys.length; i++) {
+                        this.flushing.remove(keys[i]);
+                        this.release(data[i]);
+                    }
+                }
+                this.flushedWrites.addAndGet(keys.length);
+            }
+        } finally {
+            this.flushLock.unlock();
+        }
+    }
+
+    private void writeToDelegate(long[] keys, ByteBuffer[] data) {
+        int writes = 0;
+        for (var buffer : data) {
+            writes += buffer != DELETED ? 1 : 0;
+        }
+        long[] writeKeys = new long[writes];
+        ByteBuffer[] writeData = new ByteBuffer[writes];
+        for (int i = 0, j = 0; i < keys.length; i++) {
+            if (data[i] == DELETED) {
+                this.delegate.deleteSectionData(keys[i]);
+            } else {
+                writeKeys[j] = keys[i];
+                writeData[j++] = data[i];
+            }
+        }
+        if (writes != 0) {
+            this.delegate.setSectionsData(writeKeys, writeData);
+        }
+    }
+
+    //Must be called while holding the lock
+    private void release(ByteBuffer buffer) {
+        if (buffer != DELETED) {
+            this.bufferedBytes -= buffer.capacity();
+            MemoryUtil.memFree(buffer);
+        }
+    }
+
+    private void buffer(long key, ByteBuffer value) {
+        boolean overBudget;
+        synchronized (this.lock) {
+            if (value != DELETED) {
+                this.bufferedBytes += value.capacity();
+            }
+            var previous = this.pending.putAndMoveToLast(key, value);
+            if (previous != null) {
+                this.release(previous);
+                this.absorbedWrites.incrementAndGet();
+            }
+            overBudget = this.bufferedBytes > this.maxBufferedBytes;
+        }
+        if (overBudget) {
+            //Apply backpressure by flushing on the writing thread, down to half the budget to avoid flushing every write
+            this.flushPending(this.maxBufferedBytes/2);
+        }
+    }
+
+    //Returns the buffered value of the key, DELETED or null if it isnt buffered. Must be called while holding the lock
+    private ByteBuffer getBuffered(long key) {
+        var data = this.pending.get(key);
+        return data != null ? data : this.flushing.get(key);
+    }
+
+    private static ByteBuffer copy(ByteBuffer data) {
+        var copy = MemoryUtil.memAlloc(data.remaining());
+        MemoryUtil.memCopy(data, copy);
+        return copy;
+    }
+
+    @Override
+    public ByteBuffer getSectionData(long key) {
+        synchronized (this.lock) {
+            var data = this.getBuffered(key);
+            if (data != null) {
+                return data == DELETED ? null : copy(data);
+            }
+        }
+        return this.delegate.getSectionData(key);
+    }
+
+    @Override
+    public boolean readSectionData(long key, ByteBufferConsumer consumer) {
+        ByteBuffer data;
+        synchronized (this.lock) {
+            data = this.getBuffered(key);
+            if (data == DELETED) {
+                return false;
+            }
+            if (data != null) {
+                data = copy(data);
+            }
+        }
+        if (data == null) {
+            return this.delegate.readSectionData(key, consumer);
+        }
+        try {
+            consumer.accept(data);
+        } finally {
+            MemoryUtil.memFree(data);
+        }
+        return true;
+    }
+
+    @Override
+    public ByteBuffer[] getSectionsData(long[] keys) {
+        var out = new ByteBuffer[keys.length];
+        var buffered = new boolean[keys.length];
+        int misses = 0;
+        synchronized (this.lock) {
+            for (int i = 0; i < keys.length; i++) {
+                var data = this.getBuffered(keys[i]);
+                if (data != null) {
+                    buffered[i] = true;
+                    out[i] = data == DELETED ? null : copy(data);
+                } else {
+                    misses++;
+                }
+            }
+        }
+        if (misses != 0) {
+            long[] missKeys = new long[misses];
+            for (int i = 0, j = 0; i < keys.length; i++) {
+                if (!buffered[i]) {
+                    missKeys[j++] = keys[i];
+                }
+            }
+            var fetched = this.delegate.getSectionsData(missKeys);
+            for (int i = 0, j = 0; i < keys.length; i++) {
+                if (!buffered[i]) {
+                    out[i] = fetched[j++];
+                }
+            }
+        }
+        return out;
+    }
+
+    @Override
+    public void setSectionData(long key, ByteBuffer data) {
+        this.buffer(key, copy(data));
+    }
+
+    @Override
+    public void setSectionsData(long[] keys, ByteBuffer[] data) {
+        if (keys.length != data.length) {
+            throw new IllegalArgumentException("Key count does not match data count");
+        }
+        for (int i = 0; i < keys.length; i++) {
+            this.buffer(keys[i], copy(data[i]));
+        }
+    }
+
+    @Override
+    public void deleteSectionData(long key) {
+        this.buffer(key, DELETED);
+    }
+
+    //Iterates the delegate so everything buffered is written out first
+    @Override
+    public boolean iterateSections(long fromKey, long toKey, SectionVisitor visitor) {
+        this.flushPending(0);
+        return this.delegate.iterateSections(fromKey, toKey, visitor);
+    }
+
+    @Override
+    public boolean iterateStoredSections(long fromKey, long toKey, SectionVisitor visitor) {
+        this.flushPending(0);
+        return this.delegate.iterateStoredSections(fromKey, toKey, visitor);
+    }
+
+    @Override
+    public void flush() {
+        this.flushPending(0);
+        this.delegate.flush();
+    }
+
+    @Override
+    public void close() {
+        this.running = false;
+        synchronized (this.lock) {
+            this.lock.notifyAll();
+        }
+        try {
+            this.flusher.join();
+            this.flushPending(0);
+        } catch (InterruptedException e) {
+            throw new RuntimeException(e);
+        } finally {
+            //Close the delegate even if the last writes failed so it isnt left open
+            this.delegate.close();
+        }
+    }
+
+    //Number of writes that were replaced in the buffer before reaching the delegate
+    public long getAbsorbedWrites() {
+        return this.absorbedWrites.get();
+    }
+
+    //Number of writes and deletes that were sent to the delegate
+    public long getFlushedWrites() {
+        return this.flushedWrites.get();
+    }
+
+    public static class Config extends DelegateStorageConfig {
+        public long maxBufferedBytes = 64L<<20;
+        public long flushIntervalMs = 5000;
+
+        @Override
+        public StorageBackend build(ConfigBuildCtx ctx) {
+            return new WriteCoalescingStorageAdaptor(this.delegate.build(ctx), this.maxBufferedBytes, this.flushIntervalMs);
+        }
+
+        public static String getConfigTypeName() {
+            return "WriteCoalescingAdaptor";
+        }
+    }
+}
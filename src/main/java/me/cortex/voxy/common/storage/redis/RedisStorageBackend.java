@@ -1,19 +1,36 @@
 package me.cortex.voxy.common.storage.redis;
 
 import it.unimi.dsi.fastutil.ints.Int2ObjectOpenHashMap;
+import it.unimi.dsi.fastutil.ints.IntArrayList;
+import it.unimi.dsi.fastutil.longs.Long2IntOpenHashMap;
+import it.unimi.dsi.fastutil.longs.Long2ObjectLinkedOpenHashMap;
+import me.cortex.voxy.common.storage.SectionKeyEncoding;
+import me.cortex.voxy.common.storage.SectionVisitor;
 import me.cortex.voxy.common.storage.StorageBackend;
 import me.cortex.voxy.common.storage.config.ConfigBuildCtx;
 import me.cortex.voxy.common.storage.config.StorageConfig;
+import me.cortex.voxy.common.world.WorldEngine;
 import org.lwjgl.system.MemoryUtil;
+import redis.clients.jedis.DefaultJedisClientConfig;
+import redis.clients.jedis.HostAndPort;
+import redis.clients.jedis.Jedis;
 import redis.clients.jedis.JedisPool;
+import redis.clients.jedis.JedisPoolConfig;
+import redis.clients.jedis.Response;
+import redis.clients.jedis.params.ScanParams;
 
 import java.nio.ByteBuffer;
 import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
 
 public class RedisStorageBackend extends StorageBackend {
     private final JedisPool pool;
-    private final String user;
-    private final String password;
+    private final String prefix;
+    //If not -1, sections are split into one hash per region of 2^regionBits by 2^regionBits sections per level
+    private final int regionBits;
     private final byte[] WORLD;
     private final byte[] MAPPINGS;
 
@@ -22,78 +39,201 @@ public class RedisStorageBackend extends StorageBackend {
     }
 
     public RedisStorageBackend(String host, int port, String prefix, String user, String password) {
-        this.pool = new JedisPool(host, port);
-        this.user = user;
-        this.password = password;
+        this(host, port, prefix, user, password, 8, -1);
+    }
+
+    public RedisStorageBackend(String host, int port, String prefix, String user, String password, int maxConnections, int regionBits) {
+        var poolConfig = new JedisPoolConfig();
+        poolConfig.setMaxTotal(maxConnections);
+        poolConfig.setMaxIdle(maxConnections);
+        //Authentication is done once when the pool creates a connection instead of on every request
+        var clientConfig = DefaultJedisClientConfig.builder()
+                .user(user)
+                .password(password)
+                .build();
+        this.pool = new JedisPool(poolConfig, new HostAndPort(host, port), clientConfig);
+        this.prefix = prefix;
+        this.regionBits = regionBits;
         this.WORLD = (prefix+"world_sections").getBytes(StandardCharsets.UTF_8);
         this.MAPPINGS = (prefix+"id_mappings").getBytes(StandardCharsets.UTF_8);
     }
 
+    //Returns the id of the region the section belongs to, 0 when sharding is disabled
+    private long getRegion(long key) {
+        if (this.regionBits == -1) {
+            return 0;
+        }
+        //Stored keys may be in a different encoding, regions are always based on the section position
+        key = SectionKeyEncoding.toWorldKey(key);
+        return WorldEngine.getWorldSectionId(WorldEngine.getLevel(key), WorldEngine.getX(key)>>this.regionBits, 0, WorldEngine.getZ(key)>>this.regionBits);
+    }
+
+    private byte[] getHash(long region) {
+        if (this.regionBits == -1) {
+            return WORLD;
+        }
+        return (this.prefix + "world_sections:" + WorldEngine.getLevel(region) + ":" + WorldEngine.getX(region) + ":" + WorldEngine.getZ(region)).getBytes(StandardCharsets.UTF_8);
+    }
+
+    //Groups the indices of the keys by the hash they are stored in
+    private Long2ObjectLinkedOpenHashMap<IntArrayList> splitByRegion(long[] keys) {
+        var regions = new Long2ObjectLinkedOpenHashMap<IntArrayList>();
+        for (int i = 0; i < keys.length; i++) {
+            regions.computeIfAbsent(this.getRegion(keys[i]), a -> new IntArrayList()).add(i);
+        }
+        return regions;
+    }
+
     @Override
     public ByteBuffer getSectionData(long key) {
         try (var jedis = this.pool.getResource()) {
-            if (this.user != null) {
-                jedis.auth(this.user, this.password);
-            }
-
-            var result = jedis.hget(WORLD, longToBytes(key));
+            var result = jedis.hget(this.getHash(this.getRegion(key)), longToBytes(key));
             if (result == null) {
                 return null;
             }
-            //Need to copy to native memory
-            var buffer = MemoryUtil.memAlloc(result.length);
-            buffer.put(result);
-            buffer.rewind();
-            return buffer;
+            return toNative(result);
         }
     }
 
     @Override
     public void setSectionData(long key, ByteBuffer data) {
         try (var jedis = this.pool.getResource()) {
-            if (this.user != null) {
-                jedis.auth(this.user, this.password);
+            jedis.hset(this.getHash(this.getRegion(key)), longToBytes(key), toArray(data));
+        }
+    }
+
+    //Issues one HMGET per region hash, all pipelined so the whole batch costs a single round trip
+    @Override
+    public ByteBuffer[] getSectionsData(long[] keys) {
+        var out = new ByteBuffer[keys.length];
+        if (keys.length == 0) {
+            return out;
+        }
+        var regions = this.splitByRegion(keys);
+        var responses = new ArrayList<Response<List<byte[]>>>(regions.size());
+        try (var jedis = this.pool.getResource()) {
+            var pipeline = jedis.pipelined();
+            for (var entry : regions.long2ObjectEntrySet()) {
+                var indices = entry.getValue();
+                var fields = new byte[indices.size()][];
+                for (int i = 0; i < fields.length; i++) {
+                    fields[i] = longToBytes(keys[indices.getInt(i)]);
+                }
+                responses.add(pipeline.hmget(this.getHash(entry.getLongKey()), fields));
             }
+            pipeline.sync();
+        }
+        int region = 0;
+        for (var indices : regions.values()) {
+            var results = responses.get(region++).get();
+            for (int i = 0; i < indices.size(); i++) {
+                var result = results.get(i);
+                if (result != null) {
+                    out[indices.getInt(i)] = toNative(result);
+                }
+            }
+        }
+        return out;
+    }
 
-            var buffer = new byte[data.remaining()];
-            data.get(buffer);
-            data.rewind();
-            jedis.hset(WORLD, longToBytes(key), buffer);
+    //Issues one multi field HSET per region hash, pipelined into a single round trip
+    @Override
+    public void setSectionsData(long[] keys, ByteBuffer[] data) {
+        if (keys.length != data.length) {
+            throw new IllegalArgumentException("Key count does not match data count");
+        }
+        if (keys.length == 0) {
+            return;
+        }
+        var regions = this.splitByRegion(keys);
+        try (var jedis = this.pool.getResource()) {
+            var pipeline = jedis.pipelined();
+            for (var entry : regions.long2ObjectEntrySet()) {
+                var indices = entry.getValue();
+                //The field map compares byte[] keys by identity and sends them in no particular order, so a key
+                // written twice in the batch is reduced to its last payload first
+                var latest = new Long2IntOpenHashMap(indices.size());
+                for (int i = 0; i < indices.size(); i++) {
+                    int index = indices.getInt(i);
+                    latest.put(keys[index], index);
+                }
+                var fields = new HashMap<byte[], byte[]>(latest.size()*2);
+                for (var field : latest.long2IntEntrySet()) {
+                    fields.put(longToBytes(field.getLongKey()), toArray(data[field.getIntValue()]));
+                }
+                pipeline.hset(this.getHash(entry.getLongKey()), fields);
+            }
+            pipeline.sync();
         }
     }
 
+    //Streams the hashes with HSCAN, redis hashes are unordered so the keys are not visited in order and a key
+    // may be visited more than once if the hash is modified during the scan
     @Override
-    public void deleteSectionData(long key) {
+    public boolean iterateSections(long fromKey, long toKey, SectionVisitor visitor) {
+        var scratch = new ByteBuffer[]{MemoryUtil.memAlloc(1<<16)};
         try (var jedis = this.pool.getResource()) {
-            if (this.user != null) {
-                jedis.auth(this.user, this.password);
+            if (this.regionBits == -1) {
+                return this.scanHash(jedis, WORLD, fromKey, toKey, visitor, scratch);
+            }
+            var params = new ScanParams().match(this.prefix + "world_sections:*").count(1000);
+            var cursor = ScanParams.SCAN_POINTER_START_BINARY;
+            do {
+                var result = jedis.scan(cursor, params);
+                for (var hash : result.getResult()) {
+                    if (!this.scanHash(jedis, hash, fromKey, toKey, visitor, scratch)) {
+                        return false;
+                    }
+                }
+                cursor = result.getCursorAsBytes();
+            } while (!Arrays.equals(cursor, ScanParams.SCAN_POINTER_START_BINARY));
+            return true;
+        } finally {
+            MemoryUtil.memFree(scratch[0]);
+        }
+    }
+
+    private boolean scanHash(Jedis jedis, byte[] hash, long fromKey, long toKey, SectionVisitor visitor, ByteBuffer[] scratch) {
+        var params = new ScanParams().count(256);
+        var cursor = ScanParams.SCAN_POINTER_START_BINARY;
+        do {
+            var result = jedis.hscan(hash, cursor, params);
+            for (var entry : result.getResult()) {
+                long key = bytesToLong(entry.getKey());
+                if (!inRange(key, fromKey, toKey)) {
+                    continue;
+                }
+                var value = entry.getValue();
+                if (scratch[0].capacity() < value.length) {
+                    scratch[0] = MemoryUtil.memRealloc(scratch[0], value.length);
+                }
+                var data = scratch[0].clear().put(value).flip();
+                if (!visitor.visit(key, data)) {
+                    return false;
+                }
             }
+            cursor = result.getCursorAsBytes();
+        } while (!Arrays.equals(cursor, ScanParams.SCAN_POINTER_START_BINARY));
+        return true;
+    }
 
-            jedis.hdel(WORLD, longToBytes(key));
+    @Override
+    public void deleteSectionData(long key) {
+        try (var jedis = this.pool.getResource()) {
+            jedis.hdel(this.getHash(this.getRegion(key)), longToBytes(key));
         }
     }
 
     @Override
     public void putIdMapping(int id, ByteBuffer data) {
         try (var jedis = this.pool.getResource()) {
-            if (this.user != null) {
-                jedis.auth(this.user, this.password);
-            }
-
-            var buffer = new byte[data.remaining()];
-            data.get(buffer);
-            data.rewind();
-            jedis.hset(MAPPINGS, intToBytes(id), buffer);
+            jedis.hset(MAPPINGS, intToBytes(id), toArray(data));
         }
     }
 
     @Override
     public Int2ObjectOpenHashMap<byte[]> getIdMappingsData() {
         try (var jedis = this.pool.getResource()) {
-            if (this.user != null) {
-                jedis.auth(this.user, this.password);
-            }
-
             var mappings = jedis.hgetAll(MAPPINGS);
             var out = new Int2ObjectOpenHashMap<byte[]>();
             if (mappings == null) {
@@ -116,6 +256,20 @@ public class RedisStorageBackend extends StorageBackend {
         this.pool.close();
     }
 
+    private static byte[] toArray(ByteBuffer data) {
+        var buffer = new byte[data.remaining()];
+        data.get(data.position(), buffer);
+        return buffer;
+    }
+
+    //Need to copy to native memory
+    private static ByteBuffer toNative(byte[] data) {
+        var buffer = MemoryUtil.memAlloc(data.length);
+        buffer.put(data);
+        buffer.rewind();
+        return buffer;
+    }
+
     private static byte[] intToBytes(int i) {
         return new byte[] {(byte)(i>>24), (byte)(i>>16), (byte)(i>>8), (byte) i};
     }
@@ -145,10 +299,16 @@ public class RedisStorageBackend extends StorageBackend {
         public String host;
         public int port;
         public String prefix;
+        public String user;
+        public String password;
+        public int maxConnections = 8;
+        //Splits the sections into one hash per region of 2^regionBits by 2^regionBits sections, -1 keeps everything in a
+        // single hash. NOTE: changing this on an existing world makes the previously stored sections unreachable
+        public int regionBits = -1;
 
         @Override
         public StorageBackend build(ConfigBuildCtx ctx) {
-            return new RedisStorageBackend(this.host, this.port, ctx.substituteString(this.prefix));
+            return new RedisStorageBackend(this.host, this.port, ctx.substituteString(this.prefix), this.user, this.password, this.maxConnections, this.regionBits);
         }
 
         public static String getConfigTypeName() {
@@ -0,0 +1,201 @@
+package me.cortex.voxy.common.storage.region;
+
+import org.lwjgl.system.MemoryUtil;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.BitSet;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+//A file holding a region of sections, starts with a memory mapped header of (sector offset, byte length) pairs, one per
+// section, followed by the section payloads each aligned to the start of a sector
+public class RegionFile {
+    public static final int SIZE_XZ_BITS = 5;
+    public static final int SIZE_Y_BITS = 4;
+    public static final int SECTION_COUNT = 1<<(SIZE_XZ_BITS*2+SIZE_Y_BITS);
+
+    private static final int SECTOR_SIZE = 4096;
+    private static final int HEADER_ENTRY_SIZE = 8;
+    private static final int HEADER_SECTORS = SECTION_COUNT*HEADER_ENTRY_SIZE/SECTOR_SIZE;
+
+    private final FileChannel channel;
+    private final MappedByteBuffer header;
+    private final BitSet usedSectors = new BitSet();
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+    //Guarded by the owning backends region map
+    int references;
+
+    public RegionFile(Path path) throws IOException {
+        this.channel = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE, StandardOpenOption.CREATE);
+        this.header = this.channel.map(FileChannel.MapMode.READ_WRITE, 0, (long) HEADER_SECTORS*SECTOR_SIZE);
+        this.usedSectors.set(0, HEADER_SECTORS);
+        for (int i = 0; i < SECTION_COUNT; i++) {
+            int offset = this.getOffset(i);
+            if (offset != 0) {
+                this.usedSectors.set(offset, offset + sectorCount(this.getLength(i)));
+            }
+        }
+    }
+
+    public static int getIndex(int x, int y, int z) {
+        int mask = (1<<SIZE_XZ_BITS)-1;
+        return (x&mask)|((z&mask)<<SIZE_XZ_BITS)|((y&((1<<SIZE_Y_BITS)-1))<<(SIZE_XZ_BITS*2));
+    }
+
+    private static int sectorCount(int length) {
+        return Math.max(1, (length+SECTOR_SIZE-1)/SECTOR_SIZE);
+    }
+
+    private int getOffset(int index) {
+        return this.header.getInt(index*HEADER_ENTRY_SIZE);
+    }
+
+    private int getLength(int index) {
+        return this.header.getInt(index*HEADER_ENTRY_SIZE+4);
+    }
+
+    private void setEntry(int index, int offset, int length) {
+        this.header.putInt(index*HEADER_ENTRY_SIZE, offset);
+        this.header.putInt(index*HEADER_ENTRY_SIZE+4, length);
+    }
+
+    public boolean contains(int index) {
+        this.lock.readLock().lock();
+        try {
+            return this.getOffset(index) != 0;
+        } finally {
+            this.lock.readLock().unlock();
+        }
+    }
+
+    public ByteBuffer read(int index) throws IOException {
+        this.lock.readLock().lock();
+        try {
+            int offset = this.getOffset(index);
+            if (offset == 0) {
+                return null;
+            }
+            var buffer = MemoryUtil.memAlloc(this.getLength(index));
+            long position = (long) offset*SECTOR_SIZE;
+            while (buffer.hasRemaining()) {
+                int read = this.channel.read(buffer, position);
+                if (read < 0) {
+                    MemoryUtil.memFree(buffer);
+                    throw new IOException("Section data truncated in region file");
+                }
+                position += read;
+            }
+            return buffer.rewind();
+        } finally {
+            this.lock.readLock().unlock();
+        }
+    }
+
+    //Rewrites the section in place if it fits in the sectors it already has, otherwise moves it to a free run of
+    // sectors, the header is only updated once the payload has been written
+    public void write(int index, ByteBuffer data) throws IOException {
+        this.lock.writeLock().lock();
+        try {
+            int length = data.remaining();
+            int sectors = sectorCount(length);
+            int offset = this.getOffset(index);
+            int oldSectors = offset == 0 ? 0 : sectorCount(this.getLength(index));
+            int newOffset = offset;
+            if (sectors > oldSectors) {
+                newOffset = this.allocate(sectors);
+            }
+
+            var source = data.duplicate();
+            long position = (long) newOffset*SECTOR_SIZE;
+            while (source.hasRemaining()) {
+                position += this.channel.write(source, position);
+            }
+            this.setEntry(index, newOffset, length);
+
+            if (newOffset != offset) {
+                if (offset != 0) {
+                    this.usedSectors.clear(offset, offset + oldSectors);
+                }
+            } else if (sectors < oldSectors) {
+                this.usedSectors.clear(offset + sectors, offset + oldSectors);
+            }
+        } finally {
+            this.lock.writeLock().unlock();
+        }
+    }
+
+    public void delete(int index) {
+        this.lock.writeLock().lock();
+        try {
+            int offset = this.getOffset(index);
+            if (offset != 0) {
+                this.usedSectors.clear(offset, offset + sectorCount(this.getLength(index)));
+                this.setEntry(index, 0, 0);
+            }
+        } finally {
+            this.lock.writeLock().unlock();
+        }
+    }
+
+    //First fit search for a run of free sectors, runs past the end of the file extend it
+    private int allocate(int sectors) {
+        int start = this.usedSectors.nextClearBit(HEADER_SECTORS);
+        while (true) {
+            int end = this.usedSectors.nextSetBit(start);
+            if (end == -1 || end - start >= sectors) {
+                this.usedSectors.set(start, start + sectors);
+                return start;
+            }
+            start = this.usedSectors.nextClearBit(end);
+        }
+    }
+
+    //Bytes taken by the header and the sectors of the stored sections, freed sectors are never given back to the file
+    // system so its length only ever grows
+    public long getUsedSize() {
+        this.lock.readLock().lock();
+        try {
+            return (long) this.usedSectors.cardinality()*SECTOR_SIZE;
+        } finally {
+            this.lock.readLock().unlock();
+        }
+    }
+
+    //Same as getUsedSize for a region file that isnt open, only its header is read
+    public static long readUsedSize(Path path) throws IOException {
+        var header = ByteBuffer.allocate(HEADER_SECTORS*SECTOR_SIZE);
+        try (var channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            while (header.hasRemaining()) {
+                if (channel.read(header, header.position()) < 0) {
+                    break;
+                }
+            }
+        }
+        long sectors = HEADER_SECTORS;
+        for (int i = 0; i < SECTION_COUNT && (i+1)*HEADER_ENTRY_SIZE <= header.position(); i++) {
+            if (header.getInt(i*HEADER_ENTRY_SIZE) != 0) {
+                sectors += sectorCount(header.getInt(i*HEADER_ENTRY_SIZE+4));
+            }
+        }
+        return sectors*SECTOR_SIZE;
+    }
+
+    public void flush() throws IOException {
+        this.lock.readLock().lock();
+        try {
+            this.channel.force(false);
+            this.header.force();
+        } finally {
+            this.lock.readLock().unlock();
+        }
+    }
+
+    public void close() throws IOException {
+        this.flush();
+        this.channel.close();
+    }
+}
@@ -0,0 +1,397 @@
+package me.cortex.voxy.common.storage.region;
+
+import it.unimi.dsi.fastutil.ints.Int2ObjectOpenHashMap;
+import it.unimi.dsi.fastutil.longs.Long2LongOpenHashMap;
+import it.unimi.dsi.fastutil.longs.Long2ObjectLinkedOpenHashMap;
+import it.unimi.dsi.fastutil.longs.LongOpenHashSet;
+import me.cortex.voxy.common.storage.SectionVisitor;
+import me.cortex.voxy.common.storage.StorageBackend;
+import me.cortex.voxy.common.storage.config.ConfigBuildCtx;
+import me.cortex.voxy.common.storage.config.StorageConfig;
+import me.cortex.voxy.common.world.WorldEngine;
+import org.lwjgl.system.MemoryUtil;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.regex.Pattern;
+
+//Stores sections in region files of 32x16x32 sections, one folder per level, so areas of the world can be copied,
+// backed up or deleted as plain files
+public class RegionFileStorageBackend extends StorageBackend {
+    private static final int MAX_OPEN_REGIONS = 256;
+    private static final int MAX_MISSING_REGIONS = 1<<16;
+    private static final Pattern REGION_NAME = Pattern.compile("r\\.(-?\\d+)\\.(-?\\d+)\\.(-?\\d+)\\.vxr");
+
+    private final Path path;
+    //Open region files in least recently used order
+    private final Long2ObjectLinkedOpenHashMap<RegionFile> regions = new Long2ObjectLinkedOpenHashMap<>();
+    //Regions known not to exist, guarded by the regions lock like the counter of opened regions
+    private final LongOpenHashSet missingRegions = new LongOpenHashSet();
+    private long regionCreations;
+    //Used size of the regions that arent open, guarded by the regions lock. Regions only change while open so the
+    // size is refreshed when they are closed
+    private final Long2LongOpenHashMap closedRegionSizes = new Long2LongOpenHashMap();
+    private final Int2ObjectOpenHashMap<byte[]> idMappings = new Int2ObjectOpenHashMap<>();
+    private final DataOutputStream idMappingStream;
+
+    public RegionFileStorageBackend(String path) {
+        this.path = Path.of(path);
+        var mappingFile = this.path.resolve("id_mappings.bin");
+        try {
+            //Mappings are appended as records, later records override earlier ones
+            if (Files.exists(mappingFile)) {
+                try (var in = new DataInputStream(Files.newInputStream(mappingFile))) {
+                    while (true) {
+                        int id;
+                        try {
+                            id = in.readInt();
+                        } catch (EOFException e) {
+                            break;
+                        }
+                        var data = new byte[in.readInt()];
+                        in.readFully(data);
+                        this.idMappings.put(id, data);
+                    }
+                }
+            }
+            this.idMappingStream = new DataOutputStream(Files.newOutputStream(mappingFile, StandardOpenOption.CREATE, StandardOpenOption.APPEND));
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private static long getRegionId(long key) {
+        if ((key&0xF) != 0) {
+            throw new IllegalArgumentException("Region file storage only supports plain section keys, got " + Long.toHexString(key));
+        }
+        return WorldEngine.getWorldSectionId(WorldEngine.getLevel(key),
+                WorldEngine.getX(key)>>RegionFile.SIZE_XZ_BITS,
+                WorldEngine.getY(key)>>RegionFile.SIZE_Y_BITS,
+                WorldEngine.getZ(key)>>RegionFile.SIZE_XZ_BITS);
+    }
+
+    private static int getIndex(long key) {
+        return RegionFile.getIndex(WorldEngine.getX(key), WorldEngine.getY(key), WorldEngine.getZ(key));
+    }
+
+    private Path getRegionPath(long region) {
+        return this.path.resolve(Integer.toString(WorldEngine.getLevel(region)))
+                .resolve("r." + WorldEngine.getX(region) + "." + WorldEngine.getY(region) + "." + WorldEngine.getZ(region) + ".vxr");
+    }
+
+    //Returns the region with a reference taken, or null if it doesnt exist and create is false. Whether a region that
+    // isnt open exists is checked outside the lock, and regions found missing are remembered so lookups in unexplored
+    // areas dont hit the file system every time
+    private RegionFile acquire(long region, boolean create) {
+        long creations;
+        synchronized (this.regions) {
+            var file = this.regions.getAndMoveToLast(region);
+            if (file != null) {
+                file.references++;
+                return file;
+            }
+            if (create) {
+                return this.open(region);
+            }
+            if (this.missingRegions.contains(region)) {
+                return null;
+            }
+            creations = this.regionCreations;
+        }
+        boolean exists = Files.exists(this.getRegionPath(region));
+        synchronized (this.regions) {
+            var file = this.regions.getAndMoveToLast(region);
+            if (file != null) {
+                file.references++;
+                return file;
+            }
+            if (exists) {
+                return this.open(region);
+            }
+            //A region created since the check may exist now, so it is only remembered as missing if none were created
+            if (creations == this.regionCreations) {
+                if (this.missingRegions.size() >= MAX_MISSING_REGIONS) {
+                    this.missingRegions.clear();
+                }
+                this.missingRegions.add(region);
+            }
+            return null;
+        }
+    }
+
+    //Opens or creates the region with a reference taken, must hold the regions lock
+    private RegionFile open(long region) {
+        var filePath = this.getRegionPath(region);
+        RegionFile file;
+        try {
+            Files.createDirectories(filePath.getParent());
+            file = new RegionFile(filePath);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+        this.regionCreations++;
+        this.missingRegions.remove(region);
+        this.regions.putAndMoveToLast(region, file);
+        file.references++;
+        this.evictRegions();
+        return file;
+    }
+
+    private void release(RegionFile file) {
+        synchronized (this.regions) {
+            file.references--;
+        }
+    }
+
+    //Closes the least recently used regions that arent in use
+    private void evictRegions() {
+        var iterator = this.regions.long2ObjectEntrySet().iterator();
+        while (this.regions.size() > MAX_OPEN_REGIONS && iterator.hasNext()) {
+            var entry = iterator.next();
+            var file = entry.getValue();
+            if (file.references == 0) {
+                iterator.remove();
+                this.closedRegionSizes.put(entry.getLongKey(), file.getUsedSize());
+                try {
+                    file.close();
+                } catch (IOException e) {
+                    throw new RuntimeException(e);
+                }
+            }
+        }
+    }
+
+    @Override
+    public ByteBuffer getSectionData(long key) {
+        var file = this.acquire(getRegionId(key), false);
+        if (file == null) {
+            return null;
+        }
+        try {
+            return file.read(getIndex(key));
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        } finally {
+            this.release(file);
+        }
+    }
+
+    @Override
+    public void setSectionData(long key, ByteBuffer data) {
+        var file = this.acquire(getRegionId(key), true);
+        try {
+            file.write(getIndex(key), data);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        } finally {
+            this.release(file);
+        }
+    }
+
+    @Override
+    public void deleteSectionData(long key) {
+        var file = this.acquire(getRegionId(key), false);
+        if (file == null) {
+            return;
+        }
+        try {
+            file.delete(getIndex(key));
+        } finally {
+            this.release(file);
+        }
+    }
+
+    //Walks the region files of the levels in the range one at a time, keys are only ordered within a region
+    @Override
+    public boolean iterateSections(long fromKey, long toKey, SectionVisitor visitor) {
+        for (int lvl = WorldEngine.getLevel(fromKey); lvl <= WorldEngine.getLevel(toKey); lvl++) {
+            var levelPath = this.path.resolve(Integer.toString(lvl));
+            if (!Files.isDirectory(levelPath)) {
+                continue;
+            }
+            var regionIds = new ArrayList<Long>();
+            try (var files = Files.list(levelPath)) {
+                for (var file : (Iterable<Path>) files::iterator) {
+                    var matcher = REGION_NAME.matcher(file.getFileName().toString());
+                    if (matcher.matches()) {
+                        regionIds.add(WorldEngine.getWorldSectionId(lvl, Integer.parseInt(matcher.group(1)), Integer.parseInt(matcher.group(2)), Integer.parseInt(matcher.group(3))));
+                    }
+                }
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+            for (long region : regionIds) {
+                if (!this.iterateRegion(region, fromKey, toKey, visitor)) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    private boolean iterateRegion(long region, long fromKey, long toKey, SectionVisitor visitor) {
+        var file = this.acquire(region, false);
+        if (file == null) {
+            return true;
+        }
+        int lvl = WorldEngine.getLevel(region);
+        int bx = WorldEngine.getX(region)<<RegionFile.SIZE_XZ_BITS;
+        int by = WorldEngine.getY(region)<<RegionFile.SIZE_Y_BITS;
+        int bz = WorldEngine.getZ(region)<<RegionFile.SIZE_XZ_BITS;
+        try {
+            for (int y = 0; y < 1<<RegionFile.SIZE_Y_BITS; y++) {
+                for (int z = 0; z < 1<<RegionFile.SIZE_XZ_BITS; z++) {
+                    for (int x = 0; x < 1<<RegionFile.SIZE_XZ_BITS; x++) {
+                        int index = RegionFile.getIndex(x, y, z);
+                        long key = WorldEngine.getWorldSectionId(lvl, bx + x, by + y, bz + z);
+                        if (!(inRange(key, fromKey, toKey) && file.contains(index))) {
+                            continue;
+                        }
+                        var data = file.read(index);
+                        if (data == null) {
+                            continue;
+                        }
+                        try {
+                            if (!visitor.visit(key, data)) {
+                                return false;
+                            }
+                        } finally {
+                            MemoryUtil.memFree(data);
+                        }
+                    }
+                }
+            }
+            return true;
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        } finally {
+            this.release(file);
+        }
+    }
+
+    @Override
+    public void putIdMapping(int id, ByteBuffer data) {
+        var bytes = new byte[data.remaining()];
+        data.get(data.position(), bytes);
+        synchronized (this.idMappings) {
+            try {
+                this.idMappingStream.writeInt(id);
+                this.idMappingStream.writeInt(bytes.length);
+                this.idMappingStream.write(bytes);
+                this.idMappingStream.flush();
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+            this.idMappings.put(id, bytes);
+        }
+    }
+
+    @Override
+    public Int2ObjectOpenHashMap<byte[]> getIdMappingsData() {
+        synchronized (this.idMappings) {
+            return new Int2ObjectOpenHashMap<>(this.idMappings);
+        }
+    }
+
+    //The sectors in use rather than the length of the region files, which never shrink, so evicting sections lowers
+    // the size. Regions that arent open have their header read once and are remembered until they are opened again
+    @Override
+    public long getStorageSize() {
+        long size = 0;
+        for (int lvl = 0; lvl < 16; lvl++) {
+            var levelPath = this.path.resolve(Integer.toString(lvl));
+            if (!Files.isDirectory(levelPath)) {
+                continue;
+            }
+            try (var files = Files.list(levelPath)) {
+                for (var file : (Iterable<Path>) files::iterator) {
+                    var matcher = REGION_NAME.matcher(file.getFileName().toString());
+                    if (matcher.matches()) {
+                        size += this.getRegionSize(WorldEngine.getWorldSectionId(lvl, Integer.parseInt(matcher.group(1)), Integer.parseInt(matcher.group(2)), Integer.parseInt(matcher.group(3))), file);
+                    }
+                }
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+        }
+        return size;
+    }
+
+    private long getRegionSize(long region, Path file) throws IOException {
+        synchronized (this.regions) {
+            var open = this.regions.get(region);
+            if (open != null) {
+                return open.getUsedSize();
+            }
+            if (this.closedRegionSizes.containsKey(region)) {
+                return this.closedRegionSizes.get(region);
+            }
+        }
+        long size = RegionFile.readUsedSize(file);
+        synchronized (this.regions) {
+            //The region may have been opened and written to while its header was read
+            var open = this.regions.get(region);
+            if (open != null) {
+                return open.getUsedSize();
+            }
+            this.closedRegionSizes.put(region, size);
+        }
+        return size;
+    }
+
+    @Override
+    public void flush() {
+        synchronized (this.regions) {
+            try {
+                for (var file : this.regions.values()) {
+                    file.flush();
+                }
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+        }
+    }
+
+    @Override
+    public void close() {
+        synchronized (this.regions) {
+            try {
+                for (var file : this.regions.values()) {
+                    file.close();
+                }
+                this.regions.clear();
+                this.idMappingStream.close();
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+        }
+    }
+
+    public static class Config extends StorageConfig {
+        @Override
+        public StorageBackend build(ConfigBuildCtx ctx) {
+            return new RegionFileStorageBackend(ctx.ensurePathExists(ctx.substituteString(ctx.resolvePath())));
+        }
+
+        public static String getConfigTypeName() {
+            return "RegionFile";
+        }
+
+        //Region files address sections by their position, so layers that store keys which arent plain section keys
+        // call this with the config they write those keys to, to fail on build instead of on the first write
+        public static void rejectIn(StorageConfig config, String layer) {
+            for (var child : config.collectStorageConfigs()) {
+                if (child instanceof Config) {
+                    throw new IllegalStateException(layer + " stores keys that arent section positions and cant be used with region file storage");
+                }
+            }
+        }
+    }
+}
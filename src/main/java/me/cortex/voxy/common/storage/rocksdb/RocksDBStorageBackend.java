@@ -1,6 +1,8 @@
 package me.cortex.voxy.common.storage.rocksdb;
 
 import it.unimi.dsi.fastutil.ints.Int2ObjectOpenHashMap;
+import me.cortex.voxy.common.storage.ByteBufferConsumer;
+import me.cortex.voxy.common.storage.SectionVisitor;
 import me.cortex.voxy.common.storage.StorageBackend;
 import me.cortex.voxy.common.storage.config.ConfigBuildCtx;
 import me.cortex.voxy.common.storage.config.StorageConfig;
@@ -10,20 +12,44 @@ import org.rocksdb.*;
 import java.io.File;
 import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
 import java.nio.file.Files;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public class RocksDBStorageBackend extends StorageBackend {
+    //Size of the value slot given to each key of a multiGet, values that dont fit are refetched individually
+    private static final int MULTI_GET_SLOT_SIZE = 1<<14;
+
     private final RocksDB db;
     private final ColumnFamilyHandle worldSections;
     private final ColumnFamilyHandle idMappings;
+    private final ReadOptions readOptions;
+    private final WriteOptions writeOptions;
+    //Options matching the section column family that bulk loaded sst files are written with
+    private final Options sstOptions;
+    private final EnvOptions envOptions;
+    private final String path;
+    private final AtomicInteger sstFileCounter = new AtomicInteger();
+    //Bounds of the ranges deleted since the last compaction, unsigned, empty while deletedFrom > deletedTo
+    private long deletedFrom = -1;
+    private long deletedTo = 0;
+
+    //Direct buffers reused by each thread for the key and value of single key operations
+    private final ThreadLocal<ByteBuffer> keyBuffer = ThreadLocal.withInitial(() -> ByteBuffer.allocateDirect(Long.BYTES));
+    private final ThreadLocal<ByteBuffer> valueBuffer = ThreadLocal.withInitial(() -> ByteBuffer.allocateDirect(1<<16).order(ByteOrder.nativeOrder()));
 
     //NOTE: closes in order
     private final List<AbstractImmutableNativeReference> closeList = new ArrayList<>();
 
     public RocksDBStorageBackend(String path) {
+        this(path, new Config());
+    }
+
+    public RocksDBStorageBackend(String path, Config tuning) {
+        this.path = path;
         var lockPath = new File(path).toPath().resolve("LOCK");
         if (Files.exists(lockPath)) {
             System.err.println("WARNING, deleting rocksdb LOCK file");
@@ -46,6 +72,23 @@ public class RocksDBStorageBackend extends StorageBackend {
         }
 
         final ColumnFamilyOptions cfOpts = new ColumnFamilyOptions().optimizeUniversalStyleCompaction();
+        //Block cache is shared between all the column families
+        final Cache blockCache = new LRUCache(tuning.blockCacheSize);
+        final BloomFilter bloomFilter = tuning.bloomFilterBitsPerKey > 0 ? new BloomFilter(tuning.bloomFilterBitsPerKey, false) : null;
+        var tableConfig = new BlockBasedTableConfig()
+                .setBlockCache(blockCache)
+                .setCacheIndexAndFilterBlocks(true)
+                .setPinL0FilterAndIndexBlocksInCache(true);
+        if (bloomFilter != null) {
+            tableConfig.setFilterPolicy(bloomFilter).setWholeKeyFiltering(true);
+        }
+        cfOpts.setTableFormatConfig(tableConfig);
+        if (!tuning.compression) {
+            //Section data is already compressed by the storage adaptors, compressing it again only costs cpu
+            cfOpts.setCompressionPerLevel(new ArrayList<>());
+            cfOpts.setCompressionType(CompressionType.NO_COMPRESSION);
+            cfOpts.setBottommostCompressionType(CompressionType.NO_COMPRESSION);
+        }
 
         final List<ColumnFamilyDescriptor> cfDescriptors = Arrays.asList(
             new ColumnFamilyDescriptor(RocksDB.DEFAULT_COLUMN_FAMILY, cfOpts),
@@ -56,6 +99,11 @@ public class RocksDBStorageBackend extends StorageBackend {
         final DBOptions options = new DBOptions()
                 .setCreateIfMissing(true)
                 .setCreateMissingColumnFamilies(true);
+        //Limits background flush and compaction io so it doesnt starve the render thread of disk bandwidth
+        final RateLimiter rateLimiter = tuning.compactionRateLimit > 0 ? new RateLimiter(tuning.compactionRateLimit) : null;
+        if (rateLimiter != null) {
+            options.setRateLimiter(rateLimiter);
+        }
 
         List<ColumnFamilyHandle> handles = new ArrayList<>();
 
@@ -64,10 +112,26 @@ public class RocksDBStorageBackend extends StorageBackend {
                     path, cfDescriptors,
                     handles);
 
+            this.readOptions = new ReadOptions();
+            this.writeOptions = new WriteOptions();
+            this.sstOptions = new Options(options, cfOpts);
+            this.envOptions = new EnvOptions();
+
             this.closeList.addAll(handles);
             this.closeList.add(this.db);
+            this.closeList.add(this.readOptions);
+            this.closeList.add(this.writeOptions);
+            this.closeList.add(this.sstOptions);
+            this.closeList.add(this.envOptions);
             this.closeList.add(options);
             this.closeList.add(cfOpts);
+            this.closeList.add(blockCache);
+            if (bloomFilter != null) {
+                this.closeList.add(bloomFilter);
+            }
+            if (rateLimiter != null) {
+                this.closeList.add(rateLimiter);
+            }
 
             this.worldSections = handles.get(1);
             this.idMappings = handles.get(2);
@@ -76,18 +140,58 @@ public class RocksDBStorageBackend extends StorageBackend {
         }
     }
 
+    private ByteBuffer key(long key) {
+        var buffer = this.keyBuffer.get();
+        buffer.clear().putLong(0, key);
+        return buffer;
+    }
+
+    //Fetches the value into the threads value buffer, growing it if needed, returns null if it doesnt exist
+    private ByteBuffer fetch(long key) throws RocksDBException {
+        var value = this.valueBuffer.get();
+        while (true) {
+            int size = this.db.get(this.worldSections, this.readOptions, this.key(key), value.clear());
+            if (size == RocksDB.NOT_FOUND) {
+                return null;
+            }
+            if (size <= value.capacity()) {
+                return value.position(0).limit(size);
+            }
+            value = this.growValueBuffer(size);
+        }
+    }
+
+    private ByteBuffer growValueBuffer(int size) {
+        var value = ByteBuffer.allocateDirect(Integer.highestOneBit(size-1)<<1).order(ByteOrder.nativeOrder());
+        this.valueBuffer.set(value);
+        return value;
+    }
+
+    private static ByteBuffer copy(ByteBuffer data) {
+        var buffer = MemoryUtil.memAlloc(data.remaining());
+        MemoryUtil.memCopy(data, buffer);
+        return buffer;
+    }
+
     @Override
     public ByteBuffer getSectionData(long key) {
         try {
-            var result = this.db.get(this.worldSections, longToBytes(key));
+            var result = this.fetch(key);
+            return result == null ? null : copy(result);
+        } catch (RocksDBException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    @Override
+    public boolean readSectionData(long key, ByteBufferConsumer consumer) {
+        try {
+            var result = this.fetch(key);
             if (result == null) {
-                return null;
+                return false;
             }
-            //Need to copy to native memory
-            var buffer = MemoryUtil.memAlloc(result.length);
-            buffer.put(result);
-            buffer.rewind();
-            return buffer;
+            consumer.accept(result);
+            return true;
         } catch (RocksDBException e) {
             throw new RuntimeException(e);
         }
@@ -95,11 +199,129 @@ public class RocksDBStorageBackend extends StorageBackend {
 
     @Override
     public void setSectionData(long key, ByteBuffer data) {
+        int position = data.position();
         try {
-            var buffer = new byte[data.remaining()];
-            data.get(buffer);
-            data.rewind();
-            this.db.put(this.worldSections, longToBytes(key), buffer);
+            this.db.put(this.worldSections, this.writeOptions, this.key(key), data);
+        } catch (RocksDBException e) {
+            throw new RuntimeException(e);
+        } finally {
+            data.position(position);
+        }
+    }
+
+    @Override
+    public ByteBuffer[] getSectionsData(long[] keys) {
+        if (keys.length == 0) {
+            return new ByteBuffer[0];
+        }
+        //Keys and values for the whole batch are carved out of two native allocations
+        var keyBlock = MemoryUtil.memAlloc(keys.length * Long.BYTES);
+        var valueBlock = MemoryUtil.memAlloc(keys.length * MULTI_GET_SLOT_SIZE);
+        try {
+            var handles = new ArrayList<ColumnFamilyHandle>(keys.length);
+            var keyBuffers = new ArrayList<ByteBuffer>(keys.length);
+            var valueBuffers = new ArrayList<ByteBuffer>(keys.length);
+            for (int i = 0; i < keys.length; i++) {
+                handles.add(this.worldSections);
+                keyBuffers.add(MemoryUtil.memSlice(keyBlock, i * Long.BYTES, Long.BYTES).order(ByteOrder.BIG_ENDIAN).putLong(0, keys[i]));
+                valueBuffers.add(MemoryUtil.memSlice(valueBlock, i * MULTI_GET_SLOT_SIZE, MULTI_GET_SLOT_SIZE));
+            }
+            var results = this.db.multiGetByteBuffers(this.readOptions, handles, keyBuffers, valueBuffers);
+            var out = new ByteBuffer[keys.length];
+            for (int i = 0; i < keys.length; i++) {
+                var result = results.get(i);
+                var code = result.status.getCode();
+                if (code == Status.Code.NotFound) {
+                    continue;
+                }
+                if (code != Status.Code.Ok) {
+                    throw new RocksDBException(result.status);
+                }
+                if (result.requiredSize <= MULTI_GET_SLOT_SIZE) {
+                    out[i] = copy(MemoryUtil.memSlice(valueBlock, i * MULTI_GET_SLOT_SIZE, result.requiredSize));
+                } else {
+                    out[i] = this.getSectionData(keys[i]);
+                }
+            }
+            return out;
+        } catch (RocksDBException e) {
+            throw new RuntimeException(e);
+        } finally {
+            MemoryUtil.memFree(keyBlock);
+            MemoryUtil.memFree(valueBlock);
+        }
+    }
+
+    @Override
+    public void setSectionsData(long[] keys, ByteBuffer[] data) {
+        if (keys.length != data.length) {
+            throw new IllegalArgumentException("Key count does not match data count");
+        }
+        try (var batch = new WriteBatch()) {
+            for (int i = 0; i < keys.length; i++) {
+                int position = data[i].position();
+                batch.put(this.worldSections, this.key(keys[i]), data[i]);
+                data[i].position(position);
+            }
+            this.db.write(this.writeOptions, batch);
+        } catch (RocksDBException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    //Writes the sorted sections into an sst file and ingests it, skipping the wal, memtable and the compactions needed
+    // to get the data out of level 0. Ingestion gives the file a newer sequence number, so it replaces existing values
+    @Override
+    public void bulkLoadSections(long[] keys, ByteBuffer[] data) {
+        if (keys.length != data.length) {
+            throw new IllegalArgumentException("Key count does not match data count");
+        }
+        if (keys.length == 0) {
+            return;
+        }
+        var file = new File(this.path, "bulk-" + this.sstFileCounter.getAndIncrement() + ".sst");
+        try (var writer = new SstFileWriter(this.envOptions, this.sstOptions); var ingestOptions = new IngestExternalFileOptions().setMoveFiles(true)) {
+            writer.open(file.getPath());
+            var key = this.key(0);
+            for (int i = 0; i < keys.length; i++) {
+                int position = data[i].position();
+                writer.put(key.clear().putLong(0, keys[i]), data[i]);
+                data[i].position(position);
+            }
+            writer.finish();
+            this.db.ingestExternalFile(this.worldSections, List.of(file.getPath()), ingestOptions);
+        } catch (RocksDBException e) {
+            throw new RuntimeException(e);
+        } finally {
+            //Only left behind if the ingestion failed
+            file.delete();
+        }
+    }
+
+    //Bulk scans dont fill the block cache so they dont evict the working set
+    @Override
+    public boolean iterateSections(long fromKey, long toKey, SectionVisitor visitor) {
+        var keyBuffer = ByteBuffer.allocateDirect(Long.BYTES);
+        var value = this.valueBuffer.get();
+        try (var readOptions = new ReadOptions().setFillCache(false); var iterator = this.db.newIterator(this.worldSections, readOptions)) {
+            iterator.seek(keyBuffer.putLong(0, fromKey));
+            for (; iterator.isValid(); iterator.next()) {
+                iterator.key(keyBuffer.clear());
+                long key = keyBuffer.getLong(0);
+                if (Long.compareUnsigned(key, toKey) > 0) {
+                    return true;
+                }
+                int size = iterator.value(value.clear());
+                if (size > value.capacity()) {
+                    value = this.growValueBuffer(size);
+                    iterator.value(value);
+                }
+                if (!visitor.visit(key, value.position(0).limit(size))) {
+                    return false;
+                }
+            }
+            iterator.status();
+            return true;
         } catch (RocksDBException e) {
             throw new RuntimeException(e);
         }
@@ -108,7 +330,70 @@ public class RocksDBStorageBackend extends StorageBackend {
     @Override
     public void deleteSectionData(long key) {
         try {
-            this.db.delete(this.worldSections, longToBytes(key));
+            this.db.delete(this.worldSections, this.writeOptions, this.key(key));
+        } catch (RocksDBException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    //Writes range tombstones, the space is only given back once compaction has gone over the range
+    @Override
+    public void deleteSections(long fromKey, long toKey) {
+        if (Long.compareUnsigned(fromKey, toKey) > 0) {
+            return;
+        }
+        try {
+            //The end of a rocksdb range is exclusive, so the last possible key is deleted on its own
+            if (toKey != -1) {
+                this.db.deleteRange(this.worldSections, this.writeOptions, toBytes(fromKey), toBytes(toKey + 1));
+            } else {
+                if (fromKey != -1) {
+                    this.db.deleteRange(this.worldSections, this.writeOptions, toBytes(fromKey), toBytes(-1));
+                }
+                this.db.delete(this.worldSections, this.writeOptions, toBytes(-1));
+            }
+        } catch (RocksDBException e) {
+            throw new RuntimeException(e);
+        }
+        synchronized (this) {
+            if (Long.compareUnsigned(fromKey, this.deletedFrom) < 0) {
+                this.deletedFrom = fromKey;
+            }
+            if (Long.compareUnsigned(toKey, this.deletedTo) > 0) {
+                this.deletedTo = toKey;
+            }
+        }
+    }
+
+    private static byte[] toBytes(long key) {
+        return ByteBuffer.allocate(Long.BYTES).putLong(0, key).array();
+    }
+
+    @Override
+    public long getStorageSize() {
+        try {
+            return this.db.getLongProperty(this.worldSections, "rocksdb.live-sst-files-size")
+                    + this.db.getLongProperty(this.worldSections, "rocksdb.cur-size-all-mem-tables");
+        } catch (RocksDBException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    //Compacts the part of the key space that range deletes have gone over, dropping the deleted values
+    @Override
+    public void compactSections() {
+        long from, to;
+        synchronized (this) {
+            from = this.deletedFrom;
+            to = this.deletedTo;
+            this.deletedFrom = -1;
+            this.deletedTo = 0;
+        }
+        if (Long.compareUnsigned(from, to) > 0) {
+            return;
+        }
+        try {
+            this.db.compactRange(this.worldSections, toBytes(from), toBytes(to == -1 ? -1 : to + 1));
         } catch (RocksDBException e) {
             throw new RuntimeException(e);
         }
@@ -177,9 +462,19 @@ public class RocksDBStorageBackend extends StorageBackend {
     }
 
     public static class Config extends StorageConfig {
+        //Size in bytes of the lru block cache shared by all column families
+        public long blockCacheSize = 64L<<20;
+        //Bits per key of the bloom filter on the section keys, 0 disables the filter
+        public double bloomFilterBitsPerKey = 10;
+        //Section data is normally already compressed by a compression adaptor so rocksdb compression is off by default
+        public boolean compression = false;
+        //Max bytes per second used by background flushes and compactions, 0 disables the limit. Rocksdb charges flushes
+        // against it too, so a limit also caps how fast imports and saves can write, which is why it is off by default
+        public long compactionRateLimit = 0;
+
         @Override
         public StorageBackend build(ConfigBuildCtx ctx) {
-            return new RocksDBStorageBackend(ctx.ensurePathExists(ctx.substituteString(ctx.resolvePath())));
+            return new RocksDBStorageBackend(ctx.ensurePathExists(ctx.substituteString(ctx.resolvePath())), this);
         }
 
         public static String getConfigTypeName() {
@@ -1,24 +1,58 @@
 package me.cortex.voxy.common.world;
 
 import it.unimi.dsi.fastutil.longs.Long2ObjectOpenHashMap;
-import me.cortex.voxy.common.util.VolatileHolder;
 import me.cortex.voxy.common.world.other.Mapper;
 
 import java.util.Arrays;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 public class ActiveSectionTracker {
     //Deserialize into the supplied section, returns true on success, false on failure
     public interface SectionLoader {int load(WorldSection section);}
+    //Same as SectionLoader but completes the load status asynchronously, the data is deserialized on the executor
+    public interface AsyncSectionLoader {CompletableFuture<Integer> load(WorldSection section, Executor executor);}
+
+    private static final class SectionHolder {
+        private volatile WorldSection section;
+        //Completed once the section has been loaded, lets async acquires wait without blocking a thread
+        private final CompletableFuture<Void> loaded = new CompletableFuture<>();
+        //Completed with the deserialization of an async load once its data was read, a synchronous acquire waiting on
+        // the section runs it itself instead of waiting for the executor, which may be the thread that is waiting
+        private final CompletableFuture<Runnable> deserialize = new CompletableFuture<>();
+    }
+
+    //A task that is run by whichever of the executor or a waiting acquire claims it first
+    private static final class ClaimedTask implements Runnable {
+        private final Runnable task;
+        private final AtomicBoolean claimed = new AtomicBoolean();
 
-    //Loaded section world cache, TODO: get rid of VolatileHolder and use something more sane
+        private ClaimedTask(Runnable task) {
+            this.task = task;
+        }
 
-    private final Long2ObjectOpenHashMap<VolatileHolder<WorldSection>>[] loadedSectionCache;
+        @Override
+        public void run() {
+            if (this.claimed.compareAndSet(false, true)) {
+                this.task.run();
+            }
+        }
+    }
+
+    //Loaded section world cache
+    private final Long2ObjectOpenHashMap<SectionHolder>[] loadedSectionCache;
     private final SectionLoader loader;
-    //private final SectionDataCache dataCache;
+    private final AsyncSectionLoader asyncLoader;
 
-    @SuppressWarnings("unchecked")
     public ActiveSectionTracker(int numSlicesBits, SectionLoader loader) {
+        this(numSlicesBits, loader, null);
+    }
+
+    @SuppressWarnings("unchecked")
+    public ActiveSectionTracker(int numSlicesBits, SectionLoader loader, AsyncSectionLoader asyncLoader) {
         this.loader = loader;
+        this.asyncLoader = asyncLoader;
         this.loadedSectionCache = new Long2ObjectOpenHashMap[1<<numSlicesBits];
         for (int i = 0; i < this.loadedSectionCache.length; i++) {
             this.loadedSectionCache[i] = new Long2ObjectOpenHashMap<>(1024);
@@ -28,16 +62,16 @@ public class ActiveSectionTracker {
     public WorldSection acquire(int lvl, int x, int y, int z, boolean nullOnEmpty) {
         long key = WorldEngine.getWorldSectionId(lvl, x, y, z);
         var cache = this.loadedSectionCache[this.getCacheArrayIndex(key)];
-        VolatileHolder<WorldSection> holder = null;
+        SectionHolder holder = null;
         boolean isLoader = false;
         synchronized (cache) {
             holder = cache.get(key);
             if (holder == null) {
-                holder = new VolatileHolder<>();
+                holder = new SectionHolder();
                 cache.put(key, holder);
                 isLoader = true;
             }
-            var section = holder.obj;
+            var section = holder.section;
             if (section != null) {
                 section.acquire();
                 return section;
@@ -50,28 +84,16 @@ public class ActiveSectionTracker {
             if (status == -1) {//Cache miss
                 status = this.loader.load(section);
             }
-
-            if (status < 0) {
-                //TODO: Instead if throwing an exception do something better, like attempting to regen
-                //throw new IllegalStateException("Unable to load section: ");
-                System.err.println("Unable to load section " + section.key + " setting to air");
-                status = 1;
-            }
-            if (status == 1) {
-                //We need to set the data to air as it is undefined state
-                Arrays.fill(section.data, Mapper.withLight(Mapper.AIR, 15));//Since lighting is inverted
-            }
-            section.acquire();
-            holder.obj = section;
-            if (nullOnEmpty && status == 1) {//If its air return null as stated, release the section aswell
-                section.release();
-                return null;
-            }
-            return section;
+            return this.finishLoad(holder, section, status, nullOnEmpty);
         } else {
-            WorldSection section = null;
-            while ((section = holder.obj) == null)
-                Thread.onSpinWait();
+            //Take over the deserialization of an async load if its data is ready, otherwise wait for the load to finish
+            CompletableFuture.anyOf(holder.loaded, holder.deserialize).join();
+            var deserialize = holder.deserialize.getNow(null);
+            if (deserialize != null) {
+                deserialize.run();
+            }
+            holder.loaded.join();
+            WorldSection section = holder.section;
 
             synchronized (cache) {
                 if (section.tryAcquire()) {
@@ -82,11 +104,80 @@ public class ActiveSectionTracker {
         }
     }
 
+    /**
+     * Acquires a section without blocking the calling thread on storage io, if no async loader was provided
+     * this falls back to a synchronous acquire
+     * @param executor where the loaded data is deserialized, so the io threads only ever do io
+     * @return a future completing with the acquired section, or null if nullOnEmpty is set and the section is empty
+     */
+    public CompletableFuture<WorldSection> acquireAsync(int lvl, int x, int y, int z, boolean nullOnEmpty, Executor executor) {
+        if (this.asyncLoader == null) {
+            return CompletableFuture.completedFuture(this.acquire(lvl, x, y, z, nullOnEmpty));
+        }
+        long key = WorldEngine.getWorldSectionId(lvl, x, y, z);
+        var cache = this.loadedSectionCache[this.getCacheArrayIndex(key)];
+        SectionHolder holder = null;
+        boolean isLoader = false;
+        synchronized (cache) {
+            holder = cache.get(key);
+            if (holder == null) {
+                holder = new SectionHolder();
+                cache.put(key, holder);
+                isLoader = true;
+            }
+            var section = holder.section;
+            if (section != null) {
+                section.acquire();
+                return CompletableFuture.completedFuture(section);
+            }
+        }
+        if (isLoader) {
+            var section = new WorldSection(lvl, x, y, z, this);
+            var loadHolder = holder;
+            Executor claimable = task -> {
+                var claimed = new ClaimedTask(task);
+                loadHolder.deserialize.complete(claimed);
+                executor.execute(claimed);
+            };
+            return this.asyncLoader.load(section, claimable).handle((status, error) -> {
+                if (error != null) {
+                    System.err.println("Error loading section " + section.key + ": " + error);
+                    status = -1;
+                }
+                return this.finishLoad(loadHolder, section, status, nullOnEmpty);
+            });
+        } else {
+            //Wait for the loading thread to finish then retry, the section may have been unloaded in the meantime
+            return holder.loaded.thenCompose(v -> this.acquireAsync(lvl, x, y, z, nullOnEmpty, executor));
+        }
+    }
+
+    private WorldSection finishLoad(SectionHolder holder, WorldSection section, int status, boolean nullOnEmpty) {
+        if (status < 0) {
+            //TODO: Instead if throwing an exception do something better, like attempting to regen
+            //throw new IllegalStateException("Unable to load section: ");
+            System.err.println("Unable to load section " + section.key + " setting to air");
+            status = 1;
+        }
+        if (status == 1) {
+            //We need to set the data to air as it is undefined state
+            Arrays.fill(section.data, Mapper.withLight(Mapper.AIR, 15));//Since lighting is inverted
+        }
+        section.acquire();
+        holder.section = section;
+        holder.loaded.complete(null);
+        if (nullOnEmpty && status == 1) {//If its air return null as stated, release the section aswell
+            section.release();
+            return null;
+        }
+        return section;
+    }
+
     void tryUnload(WorldSection section) {
         var cache = this.loadedSectionCache[this.getCacheArrayIndex(section.key)];
         synchronized (cache) {
             if (section.trySetFreed()) {
-                if (cache.remove(section.key).obj != section) {
+                if (cache.remove(section.key).section != section) {
                     throw new IllegalStateException("Removed section not the same as the referenced section in the cache");
                 }
             }
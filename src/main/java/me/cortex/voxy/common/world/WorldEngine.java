@@ -1,15 +1,23 @@
 package me.cortex.voxy.common.world;
 
+import me.cortex.voxy.common.storage.ByteBufferConsumer;
+import me.cortex.voxy.common.storage.StorageBulkLoader;
 import me.cortex.voxy.common.storage.StorageCompressor;
 import me.cortex.voxy.common.voxelization.VoxelizedSection;
 import me.cortex.voxy.common.world.other.Mapper;
+import me.cortex.voxy.common.world.service.SectionEvictionService;
 import me.cortex.voxy.common.world.service.SectionSavingService;
+import me.cortex.voxy.common.world.service.StorageIOService;
 import me.cortex.voxy.common.world.service.VoxelIngestService;
 import me.cortex.voxy.common.storage.StorageBackend;
 import org.lwjgl.system.MemoryUtil;
 
+import java.nio.ByteBuffer;
 import java.util.Arrays;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
 import java.util.function.Consumer;
+import java.util.function.LongSupplier;
 
 //Use an LMDB backend to store the world, use a local inmemory cache for lod sections
 // automatically manages and invalidates sections of the world as needed
@@ -19,8 +27,12 @@ public class WorldEngine {
     private final ActiveSectionTracker sectionTracker;
     public final VoxelIngestService ingestService;
     public final SectionSavingService savingService;
+    public final StorageIOService storageIO;
     private Consumer<WorldSection> dirtyCallback;
     private final int maxMipLevels;
+    private SectionEvictionService evictionService;
+    //While set, saved sections are buffered and written to storage in large sorted batches
+    private volatile StorageBulkLoader bulkLoader;
 
 
     public void setDirtyCallback(Consumer<WorldSection> tracker) {
@@ -30,38 +42,74 @@ public class WorldEngine {
     public Mapper getMapper() {return this.mapper;}
 
     public WorldEngine(StorageBackend storageBackend, int ingestWorkers, int savingServiceWorkers, int maxMipLayers) {
+        this(storageBackend, ingestWorkers, savingServiceWorkers, 2, maxMipLayers);
+    }
+
+    public WorldEngine(StorageBackend storageBackend, int ingestWorkers, int savingServiceWorkers, int ioWorkers, int maxMipLayers) {
         this.maxMipLevels = maxMipLayers;
         this.storage = storageBackend;
         this.mapper = new Mapper(this.storage);
+        this.storageIO = new StorageIOService(this.storage, ioWorkers, 4096);
         //4 cache size bits means that the section tracker has 16 separate maps that it uses
-        this.sectionTracker = new ActiveSectionTracker(3, this::unsafeLoadSection);
+        this.sectionTracker = new ActiveSectionTracker(3, this::unsafeLoadSection, this::unsafeLoadSectionAsync);
 
         this.savingService = new SectionSavingService(this, savingServiceWorkers);
+        this.storage.setWriteBacklogSource(this.savingService::getTaskCount);
         this.ingestService  = new VoxelIngestService(this, ingestWorkers);
     }
 
     private int unsafeLoadSection(WorldSection into) {
-        var data = this.storage.getSectionData(into.key);
-        if (data != null) {
-            try {
-                if (!SaveLoadSystem.deserialize(into, data, true)) {
-                    this.storage.deleteSectionData(into.key);
-                    //TODO: regenerate the section from children
-                    Arrays.fill(into.data, Mapper.AIR);
-                    System.err.println("Section " + into.lvl + ", " + into.x + ", " + into.y + ", " + into.z + " was unable to load, removing");
-                    return -1;
-                } else {
-                    return 0;
-                }
-            } finally {
-                MemoryUtil.memFree(data);
-            }
-        } else {
+        //Deserialize straight from the backends view of the data, avoiding a copy into an owned buffer
+        var valid = new boolean[1];
+        ByteBufferConsumer deserialize = data -> valid[0] = SaveLoadSystem.deserialize(into, data, true);
+        var loader = this.bulkLoader;
+        if (loader != null && loader.readSectionData(into.key, deserialize)) {
+            return valid[0] ? 0 : this.discardCorruptSection(into);
+        }
+        if (!this.storage.readSectionData(into.key, deserialize)) {
             //TODO: if we need to fetch an lod from a server, send the request here and block until the request is finished
             // the response should be put into the local db so that future data can just use that
             // the server can also send arbitrary updates to the client for arbitrary lods
             return 1;
         }
+        //The backend must not be modified from within the read so corrupt sections are handled once it has returned
+        return valid[0] ? 0 : this.discardCorruptSection(into);
+    }
+
+    private CompletableFuture<Integer> unsafeLoadSectionAsync(WorldSection into, Executor executor) {
+        var loader = this.bulkLoader;
+        if (loader != null) {
+            var buffered = loader.getSectionData(into.key);
+            if (buffered != null) {
+                return CompletableFuture.completedFuture(this.loadSectionData(into, buffered));
+            }
+        }
+        //Decompression and deserialization run on the callers executor rather than holding up the io threads
+        return this.storageIO.getSectionDataAsync(into.key).thenApplyAsync(data -> this.loadSectionData(into, data), executor);
+    }
+
+    //Deserializes the fetched data into the section and frees it
+    private int loadSectionData(WorldSection into, ByteBuffer data) {
+        if (data == null) {
+            return 1;
+        }
+        try {
+            return SaveLoadSystem.deserialize(into, data, true) ? 0 : this.discardCorruptSection(into);
+        } finally {
+            MemoryUtil.memFree(data);
+        }
+    }
+
+    private int discardCorruptSection(WorldSection section) {
+        var loader = this.bulkLoader;
+        if (loader != null) {
+            loader.delete(section.key);
+        }
+        this.storage.deleteSectionData(section.key);
+        //TODO: regenerate the section from children
+        Arrays.fill(section.data, Mapper.AIR);
+        System.err.println("Section " + section.lvl + ", " + section.x + ", " + section.y + ", " + section.z + " was unable to load, removing");
+        return -1;
     }
 
     public WorldSection acquireIfExists(int lvl, int x, int y, int z) {
@@ -72,6 +120,16 @@ public class WorldEngine {
         return this.sectionTracker.acquire(lvl, x, y, z, false);
     }
 
+    //Async variants of the acquire methods, these dont block the calling thread while the section is read from storage,
+    // the read section is deserialized on the given executor
+    public CompletableFuture<WorldSection> acquireIfExistsAsync(int lvl, int x, int y, int z, Executor executor) {
+        return this.sectionTracker.acquireAsync(lvl, x, y, z, true, executor);
+    }
+
+    public CompletableFuture<WorldSection> acquireAsync(int lvl, int x, int y, int z, Executor executor) {
+        return this.sectionTracker.acquireAsync(lvl, x, y, z, false, executor);
+    }
+
     //TODO: Fixme/optimize, cause as the lvl gets higher, the size of x,y,z gets smaller so i can dynamically compact the format
     // depending on the lvl, which should optimize colisions and whatnot
     public static long getWorldSectionId(int lvl, int x, int y, int z) {
@@ -141,15 +199,64 @@ public class WorldEngine {
         }
     }
 
+    //Writes saved sections to the storage, or to the bulk loader while one is active
+    public void storeSections(long[] keys, ByteBuffer[] data) {
+        var loader = this.bulkLoader;
+        if (loader == null || !loader.add(keys, data)) {
+            this.storage.setSectionsData(keys, data);
+        }
+    }
+
+    /**
+     * Switches saving to the bulk load path, meant for importing large amounts of sections e.g. a whole world
+     * @param maxBufferedBytes the amount of saved section data to buffer before it is written out in one sorted batch
+     * @return false if a bulk load is already running
+     */
+    public synchronized boolean beginBulkLoad(long maxBufferedBytes) {
+        if (this.bulkLoader != null) {
+            return false;
+        }
+        this.bulkLoader = new StorageBulkLoader(this.storage, maxBufferedBytes);
+        return true;
+    }
+
+    //Writes out everything still buffered and switches saving back to the normal path
+    public synchronized void endBulkLoad() {
+        var loader = this.bulkLoader;
+        if (loader == null) {
+            return;
+        }
+        long loaded = loader.finish();
+        this.bulkLoader = null;
+        System.out.println("Bulk loaded " + loaded + " sections");
+    }
+
+    /**
+     * Starts keeping the storage within a disk quota, evicting the finest levels of the sections farthest from the
+     * positions recorded with the returned service
+     * @param quota supplies the quota in bytes, Long.MAX_VALUE if there is none
+     */
+    public synchronized SectionEvictionService startEvictionService(LongSupplier quota, int maxEvictLevel, int checkIntervalSeconds) {
+        if (this.evictionService == null) {
+            this.evictionService = new SectionEvictionService(this, quota, maxEvictLevel, checkIntervalSeconds);
+        }
+        return this.evictionService;
+    }
+
     public int[] getLoadedSectionCacheSizes() {
         return this.sectionTracker.getCacheCounts();
     }
 
     public void shutdown() {
+        if (this.evictionService != null) {
+            try {this.evictionService.shutdown();} catch (Exception e) {System.err.println(e);}
+        }
         try {this.storage.flush();} catch (Exception e) {System.err.println(e);}
         //Shutdown in this order to preserve as much data as possible
         try {this.ingestService.shutdown();} catch (Exception e) {System.err.println(e);}
         try {this.savingService.shutdown();} catch (Exception e) {System.err.println(e);}
+        try {this.endBulkLoad();} catch (Exception e) {System.err.println(e);}
+        try {this.storageIO.shutdown();} catch (Exception e) {System.err.println(e);}
         try {this.storage.close();} catch (Exception e) {System.err.println(e);}
     }
 }
@@ -28,6 +28,7 @@ import java.util.function.Consumer;
 public class Mapper {
     private static final int BLOCK_STATE_TYPE = 1;
     private static final int BIOME_TYPE = 2;
+    //Type 3 is StorageBackend.METADATA_MAPPING_TYPE
 
     private final StorageBackend storage;
     public static final long UNKNOWN_MAPPING = -1;
@@ -104,6 +105,9 @@ public class Mapper {
                 if (this.biome2biomeEntry.put(bentry.biome, bentry) != null) {
                     throw new IllegalStateException("Multiple mappings for biome entry");
                 }
+            } else if (entryType == StorageBackend.METADATA_MAPPING_TYPE) {
+                //Belongs to the storage layers, not a mapping
+                continue;
             } else {
                 throw new IllegalStateException("Unknown entryType");
             }
@@ -0,0 +1,256 @@
+package me.cortex.voxy.common.world.service;
+
+import it.unimi.dsi.fastutil.longs.LongArrayList;
+import me.cortex.voxy.common.storage.StorageBackend;
+import me.cortex.voxy.common.world.WorldEngine;
+import org.lwjgl.system.MemoryUtil;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.function.LongSupplier;
+
+//Keeps the storage within a disk quota by deleting the finest levels of detail of the sections farthest away from the
+// positions the player has recently been at, the coarser levels are kept so distant terrain still renders. Sections
+// are deleted in key ranges, a range covers a run of sections along the x axis that are all too far from every
+// recently visited position
+public class SectionEvictionService {
+    private static final int VISITED_METADATA_ID = StorageBackend.getMetadataMappingId(6);
+    private static final int MAX_VISITED = 64;
+    //A new position is recorded once the player is this many level 0 sections away from all the recorded ones
+    private static final int VISIT_SPACING = 8;
+    //Sections this close to a visited position are never evicted, in level 0 sections
+    private static final int MIN_KEEP_DISTANCE = 16;
+    //Eviction goes down to this fraction of the quota so it doesnt have to run again straight away
+    private static final double TARGET_FRACTION = 0.9;
+    private static final int DISTANCE_BUCKET_SHIFT = 3;
+    private static final int DISTANCE_BUCKETS = 1<<14;
+    private static final int RANGE_BATCH_SIZE = 256;
+    private static final int MAX_X = (1<<23)-1;
+    //Longest run deleted as one range, storages that re-encode keys (e.g. morton) delete runs key by key
+    private static final int MAX_RUN_LENGTH = 256;
+
+    private final WorldEngine world;
+    private final LongSupplier quota;
+    private final int maxEvictLevel;
+    private final long checkIntervalMs;
+    //Recently visited positions in level 0 section coordinates packed as x<<32|z, most recent last
+    private final LongArrayList visited = new LongArrayList();
+
+    private final Thread worker;
+    private volatile boolean running = true;
+
+    /**
+     * @param quota supplies the quota in bytes, Long.MAX_VALUE if there is none
+     * @param maxEvictLevel the coarsest level that sections are evicted from
+     */
+    public SectionEvictionService(WorldEngine world, LongSupplier quota, int maxEvictLevel, int checkIntervalSeconds) {
+        this.world = world;
+        this.quota = quota;
+        this.maxEvictLevel = maxEvictLevel;
+        this.checkIntervalMs = checkIntervalSeconds*1000L;
+
+        var stored = world.storage.getIdMappingsData().get(VISITED_METADATA_ID);
+        if (stored != null) {
+            var buffer = ByteBuffer.wrap(stored).order(ByteOrder.LITTLE_ENDIAN);
+            while (buffer.remaining() >= Long.BYTES) {
+                this.visited.add(buffer.getLong());
+            }
+        }
+
+        this.worker = new Thread(this::evictionWorker);
+        this.worker.setName("Section eviction service");
+        this.worker.setDaemon(true);
+        this.worker.start();
+    }
+
+    public void recordPosition(int blockX, int blockZ) {
+        int x = blockX>>5;
+        int z = blockZ>>5;
+        synchronized (this.visited) {
+            for (int i = this.visited.size() - 1; i >= 0; i--) {
+                long point = this.visited.getLong(i);
+                if (Math.abs((int) (point>>32) - x) <= VISIT_SPACING && Math.abs((int) point - z) <= VISIT_SPACING) {
+                    //Move it to the end so the positions that are visited all the time dont get dropped
+                    if (i != this.visited.size() - 1) {
+                        this.visited.removeLong(i);
+                        this.visited.add(point);
+                    }
+                    return;
+                }
+            }
+            this.visited.add(((long) x<<32)|(z&0xFFFFFFFFL));
+            if (this.visited.size() > MAX_VISITED) {
+                this.visited.removeLong(0);
+            }
+        }
+    }
+
+    private void evictionWorker() {
+        while (this.running) {
+            synchronized (this) {
+                try {
+                    this.wait(this.checkIntervalMs);
+                } catch (InterruptedException e) {
+                    return;
+                }
+                if (!this.running) {
+                    return;
+                }
+            }
+            try {
+                this.check();
+            } catch (Exception e) {
+                System.err.println("Failed to evict sections: " + e);
+            }
+        }
+    }
+
+    private static long getCenter(int coord, int level) {
+        return ((long) coord<<level) + ((1L<<level)>>1);
+    }
+
+    //Squared distance in level 0 sections from the center of the section to the closest visited position
+    private static long getDistanceSquared(int level, int x, int z, long[] points) {
+        long cx = getCenter(x, level);
+        long cz = getCenter(z, level);
+        long closest = Long.MAX_VALUE;
+        for (long point : points) {
+            long dx = cx - (int) (point>>32);
+            long dz = cz - (int) point;
+            closest = Math.min(closest, dx*dx + dz*dz);
+        }
+        return closest;
+    }
+
+    //The last x of the run of sections starting at the far section x that are all at least the cutoff away from every
+    // position. Rounded down where needed so the run never includes a section within the cutoff, the run also stays
+    // on one side of x = 0 as that is where the keys of a row wrap around
+    private static int getFarRunEnd(int level, int x, int z, long[] points, long cutoffSquared) {
+        long end = x >= 0 ? MAX_X : -1;
+        long cx = getCenter(x, level);
+        long cz = getCenter(z, level);
+        for (long point : points) {
+            long px = (int) (point>>32);
+            long dz = cz - (int) point;
+            long radiusSquared = cutoffSquared - dz*dz;
+            //Positions the run is moving away from, or that no section of the row is close enough to, dont end it
+            if (radiusSquared <= 0 || px <= cx) {
+                continue;
+            }
+            long nearest = (long) Math.floor((px - Math.sqrt(radiusSquared) - ((1L<<level)>>1))/(double) (1L<<level));
+            end = Math.min(end, nearest - 1);
+        }
+        return (int) Math.max(end, x);
+    }
+
+    private void check() {
+        long quota = this.quota.getAsLong();
+        var storage = this.world.storage;
+        long size = storage.getStorageSize();
+        if (size <= quota) {
+            return;
+        }
+        long[] points;
+        synchronized (this.visited) {
+            points = this.visited.toLongArray();
+        }
+        if (points.length == 0) {
+            return;
+        }
+
+        //Histogram of the evictable data by distance, the payload sizes are converted to disk space with the ratio of
+        // all the data to the size of the storage. The sizes are taken as stored, e.g. still compressed, so nothing
+        // has to be decoded
+        long lastEvictable = ((long) (this.maxEvictLevel + 1)<<60) - 1;
+        long[] histogram = new long[DISTANCE_BUCKETS];
+        long[] totalPayload = new long[1];
+        if (!storage.iterateStoredSections(0, -1, (key, data) -> {
+            totalPayload[0] += data.remaining();
+            if (Long.compareUnsigned(key, lastEvictable) <= 0) {
+                long distance = (long) Math.sqrt(getDistanceSquared(WorldEngine.getLevel(key), WorldEngine.getX(key), WorldEngine.getZ(key), points));
+                histogram[(int) Math.min(DISTANCE_BUCKETS - 1, distance>>DISTANCE_BUCKET_SHIFT)] += data.remaining();
+            }
+            return this.running;
+        })) {
+            return;
+        }
+        long toFree = (long) ((size - quota*TARGET_FRACTION)*totalPayload[0]/(double) size);
+        int cutoffBucket = DISTANCE_BUCKETS;
+        long freed = 0;
+        for (int bucket = DISTANCE_BUCKETS - 1; bucket > MIN_KEEP_DISTANCE>>DISTANCE_BUCKET_SHIFT && freed < toFree; bucket--) {
+            if (histogram[bucket] != 0) {
+                freed += histogram[bucket];
+                cutoffBucket = bucket;
+            }
+        }
+        if (cutoffBucket == DISTANCE_BUCKETS) {
+            System.err.println("Storage is over its quota but has no sections left far enough away to evict");
+            return;
+        }
+        long cutoff = (long) cutoffBucket<<DISTANCE_BUCKET_SHIFT;
+        long cutoffSquared = cutoff*cutoff;
+
+        long ranges = 0;
+        long next = 0;
+        var batch = new LongArrayList();
+        long[] lastKey = new long[1];
+        while (this.running) {
+            batch.clear();
+            boolean completed = storage.iterateStoredSections(next, lastEvictable, (key, data) -> {
+                lastKey[0] = key;
+                for (int i = 0; i < batch.size(); i += 2) {
+                    if (Long.compareUnsigned(batch.getLong(i), key) <= 0 && Long.compareUnsigned(key, batch.getLong(i+1)) <= 0) {
+                        return true;
+                    }
+                }
+                int level = WorldEngine.getLevel(key);
+                int x = WorldEngine.getX(key);
+                int z = WorldEngine.getZ(key);
+                if (getDistanceSquared(level, x, z, points) >= cutoffSquared) {
+                    int end = (int) Math.min(getFarRunEnd(level, x, z, points, cutoffSquared), (long) x + MAX_RUN_LENGTH - 1);
+                    batch.add(key);
+                    batch.add(WorldEngine.getWorldSectionId(level, end, WorldEngine.getY(key), z));
+                }
+                return batch.size() < RANGE_BATCH_SIZE*2 && this.running;
+            });
+            for (int i = 0; i < batch.size(); i += 2) {
+                storage.deleteSections(batch.getLong(i), batch.getLong(i+1));
+            }
+            ranges += batch.size()/2;
+            if (completed || lastKey[0] == lastEvictable) {
+                break;
+            }
+            //Carry on after the range the iteration stopped in
+            next = batch.isEmpty() ? lastKey[0] + 1 : Math.max(lastKey[0], batch.getLong(batch.size() - 1)) + 1;
+        }
+        storage.compactSections();
+        storage.flush();
+        System.out.println("Evicted " + ranges + " section ranges farther than " + (cutoff*32) + " blocks, storage went from " + (size>>20) + "MB to " + (storage.getStorageSize()>>20) + "MB");
+    }
+
+    private void saveVisited() {
+        long[] points;
+        synchronized (this.visited) {
+            points = this.visited.toLongArray();
+        }
+        var data = MemoryUtil.memAlloc(points.length*Long.BYTES).order(ByteOrder.LITTLE_ENDIAN);
+        for (int i = 0; i < points.length; i++) {
+            data.putLong(i*Long.BYTES, points[i]);
+        }
+        this.world.storage.putIdMapping(VISITED_METADATA_ID, data);
+        MemoryUtil.memFree(data);
+    }
+
+    public void shutdown() {
+        synchronized (this) {
+            this.running = false;
+            this.notifyAll();
+        }
+        try {
+            this.worker.join();
+        } catch (InterruptedException e) {
+            throw new RuntimeException(e);
+        }
+        this.saveVisited();
+    }
+}
@@ -8,18 +8,24 @@ import net.minecraft.client.MinecraftClient;
 import net.minecraft.text.Text;
 import org.lwjgl.system.MemoryUtil;
 
+import java.nio.ByteBuffer;
 import java.util.concurrent.ConcurrentLinkedDeque;
 import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
 
 //TODO: add an option for having synced saving, that is when call enqueueSave, that will instead, instantly
 // save to the db, this can be useful for just reducing the amount of thread pools in total
 // might have some issues with threading if the same section is saved from multiple threads?
 public class SectionSavingService {
+    private static final int MAX_BATCH_SIZE = 64;
+
     private volatile boolean running = true;
     private final Thread[] workers;
 
     private final ConcurrentLinkedDeque<WorldSection> saveQueue = new ConcurrentLinkedDeque<>();
     private final Semaphore saveCounter = new Semaphore(0);
+    //Saves that are queued or still being written, awaitDrained waits on this for it to reach zero
+    private final AtomicInteger unfinishedSaves = new AtomicInteger();
 
     private final WorldEngine world;
 
@@ -37,21 +43,47 @@ public class SectionSavingService {
     }
 
     private void saveWorker() {
+        var sections = new WorldSection[MAX_BATCH_SIZE];
         while (running) {
             this.saveCounter.acquireUninterruptibly();
             if (!this.running) break;
-            var section = this.saveQueue.pop();
-            section.assertNotFree();
+            //Take any other queued saves with this one so they get written to storage in a single batch
+            int count = 1;
+            while (count < MAX_BATCH_SIZE && this.saveCounter.tryAcquire()) {
+                count++;
+            }
+            for (int i = 0; i < count; i++) {
+                var section = this.saveQueue.pop();
+                section.assertNotFree();
+                sections[i] = section;
+            }
+
+            long[] keys = new long[count];
+            ByteBuffer[] saveData = new ByteBuffer[count];
             try {
-                section.inSaveQueue.set(false);
-                var saveData = SaveLoadSystem.serialize(section);
-                this.world.storage.setSectionData(section.key, saveData);
-                MemoryUtil.memFree(saveData);
+                for (int i = 0; i < count; i++) {
+                    var section = sections[i];
+                    section.inSaveQueue.set(false);
+                    keys[i] = section.key;
+                    saveData[i] = SaveLoadSystem.serialize(section);
+                }
+                this.world.storeSections(keys, saveData);
             } catch (Exception e) {
                 System.err.println(e);
                 MinecraftClient.getInstance().executeSync(()->MinecraftClient.getInstance().player.sendMessage(Text.literal("Voxy saver had an exception while executing please check logs and report error")));
             }
-            section.release();
+            for (int i = 0; i < count; i++) {
+                if (saveData[i] != null) {
+                    MemoryUtil.memFree(saveData[i]);
+                }
+                sections[i].release();
+                sections[i] = null;
+            }
+            if (this.unfinishedSaves.addAndGet(-count) == 0) {
+                synchronized (this.unfinishedSaves) {
+                    this.unfinishedSaves.notifyAll();
+                }
+            }
         }
     }
 
@@ -60,6 +92,7 @@ public class SectionSavingService {
         if (!section.inSaveQueue.getAndSet(true)) {
             //Acquire the section for use
             section.acquire();
+            this.unfinishedSaves.incrementAndGet();
             this.saveQueue.add(section);
             this.saveCounter.release();
         }
@@ -101,6 +134,15 @@ public class SectionSavingService {
         } catch (InterruptedException e) {throw new RuntimeException(e);}
     }
 
+    //Waits until every save queued so far has been written to storage, including the ones already being written
+    public void awaitDrained() throws InterruptedException {
+        synchronized (this.unfinishedSaves) {
+            while (this.unfinishedSaves.get() != 0) {
+                this.unfinishedSaves.wait();
+            }
+        }
+    }
+
     public int getTaskCount() {
         return this.saveCounter.availablePermits();
     }
@@ -0,0 +1,181 @@
+package me.cortex.voxy.common.world.service;
+
+import it.unimi.dsi.fastutil.longs.Long2ObjectLinkedOpenHashMap;
+import it.unimi.dsi.fastutil.longs.Long2ObjectOpenHashMap;
+import me.cortex.voxy.common.storage.StorageBackend;
+import org.lwjgl.system.MemoryUtil;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Semaphore;
+
+//Asynchronous read layer over a storage backend, requests are queued and executed by a small pool of io workers
+// pending reads of the same key get coalesced and each dispatched batch is sorted by key so the backend
+// sees ordered, batched access. Writes dont go through here, they are batched by the SectionSavingService
+public class StorageIOService {
+    private static final int MAX_BATCH_SIZE = 128;
+
+    private static final class PendingRead {
+        private final List<CompletableFuture<ByteBuffer>> futures = new ArrayList<>(1);
+        private int permits;
+    }
+
+    private volatile boolean running = true;
+    private final Thread[] workers;
+    private final StorageBackend storage;
+
+    //Bounds the number of outstanding requests, a permit is held by each request until its future completes
+    private final Semaphore capacity;
+
+    private final Object lock = new Object();
+    private final Long2ObjectLinkedOpenHashMap<PendingRead> pendingReads = new Long2ObjectLinkedOpenHashMap<>();
+
+    public StorageIOService(StorageBackend storage, int workers, int maxOutstanding) {
+        this.storage = storage;
+        this.capacity = new Semaphore(maxOutstanding);
+        this.workers = new Thread[workers];
+        for (int i = 0; i < workers; i++) {
+            var worker = new Thread(this::ioWorker);
+            worker.setDaemon(false);
+            worker.setName("Storage io service #" + i);
+            worker.start();
+            this.workers[i] = worker;
+        }
+    }
+
+    /**
+     * Fetches section data asynchronously
+     * @param key the section key
+     * @return a future completing with the section data or null if it doesnt exist, the buffer is owned by the
+     * caller and must be freed
+     */
+    public CompletableFuture<ByteBuffer> getSectionDataAsync(long key) {
+        var future = new CompletableFuture<ByteBuffer>();
+        boolean permit = this.acquireCapacity();
+        synchronized (this.lock) {
+            var read = this.pendingReads.get(key);
+            if (read == null) {
+                read = new PendingRead();
+                this.pendingReads.put(key, read);
+                this.lock.notify();
+            }
+            read.futures.add(future);
+            read.permits += permit ? 1 : 0;
+        }
+        return future;
+    }
+
+    //Returns true if a permit was taken and must be released once the request completes
+    private boolean acquireCapacity() {
+        //Io workers must never block on capacity as continuations of completed requests run on them
+        if (this.isWorkerThread()) {
+            return false;
+        }
+        this.capacity.acquireUninterruptibly();
+        return true;
+    }
+
+    private boolean isWorkerThread() {
+        var current = Thread.currentThread();
+        for (var worker : this.workers) {
+            if (worker == current) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void ioWorker() {
+        while (true) {
+            long[] keys;
+            PendingRead[] reads;
+            synchronized (this.lock) {
+                while (this.pendingReads.isEmpty()) {
+                    if (!this.running) {
+                        return;
+                    }
+                    try {
+                        this.lock.wait();
+                    } catch (InterruptedException e) {
+                        throw new RuntimeException(e);
+                    }
+                }
+
+                int count = Math.min(MAX_BATCH_SIZE, this.pendingReads.size());
+                var taken = new Long2ObjectOpenHashMap<PendingRead>(count);
+                keys = new long[count];
+                for (int i = 0; i < count; i++) {
+                    keys[i] = this.pendingReads.firstLongKey();
+                    taken.put(keys[i], this.pendingReads.removeFirst());
+                }
+                Arrays.sort(keys);
+                reads = new PendingRead[count];
+                for (int i = 0; i < count; i++) {
+                    reads[i] = taken.get(keys[i]);
+                }
+            }
+
+            this.executeReads(keys, reads);
+        }
+    }
+
+    private void executeReads(long[] keys, PendingRead[] reads) {
+        ByteBuffer[] results;
+        try {
+            results = this.storage.getSectionsData(keys);
+        } catch (Throwable e) {
+            for (var read : reads) {
+                this.capacity.release(read.permits);
+                read.futures.forEach(future -> future.completeExceptionally(e));
+            }
+            return;
+        }
+        for (int i = 0; i < keys.length; i++) {
+            var futures = reads[i].futures;
+            var result = results[i];
+            this.capacity.release(reads[i].permits);
+            //Coalesced readers each get their own copy of the data as the caller owns the buffer
+            for (int j = 1; j < futures.size(); j++) {
+                futures.get(j).complete(result == null ? null : copy(result));
+            }
+            futures.get(0).complete(result);
+        }
+    }
+
+    private static ByteBuffer copy(ByteBuffer data) {
+        var copy = MemoryUtil.memAlloc(data.remaining());
+        MemoryUtil.memCopy(data, copy);
+        return copy;
+    }
+
+    public int getTaskCount() {
+        synchronized (this.lock) {
+            return this.pendingReads.size();
+        }
+    }
+
+    public void shutdown() {
+        boolean anyAlive = false;
+        for (var worker : this.workers) {
+            anyAlive |= worker.isAlive();
+        }
+        if (!anyAlive) {
+            System.err.println("Storage io workers already dead on shutdown! this is very very bad, check log for errors from this thread");
+            return;
+        }
+
+        //Workers drain all remaining requests before exiting
+        synchronized (this.lock) {
+            this.running = false;
+            this.lock.notifyAll();
+        }
+        try {
+            for (var worker : this.workers) {
+                worker.join();
+            }
+        } catch (InterruptedException e) {throw new RuntimeException(e);}
+    }
+}